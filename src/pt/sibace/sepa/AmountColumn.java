@@ -0,0 +1,77 @@
+package pt.sibace.sepa;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Column of transaction amounts for the compact transaction stores: an unscaled long and a scale per row, so
+ * amounts keep the exact form they were given in (10.5 stays 10.5, 1050 cents is 10.50).
+ *
+ * Amounts that do not fit (more than 18 digits, negative scales) are kept as BigDecimal on the side.
+ *
+ */
+final class AmountColumn {
+
+	// Scale marking a row whose amount is kept in the side list, the unscaled value being its index
+	private static final byte LARGE = Byte.MIN_VALUE;
+
+	private long[] unscaled;
+	private byte[] scales;
+	private final List<BigDecimal> large = new ArrayList<BigDecimal>();
+	private int size;
+
+	AmountColumn(int capacity){
+		unscaled = new long[capacity];
+		scales = new byte[capacity];
+	}
+
+	void add(BigDecimal amount){
+		ensureCapacity();
+		int scale = amount.scale();
+		if (scale >= 0 && scale <= Byte.MAX_VALUE && amount.unscaledValue().bitLength() < 64) {
+			unscaled[size] = amount.unscaledValue().longValue();
+			scales[size] = (byte) scale;
+		} else {
+			unscaled[size] = large.size();
+			scales[size] = LARGE;
+			large.add(amount);
+		}
+		size++;
+	}
+
+	void add(long amountCents){
+		ensureCapacity();
+		unscaled[size] = amountCents;
+		scales[size] = 2;
+		size++;
+	}
+
+	BigDecimal get(int row){
+		if (scales[row] == LARGE) {
+			return large.get((int) unscaled[row]);
+		}
+		return BigDecimal.valueOf(unscaled[row], scales[row]);
+	}
+
+	/**
+	 * Writes the amount of the given row as character content, formatted as {@link BigDecimal#toPlainString()}.
+	 */
+	void text(XmlByteWriter w, int row) throws IOException{
+		if (scales[row] == LARGE) {
+			w.text(large.get((int) unscaled[row]).toPlainString());
+		} else {
+			w.text(unscaled[row], scales[row]);
+		}
+	}
+
+	private void ensureCapacity(){
+		if (size == unscaled.length) {
+			int capacity = Math.max(16, size * 2);
+			unscaled = Arrays.copyOf(unscaled, capacity);
+			scales = Arrays.copyOf(scales, capacity);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package pt.sibace.sepa;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Character checks over ASCII / UTF-8 bytes (the IBANs pooled by the compact transaction stores), eight bytes at a
+ * time: each group of eight bytes is read as a long (a single load, through a little endian ByteBuffer view) and
+ * all of them are compared at once with carry-free arithmetic (SWAR, SIMD within a register), with no branch per
+ * byte. Bytes past the last group of eight go through the scalar checks, which can also be chosen for all bytes
+ * with the system property <code>pt.sibace.sepa.scan=scalar</code>.
+ *
+ * A byte x below 0x80 plus (0x80 - c) has its high bit set exactly when x &gt;= c, and cannot carry into the next
+ * byte; ranges of characters are tested as "at least lo and not at least hi + 1". Words with any byte of 0x80 or
+ * more (non ASCII) fail every check but {@link #isAscii(byte[], int, int)}, before that arithmetic.
+ *
+ */
+final class AsciiScan {
+
+	static final boolean SWAR = !"scalar".equals(System.getProperty("pt.sibace.sepa.scan"));
+
+	private static final long ONES = 0x0101010101010101L;
+	private static final long HIGH = 0x8080808080808080L;
+	private static final long ZEROS = 0x3030303030303030L;
+
+	private AsciiScan(){
+	}
+
+	/**
+	 * @return true if all bytes are ASCII (below 0x80)
+	 */
+	static boolean isAscii(byte[] bytes, int offset, int length){
+		return isAscii(bytes, offset, length, SWAR);
+	}
+
+	/**
+	 * @param swar true to test groups of eight bytes at once, false for the scalar check of every byte
+	 */
+	static boolean isAscii(byte[] bytes, int offset, int length, boolean swar){
+		int i = offset;
+		int end = offset + length;
+		if (swar) {
+			ByteBuffer words = words(bytes);
+			for (; i + 8 <= end; i += 8) {
+				if ((words.getLong(i) & HIGH) != 0) {
+					return false;
+				}
+			}
+		}
+		for (; i < end; i++) {
+			if (bytes[i] < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if all bytes are the digits 0 to 9
+	 */
+	static boolean isDigits(byte[] bytes, int offset, int length){
+		return isDigits(bytes, offset, length, SWAR);
+	}
+
+	/**
+	 * @param swar true to test groups of eight bytes at once, false for the scalar check of every byte
+	 */
+	static boolean isDigits(byte[] bytes, int offset, int length, boolean swar){
+		int i = offset;
+		int end = offset + length;
+		if (swar) {
+			ByteBuffer words = words(bytes);
+			for (; i + 8 <= end; i += 8) {
+				long word = words.getLong(i);
+				if ((word & HIGH) != 0 || range(word, '0', '9') != HIGH) {
+					return false;
+				}
+			}
+		}
+		for (; i < end; i++) {
+			if (!isDigit(bytes[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return value of eight digits starting at the given position, as a number; the bytes must be digits
+	 */
+	static int digits(byte[] bytes, int offset){
+		return digits(bytes, offset, SWAR);
+	}
+
+	/**
+	 * @param swar true to combine the eight digits with word arithmetic, false to add them one at a time
+	 */
+	static int digits(byte[] bytes, int offset, boolean swar){
+		if (!swar) {
+			int value = 0;
+			for (int i = offset; i < offset + 8; i++) {
+				value = value * 10 + bytes[i] - '0';
+			}
+			return value;
+		}
+		// Pairs of digits, then groups of four, then all eight, each step one multiplication for all lanes
+		long value = words(bytes).getLong(offset) - ZEROS;
+		value = (value * 10 + (value >>> 8)) & 0x00FF00FF00FF00FFL;
+		value = (value * 100 + (value >>> 16)) & 0x0000FFFF0000FFFFL;
+		value = (value * 10000 + (value >>> 32)) & 0x00000000FFFFFFFFL;
+		return (int) value;
+	}
+
+	static boolean isDigit(byte b){
+		return b >= '0' && b <= '9';
+	}
+
+	static boolean isLetter(byte b){
+		return b >= 'A' && b <= 'Z';
+	}
+
+	/**
+	 * @return high bit of each byte set if the byte is from lo to hi; the word must be ASCII
+	 */
+	private static long range(long word, int lo, int hi){
+		return (word + (0x80 - lo) * ONES) & ~(word + (0x80 - hi - 1) * ONES) & HIGH;
+	}
+
+	/**
+	 * @return view reading eight bytes as a long, the first in the lowest bits
+	 */
+	private static ByteBuffer words(byte[] bytes){
+		return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
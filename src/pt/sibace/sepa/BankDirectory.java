@@ -0,0 +1,187 @@
+package pt.sibace.sepa;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * Portuguese bank codes (the first four digits of a NIB) and their BICs, in an array indexed by the bank code.
+ * Lookups parse the code from the NIB characters in place, without substrings, hashing or locks.
+ *
+ * A directory never changes once built; {@link SepaUtils#reloadBankDirectory(File)} swaps in a new one.
+ *
+ */
+public final class BankDirectory {
+
+	private static final int BANK_CODES = 10000;
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	// BIC of each bank code, null for unknown codes
+	private final String[] bics;
+	private final int size;
+
+	private BankDirectory(String[] bics){
+		this.bics = bics;
+		int count = 0;
+		for (String bic : bics) {
+			if (bic != null) {
+				count++;
+			}
+		}
+		size = count;
+	}
+
+	/**
+	 * @param bicsByBankCode BICs by four digit bank code
+	 * @throws IllegalArgumentException for keys that are not four digit bank codes
+	 */
+	public static BankDirectory of(Map<String, String> bicsByBankCode){
+		String[] bics = new String[BANK_CODES];
+		for (Map.Entry<String, String> entry : bicsByBankCode.entrySet()) {
+			int bankCode = entry.getKey().length() == 4 ? bankCode(entry.getKey(), 0) : -1;
+			if (bankCode < 0) {
+				throw new IllegalArgumentException("Not a bank code: " + entry.getKey());
+			}
+			bics[bankCode] = entry.getValue();
+		}
+		return new BankDirectory(bics);
+	}
+
+	/**
+	 * Reads the directory of the Banco de Portugal, as a text file with one institution per line and fields
+	 * separated by ';', ',' or tabs, optionally quoted. Lines starting with a four digit bank code and holding a BIC
+	 * (8 or 11 letters and digits) in one of the other fields are read; other lines (headers, institutions without
+	 * BIC) are skipped.
+	 *
+	 * @param file directory file, in ISO-8859-1 or any encoding where digits and letters are ASCII
+	 * @throws IOException if the file cannot be read or has no bank codes
+	 */
+	public static BankDirectory load(File file) throws IOException{
+		Reader reader = new InputStreamReader(new FileInputStream(file), LATIN1);
+		try {
+			return load(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads the directory of the Banco de Portugal, as {@link #load(File)} does. The reader is not closed.
+	 */
+	public static BankDirectory load(Reader reader) throws IOException{
+		String[] bics = new String[BANK_CODES];
+		BufferedReader lines = new BufferedReader(reader);
+		for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+			String[] fields = line.split("[;,\t]");
+			String code = unquote(fields[0]);
+			if (code.length() != 4 || bankCode(code, 0) < 0) {
+				continue;
+			}
+			for (int i = 1; i < fields.length; i++) {
+				String bic = unquote(fields[i]);
+				if (isBic(bic)) {
+					bics[bankCode(code, 0)] = bic;
+					break;
+				}
+			}
+		}
+		BankDirectory directory = new BankDirectory(bics);
+		if (directory.size == 0) {
+			throw new IOException("No bank codes found in the bank directory");
+		}
+		return directory;
+	}
+
+	/**
+	 * @param bankCode 0 to 9999
+	 * @return BIC of the bank code, null if unknown
+	 */
+	public String bic(int bankCode){
+		return bankCode < 0 || bankCode >= BANK_CODES ? null : bics[bankCode];
+	}
+
+	/**
+	 * @param nib NIB, or any text starting with the bank code
+	 * @return BIC of the NIB's bank, null if unknown
+	 * @throws IndexOutOfBoundsException if the NIB is shorter than a bank code
+	 */
+	public String bicFromNib(CharSequence nib){
+		return bic(bankCode(nib, 0));
+	}
+
+	/**
+	 * @param nib characters holding a NIB
+	 * @param offset position of the NIB
+	 * @return BIC of the NIB's bank, null if unknown
+	 * @throws IndexOutOfBoundsException if there is no room for a bank code at the offset
+	 */
+	public String bicFromNib(char[] nib, int offset){
+		if (offset < 0 || offset > nib.length - 4) {
+			throw new IndexOutOfBoundsException("No bank code at " + offset);
+		}
+		int bankCode = 0;
+		for (int i = offset; i < offset + 4; i++) {
+			int digit = nib[i] - '0';
+			if (digit < 0 || digit > 9) {
+				return null;
+			}
+			bankCode = bankCode * 10 + digit;
+		}
+		return bics[bankCode];
+	}
+
+	/**
+	 * @return number of bank codes with a BIC
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @return the four digits at the given position as a number, -1 if they are not all digits
+	 */
+	static int bankCode(CharSequence text, int offset){
+		if (text.length() < offset + 4) {
+			throw new IndexOutOfBoundsException("No bank code at " + offset + ": " + text);
+		}
+		int bankCode = 0;
+		for (int i = offset; i < offset + 4; i++) {
+			int digit = text.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+			bankCode = bankCode * 10 + digit;
+		}
+		return bankCode;
+	}
+
+	private static String unquote(String field){
+		field = field.trim();
+		if (field.length() >= 2 && field.charAt(0) == '"' && field.charAt(field.length() - 1) == '"') {
+			field = field.substring(1, field.length() - 1).trim();
+		}
+		return field;
+	}
+
+	/**
+	 * @return true for 8 or 11 uppercase letters and digits, with letters as country code
+	 */
+	private static boolean isBic(String text){
+		if (text.length() != 8 && text.length() != 11) {
+			return false;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			boolean letter = c >= 'A' && c <= 'Z';
+			if (!letter && (i < 6 && i >= 4 || c < '0' || c > '9')) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,193 @@
+package pt.sibace.sepa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates many SEPA documents concurrently, for instance one pain.008 per client company.
+ * 
+ * Each job runs in two stages: the document is built and serialized into memory on a CPU pool (one thread per
+ * core by default), then written to its destination on a separate, larger I/O pool, so slow uploads do not hold
+ * CPU threads. The number of serialized documents waiting for I/O is bounded, which bounds memory use.
+ * 
+ * A failing job does not stop the others: its cause is recorded in its {@link BatchJobResult}.
+ * 
+ * Usage:
+ * <pre>
+ * BatchGenerator generator = new BatchGenerator();
+ * BatchResult result = generator.run(jobs);
+ * generator.shutdown();
+ * </pre>
+ *
+ */
+public class BatchGenerator {
+
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+	private final ExecutorService cpuPool;
+	private final ExecutorService ioPool;
+	private final XmlEngine engine;
+	private final int maxPending;
+
+	/**
+	 * Creates a generator with one CPU thread per core, four I/O threads per core and the direct serializer.
+	 */
+	public BatchGenerator(){
+		this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors() * 4, XmlEngine.DIRECT);
+	}
+
+	/**
+	 * @param cpuThreads threads building and serializing documents
+	 * @param ioThreads threads writing documents to their destination
+	 * @param engine serializer used for every document
+	 */
+	public BatchGenerator(int cpuThreads, int ioThreads, XmlEngine engine){
+		if (cpuThreads < 1 || ioThreads < 1) {
+			throw new IllegalArgumentException("At least one CPU and one I/O thread are required");
+		}
+		this.cpuPool = Executors.newFixedThreadPool(cpuThreads, new NamedThreadFactory("sepa-batch-cpu-"));
+		this.ioPool = Executors.newFixedThreadPool(ioThreads, new NamedThreadFactory("sepa-batch-io-"));
+		this.engine = engine;
+		this.maxPending = cpuThreads + ioThreads * 2;
+	}
+
+	/**
+	 * Generates all documents and waits for them to be written.
+	 * 
+	 * @param jobs documents to generate
+	 * @return per job results, in the order of the jobs, and aggregate statistics
+	 * @throws InterruptedException
+	 */
+	public BatchResult run(List<? extends BatchJob> jobs) throws InterruptedException{
+		int n = jobs.size();
+		BatchJobResult[] results = new BatchJobResult[n];
+		CountDownLatch done = new CountDownLatch(n);
+		Semaphore pending = new Semaphore(maxPending);
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			pending.acquire();
+			cpuPool.execute(new Generate(jobs.get(i), i, results, done, pending));
+		}
+		done.await();
+		return new BatchResult(Arrays.asList(results), System.nanoTime() - start);
+	}
+
+	/**
+	 * Stops the worker threads once running jobs complete.
+	 */
+	public void shutdown(){
+		cpuPool.shutdown();
+		ioPool.shutdown();
+	}
+
+	/**
+	 * Waits for the worker threads to stop after {@link #shutdown()}.
+	 * 
+	 * @return true if both pools terminated within the timeout
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException{
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		return cpuPool.awaitTermination(timeout, unit)
+				&& ioPool.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * CPU stage: builds the document and serializes it into memory, then hands it to the I/O pool.
+	 */
+	private final class Generate implements Runnable {
+		private final BatchJob job;
+		private final int index;
+		private final BatchJobResult[] results;
+		private final CountDownLatch done;
+		private final Semaphore pending;
+
+		Generate(BatchJob job, int index, BatchJobResult[] results, CountDownLatch done, Semaphore pending){
+			this.job = job;
+			this.index = index;
+			this.results = results;
+			this.done = done;
+			this.pending = pending;
+		}
+
+		public void run(){
+			long start = System.nanoTime();
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+			try {
+				job.build().write(buffer, engine);
+			} catch (Throwable t) {
+				complete(new BatchJobResult(job.getId(), t, 0, System.nanoTime() - start, 0));
+				return;
+			}
+			long generateNanos = System.nanoTime() - start;
+			try {
+				ioPool.execute(new Write(this, buffer, generateNanos));
+			} catch (Throwable t) {
+				complete(new BatchJobResult(job.getId(), t, 0, generateNanos, 0));
+			}
+		}
+
+		void complete(BatchJobResult result){
+			results[index] = result;
+			pending.release();
+			done.countDown();
+		}
+	}
+
+	/**
+	 * I/O stage: writes a serialized document to its destination.
+	 */
+	private static final class Write implements Runnable {
+		private final Generate generated;
+		private final ByteArrayOutputStream buffer;
+		private final long generateNanos;
+
+		Write(Generate generated, ByteArrayOutputStream buffer, long generateNanos){
+			this.generated = generated;
+			this.buffer = buffer;
+			this.generateNanos = generateNanos;
+		}
+
+		public void run(){
+			long start = System.nanoTime();
+			BatchJob job = generated.job;
+			Throwable failure = null;
+			try {
+				OutputStream out = job.openOutput();
+				try {
+					buffer.writeTo(out);
+				} finally {
+					out.close();
+				}
+			} catch (Throwable t) {
+				failure = t;
+			}
+			generated.complete(new BatchJobResult(job.getId(), failure, failure == null ? buffer.size() : 0,
+												   generateNanos, System.nanoTime() - start));
+		}
+	}
+
+	private static final class NamedThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String prefix){
+			this.prefix = prefix;
+		}
+
+		public Thread newThread(Runnable r){
+			Thread thread = new Thread(r, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
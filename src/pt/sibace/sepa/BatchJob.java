@@ -0,0 +1,33 @@
+package pt.sibace.sepa;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * One document to be generated by a {@link BatchGenerator}, typically one file per creditor.
+ *
+ */
+public interface BatchJob {
+
+	/**
+	 * @return identification of the job in results and error reports
+	 */
+	String getId();
+
+	/**
+	 * Builds the document (new DirectDebit, addPaymentGroup...). Called on the CPU pool.
+	 * 
+	 * @return document to write
+	 * @throws Exception
+	 */
+	SepaDocument build() throws Exception;
+
+	/**
+	 * Opens the destination of the document (file, gateway upload, object storage...). Called on the I/O pool;
+	 * the stream is closed by the generator.
+	 * 
+	 * @return destination stream
+	 * @throws IOException
+	 */
+	OutputStream openOutput() throws IOException;
+}
@@ -0,0 +1,66 @@
+package pt.sibace.sepa;
+
+/**
+ * Outcome of one {@link BatchJob}.
+ *
+ */
+public final class BatchJobResult {
+
+	private final String id;
+	private final Throwable failure;
+	private final long bytes;
+	private final long generateNanos;
+	private final long writeNanos;
+
+	BatchJobResult(String id, Throwable failure, long bytes, long generateNanos, long writeNanos){
+		this.id = id;
+		this.failure = failure;
+		this.bytes = bytes;
+		this.generateNanos = generateNanos;
+		this.writeNanos = writeNanos;
+	}
+
+	public String getId(){
+		return id;
+	}
+
+	/**
+	 * @return true if the document was built and written
+	 */
+	public boolean isSuccess(){
+		return failure == null;
+	}
+
+	/**
+	 * @return cause of the failure, or null if the job succeeded
+	 */
+	public Throwable getFailure(){
+		return failure;
+	}
+
+	/**
+	 * @return size of the written document
+	 */
+	public long getBytes(){
+		return bytes;
+	}
+
+	/**
+	 * @return time spent building and serializing the document, in nanoseconds
+	 */
+	public long getGenerateNanos(){
+		return generateNanos;
+	}
+
+	/**
+	 * @return time spent writing the document to its destination, in nanoseconds
+	 */
+	public long getWriteNanos(){
+		return writeNanos;
+	}
+
+	@Override
+	public String toString(){
+		return id + (failure == null ? ": " + bytes + " bytes" : ": failed, " + failure);
+	}
+}
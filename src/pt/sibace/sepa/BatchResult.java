@@ -0,0 +1,121 @@
+package pt.sibace.sepa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Per job results and aggregate statistics of a {@link BatchGenerator} run.
+ *
+ */
+public final class BatchResult {
+
+	private final List<BatchJobResult> results;
+	private final long elapsedNanos;
+	private final int failed;
+	private final long bytes;
+	private final long generateNanos;
+	private final long writeNanos;
+
+	BatchResult(List<BatchJobResult> results, long elapsedNanos){
+		this.results = Collections.unmodifiableList(results);
+		this.elapsedNanos = elapsedNanos;
+		int failed = 0;
+		long bytes = 0;
+		long generateNanos = 0;
+		long writeNanos = 0;
+		for (BatchJobResult result : results) {
+			if (!result.isSuccess()) {
+				failed++;
+			}
+			bytes += result.getBytes();
+			generateNanos += result.getGenerateNanos();
+			writeNanos += result.getWriteNanos();
+		}
+		this.failed = failed;
+		this.bytes = bytes;
+		this.generateNanos = generateNanos;
+		this.writeNanos = writeNanos;
+	}
+
+	/**
+	 * @return one result per job, in submission order
+	 */
+	public List<BatchJobResult> getResults(){
+		return results;
+	}
+
+	/**
+	 * @return results of the jobs that failed
+	 */
+	public List<BatchJobResult> getFailures(){
+		List<BatchJobResult> failures = new ArrayList<BatchJobResult>(failed);
+		for (BatchJobResult result : results) {
+			if (!result.isSuccess()) {
+				failures.add(result);
+			}
+		}
+		return failures;
+	}
+
+	public int getJobs(){
+		return results.size();
+	}
+
+	public int getSucceeded(){
+		return results.size() - failed;
+	}
+
+	public int getFailed(){
+		return failed;
+	}
+
+	/**
+	 * @return total size of the documents written
+	 */
+	public long getBytes(){
+		return bytes;
+	}
+
+	/**
+	 * @return wall clock duration of the run, in nanoseconds
+	 */
+	public long getElapsedNanos(){
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return time spent building and serializing documents, summed over all jobs, in nanoseconds
+	 */
+	public long getGenerateNanos(){
+		return generateNanos;
+	}
+
+	/**
+	 * @return time spent writing documents, summed over all jobs, in nanoseconds
+	 */
+	public long getWriteNanos(){
+		return writeNanos;
+	}
+
+	/**
+	 * @return documents generated per second of wall clock time
+	 */
+	public double getDocumentsPerSecond(){
+		return elapsedNanos == 0 ? 0 : getSucceeded() * 1e9 / elapsedNanos;
+	}
+
+	/**
+	 * @return bytes written per second of wall clock time
+	 */
+	public double getBytesPerSecond(){
+		return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos;
+	}
+
+	@Override
+	public String toString(){
+		return "BatchResult[jobs=" + getJobs() + ", failed=" + failed + ", bytes=" + bytes
+				+ ", elapsedMs=" + elapsedNanos / 1000000
+				+ ", docsPerSecond=" + Math.round(getDocumentsPerSecond()) + "]";
+	}
+}
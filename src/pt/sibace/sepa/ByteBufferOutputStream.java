@@ -0,0 +1,28 @@
+package pt.sibace.sepa;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Output stream writing into a caller supplied (heap or direct) byte buffer. Writing past the buffer limit
+ * throws {@link java.nio.BufferOverflowException}.
+ *
+ */
+final class ByteBufferOutputStream extends OutputStream {
+
+	private final ByteBuffer buffer;
+
+	ByteBufferOutputStream(ByteBuffer buffer){
+		this.buffer = buffer;
+	}
+
+	@Override
+	public void write(int b){
+		buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len){
+		buffer.put(b, off, len);
+	}
+}
@@ -0,0 +1,246 @@
+package pt.sibace.sepa;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Append only pool of strings kept as UTF-8 bytes in a single array, used by the compact transaction stores.
+ * Each string is identified by its entry number. Equal strings can be stored once (deduplicated), which pays off
+ * for columns with repeated values such as BICs.
+ *
+ * Strings are encoded the way {@link XmlByteWriter} encodes them (an unpaired surrogate becomes '?'), so entries are
+ * copied to the output as they are.
+ *
+ */
+final class BytePool {
+
+	// Entry number of null strings
+	static final int NULL = -1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+	private final boolean deduplicate;
+
+	// Encoded strings, back to back
+	private byte[] bytes = new byte[4096];
+	private int size;
+
+	// Start offset of each entry, followed by the end offset of the last one
+	private int[] offsets = new int[256];
+	private int count;
+
+	// Open addressing hash table of entry number + 1 (0 for free slots), only when deduplicating
+	private int[] table;
+
+	/**
+	 * @param deduplicate if equal strings should share one entry
+	 */
+	BytePool(boolean deduplicate){
+		this.deduplicate = deduplicate;
+		if (deduplicate) {
+			table = new int[512];
+		}
+	}
+
+	/**
+	 * @return entry number of the string, or {@link #NULL} for null
+	 */
+	int add(String value){
+		if (value == null) {
+			return NULL;
+		}
+		int start = size;
+		encode(value);
+		int length = size - start;
+		if (deduplicate) {
+			int mask = table.length - 1;
+			for (int slot = hash(start, length) & mask;; slot = (slot + 1) & mask) {
+				int entry = table[slot] - 1;
+				if (entry < 0) {
+					table[slot] = count + 1;
+					break;
+				}
+				if (offsets[entry + 1] - offsets[entry] == length && same(offsets[entry], start, length)) {
+					// Already stored, drop the copy just encoded
+					size = start;
+					return entry;
+				}
+			}
+		}
+		if (count + 2 > offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		}
+		offsets[++count] = size;
+		if (deduplicate && count * 2 > table.length) {
+			rehash();
+		}
+		return count - 1;
+	}
+
+	/**
+	 * @return string of the given entry, null for {@link #NULL}
+	 */
+	String get(int entry){
+		if (entry == NULL) {
+			return null;
+		}
+		return new String(bytes, offsets[entry], offsets[entry + 1] - offsets[entry], UTF8);
+	}
+
+	/**
+	 * Writes a simple element with the string of the given entry. {@link #NULL} entries are omitted, as
+	 * {@link XmlByteWriter#element(byte[], String)} does with null strings.
+	 */
+	void element(XmlByteWriter w, byte[] tag, int entry) throws IOException{
+		if (entry == NULL) {
+			return;
+		}
+		w.start(tag);
+		w.text(bytes, offsets[entry], offsets[entry + 1] - offsets[entry]);
+		w.end(tag);
+	}
+
+	/**
+	 * Checks every entry as an IBAN with {@link Iban}, from the bytes. Entries that are not ASCII are checked as
+	 * strings, so the results are those of {@link Iban#check(CharSequence)}.
+	 * 
+	 * @param pool pool checking the entries in parallel, null to check them in the calling thread
+	 * @return check result of each entry
+	 */
+	byte[] checkIbans(ForkJoinPool pool){
+		byte[] results = new byte[count];
+		if (pool == null || count <= Iban.CHUNK) {
+			checkIbans(results, 0, count);
+		} else {
+			pool.invoke(new IbanChunk(results, 0, count));
+		}
+		return results;
+	}
+
+	/**
+	 * @return number of distinct entries
+	 */
+	int size(){
+		return count;
+	}
+
+	/**
+	 * @return bytes used by the encoded strings
+	 */
+	long byteSize(){
+		return size;
+	}
+
+	private void encode(String value){
+		int length = value.length();
+		if ((long) size + length * 3L > MAX_SIZE) {
+			throw new IllegalStateException("String pool is full");
+		}
+		if (size + length * 3 > bytes.length) {
+			bytes = Arrays.copyOf(bytes, (int) Math.min(MAX_SIZE, Math.max(bytes.length * 2L, size + length * 3L)));
+		}
+		size = encode(value, bytes, size);
+	}
+
+	/**
+	 * Encodes a string in UTF-8 the way {@link XmlByteWriter} does. The target must have room for three bytes
+	 * per char.
+	 *
+	 * @return offset after the encoded bytes
+	 */
+	static int encode(String value, byte[] target, int offset){
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				target[offset++] = (byte) c;
+			} else if (c < 0x800) {
+				target[offset++] = (byte) (0xC0 | (c >> 6));
+				target[offset++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				target[offset++] = (byte) (0xF0 | (cp >> 18));
+				target[offset++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				target[offset++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				target[offset++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				// Unpaired surrogate, not representable in UTF-8
+				target[offset++] = '?';
+			} else {
+				target[offset++] = (byte) (0xE0 | (c >> 12));
+				target[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				target[offset++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return offset;
+	}
+
+	private int hash(int offset, int length){
+		int h = 0;
+		for (int i = offset, end = offset + length; i < end; i++) {
+			h = 31 * h + bytes[i];
+		}
+		// Spread the low bits, the table size is a power of two
+		return h ^ (h >>> 16);
+	}
+
+	private boolean same(int a, int b, int length){
+		for (int i = 0; i < length; i++) {
+			if (bytes[a + i] != bytes[b + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void checkIbans(byte[] results, int from, int to){
+		for (int entry = from; entry < to; entry++) {
+			int offset = offsets[entry];
+			int length = offsets[entry + 1] - offset;
+			results[entry] = (byte) (AsciiScan.isAscii(bytes, offset, length) ? Iban.check(bytes, offset, length) : Iban.check(get(entry)));
+		}
+	}
+
+	private void rehash(){
+		table = new int[table.length * 2];
+		int mask = table.length - 1;
+		for (int entry = 0; entry < count; entry++) {
+			int slot = hash(offsets[entry], offsets[entry + 1] - offsets[entry]) & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = entry + 1;
+		}
+	}
+
+	/**
+	 * Range of entries checked as IBANs, split in halves down to {@link Iban#CHUNK} entries.
+	 */
+	private final class IbanChunk extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final byte[] results;
+		private final int from;
+		private final int to;
+
+		IbanChunk(byte[] results, int from, int to){
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute(){
+			if (to - from <= Iban.CHUNK) {
+				checkIbans(results, from, to);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new IbanChunk(results, from, middle), new IbanChunk(results, middle, to));
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package pt.sibace.sepa;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Column oriented {@link CreditTransferStore}: one amount and four string indexes per transaction, about 25 bytes
+ * plus the pooled strings, instead of the twelve JAXB objects of a CdtTrfTxInf block.
+ *
+ */
+final class CompactCreditTransferStore implements CreditTransferStore {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	// End to end ids are unique, the other strings are often repeated
+	private final BytePool endToEndIds = new BytePool(false);
+	private final BytePool names = new BytePool(true);
+	private final BytePool ibans = new BytePool(true);
+	private final BytePool bics = new BytePool(true);
+
+	private final AmountColumn amounts = new AmountColumn(INITIAL_CAPACITY);
+	private int[] endToEndId = new int[INITIAL_CAPACITY];
+	private int[] name = new int[INITIAL_CAPACITY];
+	private int[] iban = new int[INITIAL_CAPACITY];
+	private int[] bic = new int[INITIAL_CAPACITY];
+	private int size;
+
+	public void add(String endToEndIdentification, BigDecimal amount,
+					String creditorName, String creditorIBAN, String creditorBIC){
+		amounts.add(amount);
+		addStrings(endToEndIdentification, creditorName, creditorIBAN, creditorBIC);
+	}
+
+	public void add(String endToEndIdentification, long amountCents,
+					String creditorName, String creditorIBAN, String creditorBIC){
+		amounts.add(amountCents);
+		addStrings(endToEndIdentification, creditorName, creditorIBAN, creditorBIC);
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public void close(){
+		// Nothing to free, the columns are left to the garbage collector with the group
+	}
+
+	public void write(XmlByteWriter w) throws IOException{
+		for (int i = 0; i < size; i++) {
+			w.start(CreditTransferXml.CDT_TRF_TX_INF);
+			w.start(CreditTransferXml.PMT_ID);
+			endToEndIds.element(w, CreditTransferXml.END_TO_END_ID, endToEndId[i]);
+			w.end(CreditTransferXml.PMT_ID);
+			w.start(CreditTransferXml.AMT);
+			w.start(CreditTransferXml.INSTD_AMT);
+			w.attribute(CreditTransferXml.CCY, "EUR");
+			amounts.text(w, i);
+			w.end(CreditTransferXml.INSTD_AMT);
+			w.end(CreditTransferXml.AMT);
+			w.start(CreditTransferXml.CDTR_AGT);
+			w.start(CreditTransferXml.FIN_INSTN_ID);
+			bics.element(w, CreditTransferXml.BIC, bic[i]);
+			w.end(CreditTransferXml.FIN_INSTN_ID);
+			w.end(CreditTransferXml.CDTR_AGT);
+			w.start(CreditTransferXml.CDTR);
+			names.element(w, CreditTransferXml.NM, name[i]);
+			w.end(CreditTransferXml.CDTR);
+			w.start(CreditTransferXml.CDTR_ACCT);
+			w.start(CreditTransferXml.ID);
+			ibans.element(w, CreditTransferXml.IBAN, iban[i]);
+			w.end(CreditTransferXml.ID);
+			w.end(CreditTransferXml.CDTR_ACCT);
+			w.end(CreditTransferXml.CDT_TRF_TX_INF);
+		}
+	}
+
+	public void checkIbans(String[] target, byte[] results, ForkJoinPool pool){
+		// Each distinct IBAN is checked once, from its bytes
+		byte[] checked = ibans.checkIbans(pool);
+		String[] distinct = new String[ibans.size()];
+		for (int i = 0; i < size; i++) {
+			int entry = iban[i];
+			results[i] = entry == BytePool.NULL ? Iban.MISSING : checked[entry];
+			if (results[i] != Iban.VALID) {
+				target[i] = iban(distinct, entry);
+			}
+		}
+	}
+
+	public void forEach(int from, Visitor visitor) throws IOException{
+		for (int i = from; i < size; i++) {
+			visitor.transaction(endToEndIds.get(endToEndId[i]), amounts.get(i),
+								names.get(name[i]), ibans.get(iban[i]), bics.get(bic[i]));
+		}
+	}
+
+	private String iban(String[] distinct, int entry){
+		if (entry == BytePool.NULL) {
+			return null;
+		}
+		if (distinct[entry] == null) {
+			distinct[entry] = ibans.get(entry);
+		}
+		return distinct[entry];
+	}
+
+	private void addStrings(String endToEndIdentification, String creditorName, String creditorIBAN, String creditorBIC){
+		if (size == endToEndId.length) {
+			int capacity = size * 2;
+			endToEndId = Arrays.copyOf(endToEndId, capacity);
+			name = Arrays.copyOf(name, capacity);
+			iban = Arrays.copyOf(iban, capacity);
+			bic = Arrays.copyOf(bic, capacity);
+		}
+		endToEndId[size] = endToEndIds.add(endToEndIdentification);
+		name[size] = names.add(creditorName);
+		iban[size] = ibans.add(creditorIBAN);
+		bic[size] = bics.add(creditorBIC);
+		size++;
+	}
+}
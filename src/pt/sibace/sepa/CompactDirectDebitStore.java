@@ -0,0 +1,194 @@
+package pt.sibace.sepa;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Column oriented {@link DirectDebitStore}: one amount, a mandate date, amendment flags and six string indexes per
+ * transaction, instead of the twenty or so JAXB objects of a DrctDbtTxInf block.
+ *
+ */
+final class CompactDirectDebitStore implements DirectDebitStore {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final byte DEBTOR_BANK_CHANGED = 1;
+	private static final byte DEBTOR_ACCOUNT_CHANGED = 2;
+
+	// End to end ids and mandate ids are unique, the other strings are often repeated
+	private final BytePool endToEndIds = new BytePool(false);
+	private final BytePool mandateIds = new BytePool(false);
+	private final BytePool names = new BytePool(true);
+	private final BytePool ibans = new BytePool(true);
+	private final BytePool bics = new BytePool(true);
+
+	private final AmountColumn amounts = new AmountColumn(INITIAL_CAPACITY);
+	private int[] endToEndId = new int[INITIAL_CAPACITY];
+	private int[] mandateId = new int[INITIAL_CAPACITY];
+	// Mandate signature dates, as yyyyMMdd
+	private int[] mandateDate = new int[INITIAL_CAPACITY];
+	private int[] name = new int[INITIAL_CAPACITY];
+	private int[] iban = new int[INITIAL_CAPACITY];
+	private int[] bic = new int[INITIAL_CAPACITY];
+	private int[] originalIban = new int[INITIAL_CAPACITY];
+	private byte[] amendment = new byte[INITIAL_CAPACITY];
+	private int size;
+
+	public void add(String endToEndIdentification, BigDecimal amount,
+					String mandateId, Date mandateDate,
+					String debtorName, String debtorIBAN, String debtorBIC,
+					boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN){
+		int date = SepaUtils.yyyymmdd(mandateDate);
+		amounts.add(amount);
+		addRow(endToEndIdentification, mandateId, date, debtorName, debtorIBAN, debtorBIC,
+			   debtorBankChanged, debtorAccountChanged, originalIBAN);
+	}
+
+	public void add(String endToEndIdentification, long amountCents,
+					String mandateId, Date mandateDate,
+					String debtorName, String debtorIBAN, String debtorBIC,
+					boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN){
+		int date = SepaUtils.yyyymmdd(mandateDate);
+		amounts.add(amountCents);
+		addRow(endToEndIdentification, mandateId, date, debtorName, debtorIBAN, debtorBIC,
+			   debtorBankChanged, debtorAccountChanged, originalIBAN);
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public void close(){
+		// Nothing to free, the columns are left to the garbage collector with the group
+	}
+
+	public void write(XmlByteWriter w) throws IOException{
+		for (int i = 0; i < size; i++) {
+			w.start(DirectDebitXml.DRCT_DBT_TX_INF);
+			w.start(DirectDebitXml.PMT_ID);
+			endToEndIds.element(w, DirectDebitXml.END_TO_END_ID, endToEndId[i]);
+			w.end(DirectDebitXml.PMT_ID);
+			w.start(DirectDebitXml.INSTD_AMT);
+			w.attribute(DirectDebitXml.CCY, "EUR");
+			amounts.text(w, i);
+			w.end(DirectDebitXml.INSTD_AMT);
+			w.start(DirectDebitXml.DRCT_DBT_TX);
+			w.start(DirectDebitXml.MNDT_RLTD_INF);
+			mandateIds.element(w, DirectDebitXml.MNDT_ID, mandateId[i]);
+			w.start(DirectDebitXml.DT_OF_SGNTR);
+			w.date(mandateDate[i]);
+			w.end(DirectDebitXml.DT_OF_SGNTR);
+			if ((amendment[i] & DEBTOR_BANK_CHANGED) != 0) {
+				w.element(DirectDebitXml.AMDMNT_IND, "true");
+				w.start(DirectDebitXml.AMDMNT_INF_DTLS);
+				w.start(DirectDebitXml.ORGNL_DBTR_AGT);
+				w.start(DirectDebitXml.FIN_INSTN_ID);
+				w.start(DirectDebitXml.OTHR);
+				w.element(DirectDebitXml.ID, DirectDebitXml.SAME_MANDATE_NEW_DEBTOR_AGENT);
+				w.end(DirectDebitXml.OTHR);
+				w.end(DirectDebitXml.FIN_INSTN_ID);
+				w.end(DirectDebitXml.ORGNL_DBTR_AGT);
+				w.end(DirectDebitXml.AMDMNT_INF_DTLS);
+			} else if ((amendment[i] & DEBTOR_ACCOUNT_CHANGED) != 0) {
+				w.element(DirectDebitXml.AMDMNT_IND, "true");
+				w.start(DirectDebitXml.AMDMNT_INF_DTLS);
+				account(w, DirectDebitXml.ORGNL_DBTR_ACCT, originalIban[i]);
+				w.end(DirectDebitXml.AMDMNT_INF_DTLS);
+			}
+			w.end(DirectDebitXml.MNDT_RLTD_INF);
+			w.end(DirectDebitXml.DRCT_DBT_TX);
+			w.start(DirectDebitXml.DBTR_AGT);
+			w.start(DirectDebitXml.FIN_INSTN_ID);
+			bics.element(w, DirectDebitXml.BIC, bic[i]);
+			w.end(DirectDebitXml.FIN_INSTN_ID);
+			w.end(DirectDebitXml.DBTR_AGT);
+			w.start(DirectDebitXml.DBTR);
+			names.element(w, DirectDebitXml.NM, name[i]);
+			w.end(DirectDebitXml.DBTR);
+			account(w, DirectDebitXml.DBTR_ACCT, iban[i]);
+			w.end(DirectDebitXml.DRCT_DBT_TX_INF);
+		}
+	}
+
+	public int checkIbans(String[] debtorIBANs, byte[] debtorResults, String[] originalIBANs, byte[] originalResults,
+						  ForkJoinPool pool){
+		// Each distinct IBAN is checked once, from its bytes
+		byte[] checked = ibans.checkIbans(pool);
+		String[] distinct = new String[ibans.size()];
+		int count = size;
+		for (int i = 0; i < size; i++) {
+			int entry = iban[i];
+			debtorResults[i] = entry == BytePool.NULL ? Iban.MISSING : checked[entry];
+			if (debtorResults[i] != Iban.VALID) {
+				debtorIBANs[i] = iban(distinct, entry);
+			}
+			if (amendment[i] == DEBTOR_ACCOUNT_CHANGED) {
+				count++;
+				entry = originalIban[i];
+				originalResults[i] = entry == BytePool.NULL ? Iban.MISSING : checked[entry];
+				if (originalResults[i] != Iban.VALID) {
+					originalIBANs[i] = iban(distinct, entry);
+				}
+			}
+		}
+		return count;
+	}
+
+	public void forEach(int from, Visitor visitor) throws IOException{
+		for (int i = from; i < size; i++) {
+			int date = mandateDate[i];
+			visitor.transaction(endToEndIds.get(endToEndId[i]), amounts.get(i),
+								mandateIds.get(mandateId[i]),
+								SepaUtils.sharedISODate(date / 10000, date / 100 % 100, date % 100),
+								names.get(name[i]), ibans.get(iban[i]), bics.get(bic[i]),
+								(amendment[i] & DEBTOR_BANK_CHANGED) != 0, (amendment[i] & DEBTOR_ACCOUNT_CHANGED) != 0,
+								ibans.get(originalIban[i]));
+		}
+	}
+
+	private void account(XmlByteWriter w, byte[] tag, int entry) throws IOException{
+		w.start(tag);
+		w.start(DirectDebitXml.ID);
+		ibans.element(w, DirectDebitXml.IBAN, entry);
+		w.end(DirectDebitXml.ID);
+		w.end(tag);
+	}
+
+	private String iban(String[] distinct, int entry){
+		if (entry == BytePool.NULL) {
+			return null;
+		}
+		if (distinct[entry] == null) {
+			distinct[entry] = ibans.get(entry);
+		}
+		return distinct[entry];
+	}
+
+	private void addRow(String endToEndIdentification, String mandateIdentification, int date,
+						String debtorName, String debtorIBAN, String debtorBIC,
+						boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN){
+		if (size == endToEndId.length) {
+			int capacity = size * 2;
+			endToEndId = Arrays.copyOf(endToEndId, capacity);
+			mandateId = Arrays.copyOf(mandateId, capacity);
+			mandateDate = Arrays.copyOf(mandateDate, capacity);
+			name = Arrays.copyOf(name, capacity);
+			iban = Arrays.copyOf(iban, capacity);
+			bic = Arrays.copyOf(bic, capacity);
+			originalIban = Arrays.copyOf(originalIban, capacity);
+			amendment = Arrays.copyOf(amendment, capacity);
+		}
+		endToEndId[size] = endToEndIds.add(endToEndIdentification);
+		mandateId[size] = mandateIds.add(mandateIdentification);
+		mandateDate[size] = date;
+		name[size] = names.add(debtorName);
+		iban[size] = ibans.add(debtorIBAN);
+		bic[size] = bics.add(debtorBIC);
+		originalIban[size] = ibans.add(originalIBAN);
+		amendment[size] = (byte) ((debtorBankChanged ? DEBTOR_BANK_CHANGED : 0) | (debtorAccountChanged ? DEBTOR_ACCOUNT_CHANGED : 0));
+		size++;
+	}
+}
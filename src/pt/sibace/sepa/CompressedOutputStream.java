@@ -0,0 +1,181 @@
+package pt.sibace.sepa;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Output stream compressing everything written to it, as configured by a {@link Compression}, and counting
+ * raw (uncompressed) and compressed bytes.
+ *
+ */
+public class CompressedOutputStream extends OutputStream {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Compression compression;
+	private final CountingOutputStream sink;
+	private final DeflaterOutputStream deflater;
+	private final Deflater def;
+	private long rawBytes;
+	private boolean finished;
+
+	CompressedOutputStream(OutputStream out, Compression compression) throws IOException{
+		this.compression = compression;
+		// Compressed bytes reach the destination in large writes, whatever the format
+		this.sink = new CountingOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+		int level = compression.getLevel();
+		if (compression.getFormat() == Compression.Format.ZIP) {
+			Zip zip = new Zip(sink);
+			try {
+				zip.setLevel(level);
+				zip.putNextEntry(new ZipEntry(compression.getEntryName()));
+			} catch (IOException e) {
+				zip.deflater().end();
+				throw e;
+			}
+			this.deflater = zip;
+			this.def = zip.deflater();
+		} else {
+			Gzip gzip = new Gzip(sink, level);
+			this.deflater = gzip;
+			this.def = gzip.deflater();
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException{
+		deflater.write(b);
+		rawBytes++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException{
+		deflater.write(b, off, len);
+		rawBytes += len;
+	}
+
+	@Override
+	public void flush() throws IOException{
+		deflater.flush();
+	}
+
+	/**
+	 * Completes the compressed content (gzip trailer, zip entry and central directory) without closing the
+	 * destination. Nothing can be written afterwards.
+	 * 
+	 * @throws IOException
+	 */
+	public void finish() throws IOException{
+		if (finished) {
+			return;
+		}
+		finished = true;
+		if (deflater instanceof ZipOutputStream) {
+			((ZipOutputStream) deflater).closeEntry();
+		}
+		deflater.finish();
+		sink.flush();
+	}
+
+	/**
+	 * Completes the compressed content and closes the destination. The compressor is released even if
+	 * completing fails.
+	 */
+	@Override
+	public void close() throws IOException{
+		try {
+			finish();
+		} finally {
+			end();
+			sink.close();
+		}
+	}
+
+	/**
+	 * Releases the native memory of the compressor without writing or closing anything: once finished, or
+	 * after a failed write into a destination that stays open. Nothing can be written afterwards.
+	 */
+	void end(){
+		finished = true;
+		def.end();
+	}
+
+	public Compression getCompression(){
+		return compression;
+	}
+
+	/**
+	 * @return bytes written to this stream, before compression
+	 */
+	public long getRawBytes(){
+		return rawBytes;
+	}
+
+	/**
+	 * @return bytes written to the destination, including gzip or zip headers
+	 */
+	public long getCompressedBytes(){
+		return sink.count;
+	}
+
+	/**
+	 * @return byte counts written so far
+	 */
+	public CompressionStats getStats(){
+		return new CompressionStats(compression, rawBytes, sink.count);
+	}
+
+	/**
+	 * Gzip stream at a given level, giving access to its compressor.
+	 */
+	private static final class Gzip extends GZIPOutputStream {
+		Gzip(OutputStream out, int level) throws IOException{
+			super(out, BUFFER_SIZE);
+			def.setLevel(level);
+		}
+
+		Deflater deflater(){
+			return def;
+		}
+	}
+
+	/**
+	 * Zip stream giving access to its compressor.
+	 */
+	private static final class Zip extends ZipOutputStream {
+		Zip(OutputStream out){
+			super(out);
+		}
+
+		Deflater deflater(){
+			return def;
+		}
+	}
+
+	private static final class CountingOutputStream extends FilterOutputStream {
+		private long count;
+
+		CountingOutputStream(OutputStream out){
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException{
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException{
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
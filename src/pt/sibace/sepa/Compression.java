@@ -0,0 +1,90 @@
+package pt.sibace.sepa;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Compression applied while a document is written, so archived files do not have to be read back and
+ * compressed in a second pass.
+ * 
+ * Usage:
+ * <pre>
+ * CompressionStats stats = ct.write("/full/path/filename.sepa.xml.gz", XmlEngine.DIRECT, Compression.gzip(6));
+ * </pre>
+ *
+ */
+public final class Compression {
+
+	/**
+	 * Compressed container format
+	 */
+	public enum Format {
+		/** Single gzip member */
+		GZIP,
+		/** Zip archive with a single entry */
+		ZIP
+	}
+
+	private final Format format;
+	private final int level;
+	private final String entryName;
+
+	private Compression(Format format, int level, String entryName){
+		if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid deflate level: " + level);
+		}
+		this.format = format;
+		this.level = level;
+		this.entryName = entryName;
+	}
+
+	/**
+	 * @param level deflate level, 0 (none) to 9 (best), or -1 for the default level
+	 * @return gzip compression
+	 */
+	public static Compression gzip(int level){
+		return new Compression(Format.GZIP, level, null);
+	}
+
+	/**
+	 * @param entryName name of the document inside the zip archive
+	 * @param level deflate level, 0 (none) to 9 (best), or -1 for the default level
+	 * @return zip compression, with the document as the only entry
+	 */
+	public static Compression zip(String entryName, int level){
+		if (entryName == null || entryName.length() == 0) {
+			throw new IllegalArgumentException("Zip entry name is required");
+		}
+		return new Compression(Format.ZIP, level, entryName);
+	}
+
+	public Format getFormat(){
+		return format;
+	}
+
+	public int getLevel(){
+		return level;
+	}
+
+	public String getEntryName(){
+		return entryName;
+	}
+
+	/**
+	 * Opens a compressing stream on top of the given destination. Useful to compress the output of the
+	 * streaming builders, which take an OutputStream.
+	 * 
+	 * @param out destination of the compressed bytes
+	 * @return compressing stream; {@link CompressedOutputStream#close()} closes the destination
+	 * @throws IOException
+	 */
+	public CompressedOutputStream open(OutputStream out) throws IOException{
+		return new CompressedOutputStream(out, this);
+	}
+
+	@Override
+	public String toString(){
+		return format == Format.ZIP ? "zip(" + entryName + ", " + level + ")" : "gzip(" + level + ")";
+	}
+}
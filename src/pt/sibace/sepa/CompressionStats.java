@@ -0,0 +1,48 @@
+package pt.sibace.sepa;
+
+/**
+ * Raw and compressed byte counts of a document written with {@link Compression}.
+ *
+ */
+public final class CompressionStats {
+
+	private final Compression compression;
+	private final long rawBytes;
+	private final long compressedBytes;
+
+	CompressionStats(Compression compression, long rawBytes, long compressedBytes){
+		this.compression = compression;
+		this.rawBytes = rawBytes;
+		this.compressedBytes = compressedBytes;
+	}
+
+	public Compression getCompression(){
+		return compression;
+	}
+
+	/**
+	 * @return size of the XML document
+	 */
+	public long getRawBytes(){
+		return rawBytes;
+	}
+
+	/**
+	 * @return size of the compressed output
+	 */
+	public long getCompressedBytes(){
+		return compressedBytes;
+	}
+
+	/**
+	 * @return raw size divided by compressed size (20 means 20:1)
+	 */
+	public double getRatio(){
+		return compressedBytes == 0 ? 0 : (double) rawBytes / compressedBytes;
+	}
+
+	@Override
+	public String toString(){
+		return compression + ": " + rawBytes + " -> " + compressedBytes + " bytes";
+	}
+}
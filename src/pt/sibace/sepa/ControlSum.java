@@ -0,0 +1,99 @@
+package pt.sibace.sepa;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Mutable CtrlSum accumulator. Amounts with up to two decimal places, the only ones SEPA accepts, are added as a
+ * long number of cents, so adding a transaction does not allocate; the BigDecimal is only built when the total
+ * is written.
+ *
+ * The total is formatted the way adding the amounts as BigDecimals would: its scale is the largest scale added.
+ * Amounts with more than two decimal places are kept aside, exactly, as a BigDecimal.
+ *
+ */
+final class ControlSum {
+
+	private static final long[] CENTS_PER_UNIT = { 100, 10, 1 };
+
+	private long cents;
+	// Largest scale added, between 0 and 2
+	private int scale;
+	// Sum of the amounts that are not a whole number of cents, or null if none
+	private BigDecimal exact;
+
+	void add(long amountCents){
+		cents += amountCents;
+		scale = 2;
+	}
+
+	void add(BigDecimal amount){
+		int amountScale = amount.scale();
+		if (amountScale >= 0 && amountScale <= 2) {
+			BigInteger unscaled = amount.unscaledValue();
+			if (unscaled.bitLength() < 56) {
+				cents += unscaled.longValue() * CENTS_PER_UNIT[amountScale];
+				if (amountScale > scale) {
+					scale = amountScale;
+				}
+				return;
+			}
+		} else if (amountScale < 0 && amount.precision() - amountScale < 17) {
+			// Whole number written with an exponent (1E+3)
+			cents += amount.longValue() * 100;
+			return;
+		}
+		exact = exact == null ? amount : exact.add(amount);
+	}
+
+	void add(ControlSum sum){
+		cents += sum.cents;
+		if (sum.scale > scale) {
+			scale = sum.scale;
+		}
+		if (sum.exact != null) {
+			exact = exact == null ? sum.exact : exact.add(sum.exact);
+		}
+	}
+
+	/**
+	 * Copies another sum into this one.
+	 */
+	void set(ControlSum sum){
+		cents = sum.cents;
+		scale = sum.scale;
+		exact = sum.exact;
+	}
+
+	void clear(){
+		cents = 0;
+		scale = 0;
+		exact = null;
+	}
+
+	/**
+	 * @param limit
+	 * @param limitCents the limit in cents, rounded down
+	 * @return true if the sum is greater than the limit
+	 */
+	boolean isAbove(BigDecimal limit, long limitCents){
+		if (exact == null) {
+			return cents > limitCents;
+		}
+		return toBigDecimal().compareTo(limit) > 0;
+	}
+
+	BigDecimal toBigDecimal(){
+		BigDecimal sum = BigDecimal.valueOf(cents, 2);
+		if (scale < 2) {
+			// Exact, all amounts added had this scale or less
+			sum = sum.setScale(scale);
+		}
+		return exact == null ? sum : sum.add(exact);
+	}
+
+	@Override
+	public String toString(){
+		return toBigDecimal().toPlainString();
+	}
+}
@@ -2,15 +2,21 @@ package pt.sibace.sepa;
 
 import iso.std.iso._20022.tech.xsd.pain_001_001_03.*;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
+import javax.xml.validation.Schema;
 
 /**
  * Helper class to build and save a SEPA Credit Transfer document, using the pain.001.001.03 xml file format, 
@@ -21,10 +27,25 @@ import javax.xml.bind.Marshaller;
  *  
  * @author "Joao Osorio <joao.osorio@sibace.pt>"
  */
-public class CreditTransfer {
+public class CreditTransfer implements SepaDocument {
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
 	
 	private Document document;
 	
+	// Group header counters, set on the group header when the document is written
+	private int nbOfTxs;
+	private final ControlSum ctrlSum = new ControlSum();
+	
+	// Payment groups added, whose counters are set on their payment information when the document is written
+	private final List<CreditTransferPaymentGroup> paymentGroups = new ArrayList<CreditTransferPaymentGroup>();
+	
+	// Schema the document is validated against while written, null for none
+	private Schema schema;
+	
+	// Hashes of the ids of the payment groups added, to find ids repeated between groups
+	private final IdHashSet endToEndIds = new IdHashSet();
+	
 	/**
 	 * Initialize a SEPA Credit Transfer Document
 	 * Sets GroupHeader with supplied arguments.
@@ -33,6 +54,18 @@ public class CreditTransfer {
 	 * @param companyName
 	 */
 	public CreditTransfer(String msgId, String companyName){
+		this(msgId, companyName, false);
+	}
+	
+	/**
+	 * Initialize a SEPA Credit Transfer Document, optionally turning the company name into SEPA characters with
+	 * {@link Transliteration} (cut to 70 characters).
+	 * 
+	 * @param msgId
+	 * @param companyName
+	 * @param transliterate true to replace the characters of the company name outside the SEPA set
+	 */
+	public CreditTransfer(String msgId, String companyName, boolean transliterate){
 		// Initialize document
 		document = new Document();
 		
@@ -48,15 +81,11 @@ public class CreditTransfer {
 		// Set creation date
 		groupHeader.setCreDtTm(SepaUtils.ISODateTime(new Date()));
 	    
-	    // Set number of transactions
-		groupHeader.setNbOfTxs("0");
-		
-		// Set control Sum
-		groupHeader.setCtrlSum(BigDecimal.ZERO);
+	    // Number of transactions and control sum are set when the document is written
 		
 		// Set party identification - based on name only
 		PartyIdentification32 party = new PartyIdentification32();
-		party.setNm(companyName);
+		party.setNm(transliterate ? Transliteration.toSepa(companyName, FieldRules.Field.NAME) : companyName);
 		groupHeader.setInitgPty(party);
 		
 		// Add group header to document
@@ -70,17 +99,27 @@ public class CreditTransfer {
 	 */
 	public void addPaymentGroup(CreditTransferPaymentGroup paymentGroup){
 		// Add group do document
-		document.getCstmrCdtTrfInitn().getPmtInf().add(paymentGroup.getInformation());
+		document.getCstmrCdtTrfInitn().getPmtInf().add(paymentGroup.paymentGroup);
+		paymentGroups.add(paymentGroup);
+		paymentGroup.addIds(endToEndIds);
 
-		// Update number of transactions in document's group header
-		int gpCount = Integer.parseInt(document.getCstmrCdtTrfInitn().getGrpHdr().getNbOfTxs());
-		int pmtCount = Integer.parseInt(paymentGroup.getInformation().getNbOfTxs());
-		document.getCstmrCdtTrfInitn().getGrpHdr().setNbOfTxs(Integer.toString(gpCount+pmtCount));
-		
-		// Update control sum in document's group header
-		BigDecimal newSum = document.getCstmrCdtTrfInitn().getGrpHdr().getCtrlSum()
-									.add(paymentGroup.getInformation().getCtrlSum());
-		document.getCstmrCdtTrfInitn().getGrpHdr().setCtrlSum(newSum);
+		// Update number of transactions and control sum in document's group header
+		nbOfTxs += paymentGroup.getNbOfTxs();
+		ctrlSum.add(paymentGroup.getControlSum());
+	}
+	
+	/**
+	 * Puts the EndToEndIds of all transactions in the filter, once the document is written, so that files reusing
+	 * them later are reported as {@link FieldRules#SEEN_BEFORE}. Payment groups only read the filter, so a document
+	 * built again, or never sent, does not find its own ids. Groups with off-heap storage must not be closed yet.
+	 * 
+	 * @param usedIds filter of the ids of the files written
+	 * @throws IOException if transactions kept off-heap cannot be read back
+	 */
+	public void putIds(IdBloomFilter usedIds) throws IOException{
+		for (int i = 0; i < paymentGroups.size(); i++) {
+			paymentGroups.get(i).putIds(usedIds);
+		}
 	}
 	
 	/**
@@ -92,13 +131,279 @@ public class CreditTransfer {
 	 * 
 	 */
 	public void write(String fileName) throws JAXBException, IOException{
-		FileWriter file = new FileWriter(fileName);
-		JAXBContext jc = JAXBContext.newInstance(Document.class);
-		Marshaller marshaller = jc.createMarshaller();
-        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-        marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
-        marshaller.marshal(new ObjectFactory().createDocument(document), new BufferedWriter(file));
-        file.close();
+		write(fileName, XmlEngine.JAXB);
+	}
+	
+	/**
+	 * Writes SEPA Credit Transfer document to file, using the given serializer
+	 * 
+	 * @param fileName System dependent file name
+	 * @param engine serializer to use
+	 * @throws JAXBException
+	 * @throws IOException 
+	 * 
+	 */
+	public void write(String fileName, XmlEngine engine) throws JAXBException, IOException{
+		OutputStream file = new BufferedOutputStream(new FileOutputStream(fileName), BUFFER_SIZE);
+		try {
+			write(file, engine);
+		} finally {
+			file.close();
+		}
+	}
+	
+	/**
+	 * Writes SEPA Credit Transfer document to a compressed file, in a single pass
+	 * 
+	 * @param fileName System dependent file name
+	 * @param engine serializer to use
+	 * @param compression compression format and level
+	 * @return raw and compressed byte counts
+	 * @throws JAXBException
+	 * @throws IOException
+	 */
+	public CompressionStats write(String fileName, XmlEngine engine, Compression compression) throws JAXBException, IOException{
+		FileOutputStream out = new FileOutputStream(fileName);
+		CompressedOutputStream file = null;
+		try {
+			file = compression.open(out);
+		} finally {
+			// A failed open (writing the gzip header...) must not leave the file open
+			if (file == null) {
+				out.close();
+			}
+		}
+		try {
+			write(file, engine);
+			file.finish();
+		} finally {
+			file.close();
+		}
+		return file.getStats();
+	}
+	
+	/**
+	 * Writes SEPA Credit Transfer document to a stream, compressed in a single pass. The compressed content is 
+	 * completed (gzip trailer or zip directory) but the stream is not closed.
+	 * 
+	 * @param out
+	 * @param engine serializer to use
+	 * @param compression compression format and level
+	 * @return raw and compressed byte counts
+	 * @throws JAXBException
+	 * @throws IOException
+	 */
+	public CompressionStats write(OutputStream out, XmlEngine engine, Compression compression) throws JAXBException, IOException{
+		CompressedOutputStream compressed = compression.open(out);
+		try {
+			write(compressed, engine);
+			compressed.finish();
+		} finally {
+			compressed.end();
+		}
+		return compressed.getStats();
+	}
+	
+	/**
+	 * Writes SEPA Credit Transfer document to a stream, encoded in UTF-8. The stream is flushed but not closed.
+	 * 
+	 * @param out
+	 * @throws JAXBException
+	 * @throws IOException
+	 */
+	public void write(OutputStream out) throws JAXBException, IOException{
+		write(out, XmlEngine.JAXB);
+	}
+	
+	/**
+	 * Writes SEPA Credit Transfer document to a stream, encoded in UTF-8, using the given serializer. 
+	 * The stream is flushed but not closed.
+	 * 
+	 * @param out
+	 * @param engine serializer to use
+	 * @throws JAXBException
+	 * @throws IOException
+	 */
+	public void write(OutputStream out, XmlEngine engine) throws JAXBException, IOException{
+		if (schema == null) {
+			writeDocument(out, engine);
+			return;
+		}
+		ValidatingOutputStream validated = new ValidatingOutputStream(out, schema);
+		try {
+			writeDocument(validated, engine);
+			validated.finish();
+		} finally {
+			validated.close();
+		}
+	}
+	
+	/**
+	 * Validates the document against the given schema while it is written, in the same pass, by all the write
+	 * methods but the split ones. A document that does not validate is still written in full, and the write then
+	 * throws a {@link SchemaValidationException} with the problems found and the EndToEndId of their transactions.
+	 * 
+	 * @param schema compiled schema, usually from {@link SchemaValidation#schema(java.net.URL)}; null to stop validating
+	 */
+	public void setSchema(Schema schema){
+		this.schema = schema;
+	}
+	
+	private void writeDocument(OutputStream out, XmlEngine engine) throws JAXBException, IOException{
+		updateCounters();
+		if (engine == XmlEngine.DIRECT || engine == XmlEngine.PARALLEL) {
+			XmlByteWriter w = XmlByteWriter.acquire(out);
+			try {
+				CreditTransferXml.write(document, paymentGroups, w, engine == XmlEngine.PARALLEL ? ForkJoinPool.commonPool() : null);
+				w.flush();
+			} finally {
+				w.release();
+			}
+		} else {
+			// Groups with compact storage create their JAXB transactions
+			for (int i = 0, n = paymentGroups.size(); i < n; i++) {
+				paymentGroups.get(i).getInformation();
+			}
+			MarshallerEngine.getInstance().marshal(Document.class, new ObjectFactory().createDocument(document), out);
+			out.flush();
+		}
+	}
+	
+	/**
+	 * Writes SEPA Credit Transfer document as one or more files, so that each file is within the given limits.
+	 * Each file has its own group header totals and a derived MsgId, as described in {@link StreamingCreditTransfer}.
+	 * 
+	 * @param output destination of the files
+	 * @param limits file limits
+	 * @return number of files written
+	 * @throws IOException
+	 */
+	public int write(SplitOutput output, SplitLimits limits) throws IOException{
+		GroupHeader32 header = document.getCstmrCdtTrfInitn().getGrpHdr();
+		StreamingCreditTransfer files = new StreamingCreditTransfer(header.getMsgId(), name(header.getInitgPty()),
+																	 output, limits, null);
+		try {
+			for (CreditTransferPaymentGroup paymentGroup : paymentGroups) {
+				PaymentInstructionInformation3 group = paymentGroup.paymentGroup;
+				final StreamingCreditTransferPaymentGroup target = files.addPaymentGroup(group.getPmtInfId(),
+																				   group.getReqdExctnDt().toGregorianCalendar().getTime(),
+																				   name(group.getDbtr()),
+																				   iban(group.getDbtrAcct()),
+																				   bic(group.getDbtrAgt()));
+				if (paymentGroup.store != null) {
+					paymentGroup.store.forEach(0, new CreditTransferStore.Visitor() {
+						public void transaction(String endToEndIdentification, BigDecimal amount,
+												String creditorName, String creditorIBAN, String creditorBIC) throws IOException{
+							target.addTransaction(endToEndIdentification, amount, creditorName, creditorIBAN, creditorBIC);
+						}
+					});
+					continue;
+				}
+				for (CreditTransferTransactionInformation10 transaction : group.getCdtTrfTxInf()) {
+					target.addTransaction(transaction.getPmtId().getEndToEndId(),
+										  transaction.getAmt().getInstdAmt().getValue(),
+										  name(transaction.getCdtr()),
+										  iban(transaction.getCdtrAcct()),
+										  bic(transaction.getCdtrAgt()));
+				}
+			}
+			files.close();
+		} finally {
+			files.discard();
+		}
+		return files.getFileCount();
+	}
+	
+	/**
+	 * Writes SEPA Credit Transfer document to a channel (socket, file, upload...), encoded in UTF-8.
+	 * The channel is not closed.
+	 * 
+	 * @param channel
+	 * @throws JAXBException
+	 * @throws IOException
+	 */
+	public void write(WritableByteChannel channel) throws JAXBException, IOException{
+		write(channel, XmlEngine.JAXB);
+	}
+	
+	/**
+	 * Writes SEPA Credit Transfer document to a channel (socket, file, upload...), encoded in UTF-8, 
+	 * using the given serializer. The channel is not closed.
+	 * 
+	 * @param channel
+	 * @param engine serializer to use
+	 * @throws JAXBException
+	 * @throws IOException
+	 */
+	public void write(WritableByteChannel channel, XmlEngine engine) throws JAXBException, IOException{
+		write(Channels.newOutputStream(channel), engine);
+	}
+	
+	/**
+	 * Writes SEPA Credit Transfer document into a caller supplied buffer (usually a direct buffer), encoded in UTF-8,
+	 * starting at its current position.
+	 * 
+	 * @param buffer
+	 * @return number of bytes written; the buffer position is advanced by the same amount
+	 * @throws JAXBException
+	 * @throws IOException
+	 * @throws java.nio.BufferOverflowException if the document does not fit in the remaining space
+	 */
+	public int write(ByteBuffer buffer) throws JAXBException, IOException{
+		return write(buffer, XmlEngine.JAXB);
+	}
+	
+	/**
+	 * Writes SEPA Credit Transfer document into a caller supplied buffer (usually a direct buffer), encoded in UTF-8,
+	 * starting at its current position, using the given serializer.
+	 * 
+	 * @param buffer
+	 * @param engine serializer to use
+	 * @return number of bytes written; the buffer position is advanced by the same amount
+	 * @throws JAXBException
+	 * @throws IOException
+	 * @throws java.nio.BufferOverflowException if the document does not fit in the remaining space
+	 */
+	public int write(ByteBuffer buffer, XmlEngine engine) throws JAXBException, IOException{
+		int start = buffer.position();
+		write(new ByteBufferOutputStream(buffer), engine);
+		return buffer.position() - start;
+	}
+	
+	/**
+	 * @return number of agent, account and party subtrees the payment groups of this document share instead of
+	 * creating them, with the number of objects saved
+	 */
+	public FlyweightReport getFlyweightReport(){
+		FlyweightReport report = new FlyweightReport();
+		for (int i = 0, n = paymentGroups.size(); i < n; i++) {
+			report.add(paymentGroups.get(i).getFlyweightReport());
+		}
+		return report;
+	}
+	
+	/**
+	 * Sets the counters kept while building on the group header and payment groups.
+	 */
+	private void updateCounters(){
+		GroupHeader32 header = document.getCstmrCdtTrfInitn().getGrpHdr();
+		header.setNbOfTxs(Integer.toString(nbOfTxs));
+		header.setCtrlSum(ctrlSum.toBigDecimal());
+		for (int i = 0, n = paymentGroups.size(); i < n; i++) {
+			paymentGroups.get(i).updateCounters();
+		}
+	}
+	
+	private static String name(PartyIdentification32 party){
+		return party == null ? null : party.getNm();
+	}
+	
+	private static String iban(CashAccount16 account){
+		return account == null || account.getId() == null ? null : account.getId().getIBAN();
+	}
+	
+	private static String bic(BranchAndFinancialInstitutionIdentification4 agent){
+		return agent == null || agent.getFinInstnId() == null ? null : agent.getFinInstnId().getBIC();
 	}
 	
 }
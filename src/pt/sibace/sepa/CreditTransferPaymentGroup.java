@@ -1,26 +1,147 @@
 package pt.sibace.sepa;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import iso.std.iso._20022.tech.xsd.pain_001_001_03.*;
 
 /**
  * Helper class to build a Credit Transfer payment group. A payment group holds a collection of payment transactions.
  *  
+ * Agent, account and party subtrees are shared between the transactions of the group with the same BIC, IBAN or
+ * name, unless turned off with {@link #setSharedSubtrees(boolean)}.
  * 
  * @author "Joao Osorio <joao.osorio@sibace.pt>"
  *
  */
-public class CreditTransferPaymentGroup {
+public class CreditTransferPaymentGroup implements Closeable {
 
+	// Subtrees shared by the transactions of this group, by BIC, IBAN or name, unless turned off
+	private final FlyweightCache<String, PartyIdentification32> parties =
+			new FlyweightCache<String, PartyIdentification32>(FlyweightReport.Subtree.PARTY, 16384) {
+		PartyIdentification32 create(String name){
+			PartyIdentification32 party = new PartyIdentification32();
+			party.setNm(name);
+			return party;
+		}
+	};
+
+	private final FlyweightCache<String, CashAccount16> accounts =
+			new FlyweightCache<String, CashAccount16>(FlyweightReport.Subtree.ACCOUNT, 16384) {
+		CashAccount16 create(String iban){
+			CashAccount16 account = new CashAccount16();
+			AccountIdentification4Choice accountId = new AccountIdentification4Choice();
+			accountId.setIBAN(iban);
+			account.setId(accountId);
+			return account;
+		}
+	};
+
+	private final FlyweightCache<String, BranchAndFinancialInstitutionIdentification4> agents =
+			new FlyweightCache<String, BranchAndFinancialInstitutionIdentification4>(FlyweightReport.Subtree.AGENT, 1024) {
+		BranchAndFinancialInstitutionIdentification4 create(String bic){
+			BranchAndFinancialInstitutionIdentification4 agent = new BranchAndFinancialInstitutionIdentification4();
+			FinancialInstitutionIdentification7 finId = new FinancialInstitutionIdentification7();
+			finId.setBIC(bic);
+			agent.setFinInstnId(finId);
+			return agent;
+		}
+	};
+
+	// Amount in cents of the transactions added with a BigDecimal amount
+	private static final long NOT_CENTS = Long.MIN_VALUE;
+	
 	// Payment information (PmtInf) object for credit transfers
 	PaymentInstructionInformation3 paymentGroup;
 	
+	// Group counters, set on the payment information by getInformation()
+	private int nbOfTxs;
+	private final ControlSum ctrlSum = new ControlSum();
+	
+	// Transactions kept outside the JAXB tree, null with JAXB storage
+	final CreditTransferStore store;
+	
+	// Stored transactions already added to the JAXB tree
+	private int materialized;
+	
+	// Subtrees this group took from the caches instead of creating them
+	private final FlyweightReport flyweights = new FlyweightReport();
+	private boolean shareSubtrees = true;
+	
+	// Problems found by FieldRules in the fields given, checked unless turned off
+	private final RuleViolations violations = new RuleViolations();
+	private boolean checkFields = true;
+	
+	// Names and ids given are turned into SEPA characters, if asked when created
+	private final boolean transliterate;
+	
+	// Hashes of the ids added, to find duplicates in the document, and filter of the ids of earlier files
+	private boolean checkDuplicates;
+	private final IdHashSet endToEndIds = new IdHashSet();
+	private IdBloomFilter usedIds;
+	
 	
 	public CreditTransferPaymentGroup(String pmtInfId, Date reqDate, 
 									  String debtorName, String debtorIBAN, String debtorBIC)
 	{
+		this(pmtInfId, reqDate, debtorName, debtorIBAN, debtorBIC, TransactionStorage.JAXB);
+	}
+	
+	/**
+	 * Creates a payment group keeping its transactions in the given storage.
+	 */
+	public CreditTransferPaymentGroup(String pmtInfId, Date reqDate, 
+									  String debtorName, String debtorIBAN, String debtorBIC,
+									  TransactionStorage storage)
+	{
+		this(pmtInfId, reqDate, debtorName, debtorIBAN, debtorBIC, storage, null);
+	}
+	
+	/**
+	 * Creates a payment group keeping its transactions in the given storage. Groups with
+	 * {@link TransactionStorage#OFF_HEAP} storage must be closed once written, to delete their scratch file.
+	 * 
+	 * @param scratchDirectory directory for the scratch file, or null for the system temporary directory
+	 */
+	public CreditTransferPaymentGroup(String pmtInfId, Date reqDate, 
+									  String debtorName, String debtorIBAN, String debtorBIC,
+									  TransactionStorage storage, File scratchDirectory)
+	{
+		this(pmtInfId, reqDate, debtorName, debtorIBAN, debtorBIC, storage, scratchDirectory, false);
+	}
+	
+	/**
+	 * Creates a payment group keeping its transactions in the given storage, optionally turning the names and ids
+	 * of the group and of its transactions into SEPA characters with {@link Transliteration}. Names are then cut to
+	 * 70 characters; ids are never cut, too long ones are reported by the field checks.
+	 * 
+	 * @param scratchDirectory directory for the scratch file, or null for the system temporary directory
+	 * @param transliterate true to replace the characters outside the SEPA set, false to keep them (and have them
+	 * reported by the field checks)
+	 */
+	public CreditTransferPaymentGroup(String pmtInfId, Date reqDate, 
+									  String debtorName, String debtorIBAN, String debtorBIC,
+									  TransactionStorage storage, File scratchDirectory, boolean transliterate)
+	{
+		this.transliterate = transliterate;
+		if (transliterate) {
+			// Only SEPA characters in names and ids
+			pmtInfId = Transliteration.toSepa(pmtInfId, FieldRules.Field.PAYMENT_INFORMATION_ID);
+			debtorName = Transliteration.toSepa(debtorName, FieldRules.Field.NAME);
+		}
+		
+		// Check the fields of the group
+		violations.check(RuleViolations.PAYMENT_GROUP, FieldRules.Field.PAYMENT_INFORMATION_ID, pmtInfId);
+		violations.check(RuleViolations.PAYMENT_GROUP, FieldRules.Field.NAME, debtorName);
+		violations.check(RuleViolations.PAYMENT_GROUP, FieldRules.Field.IBAN, debtorIBAN);
+		violations.check(RuleViolations.PAYMENT_GROUP, FieldRules.Field.BIC, debtorBIC);
+		
 		paymentGroup = new PaymentInstructionInformation3();
 
 		// Set payment information id
@@ -29,10 +150,6 @@ public class CreditTransferPaymentGroup {
 		// Set payment method - always TRF
 		paymentGroup.setPmtMtd(PaymentMethod3Code.TRF);
 		
-		// Initialize counters
-		paymentGroup.setNbOfTxs("0");
-		paymentGroup.setCtrlSum(BigDecimal.ZERO);
-		
 		// Set requested execution date
 		paymentGroup.setReqdExctnDt(SepaUtils.ISODate(reqDate));
 	    
@@ -43,17 +160,325 @@ public class CreditTransferPaymentGroup {
 	    paymentGroup.setDbtrAcct(createAccount(debtorIBAN));
 	    
 	    // Set debtor agent
-	    paymentGroup.setDbtrAgt(createAgent(debtorBIC));	 
-	    	    	    
+	    paymentGroup.setDbtrAgt(createAgent(debtorBIC));
+	    
+		// Repeated ids are looked for only when the transactions are on the heap anyway
+		checkDuplicates = storage != TransactionStorage.COMPACT && storage != TransactionStorage.OFF_HEAP;
+		
+		// Storage last, so that a scratch file is never left behind by a bad argument
+		if (storage == TransactionStorage.COMPACT) {
+			store = new CompactCreditTransferStore();
+		} else if (storage == TransactionStorage.OFF_HEAP) {
+			store = new OffHeapCreditTransferStore(scratchDirectory);
+		} else {
+			store = null;
+		}
 	}
 	
+	/**
+	 * @return payment information, with NbOfTxs and CtrlSum of the transactions added so far. With compact or
+	 * off-heap storage, the JAXB objects of the transactions are created by this call. Their agent, account and
+	 * party objects are shared by the transactions of this group with the same BIC, IBAN or name, never with other
+	 * groups: a change made to one shows in all of those transactions, unless sharing was turned off with
+	 * {@link #setSharedSubtrees(boolean)}.
+	 */
 	public PaymentInstructionInformation3 getInformation(){
+		updateCounters();
+		if (store != null && materialized < store.size()) {
+			try {
+				store.forEach(materialized, new CreditTransferStore.Visitor() {
+					public void transaction(String endToEndIdentification, BigDecimal amount,
+											String creditorName, String creditorIBAN, String creditorBIC){
+						createTransaction(endToEndIdentification, amount, creditorName, creditorIBAN, creditorBIC);
+					}
+				});
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			materialized = store.size();
+		}
 		return paymentGroup;
 	}
+	
+	/**
+	 * Sets NbOfTxs and CtrlSum on the payment information.
+	 */
+	void updateCounters(){
+		paymentGroup.setNbOfTxs(Integer.toString(nbOfTxs));
+		paymentGroup.setCtrlSum(ctrlSum.toBigDecimal());
+	}
+	
+	/**
+	 * Writes the PmtInf block, straight from the store with compact or off-heap storage. Counters must be up to date.
+	 */
+	void write(XmlByteWriter w) throws IOException{
+		if (store == null) {
+			CreditTransferXml.paymentGroup(w, paymentGroup);
+		} else {
+			CreditTransferXml.startPaymentGroup(w, paymentGroup);
+			store.write(w);
+			CreditTransferXml.endPaymentGroup(w);
+		}
+	}
+	
+	/**
+	 * Frees the transaction storage: deletes the scratch file of {@link TransactionStorage#OFF_HEAP} groups, does
+	 * nothing for other storages. The group can no longer be written afterwards. Safe to call more than once.
+	 */
+	public void close(){
+		if (store != null) {
+			store.close();
+		}
+	}
+	
+	/**
+	 * @return number of transactions added so far
+	 */
+	public int getNbOfTxs(){
+		return nbOfTxs;
+	}
+	
+	/**
+	 * @return sum of the transaction amounts added so far
+	 */
+	public BigDecimal getCtrlSum(){
+		return ctrlSum.toBigDecimal();
+	}
+	
+	/**
+	 * @return number of agent, account and party subtrees this group shares instead of creating them
+	 */
+	public FlyweightReport getFlyweightReport(){
+		FlyweightReport report = new FlyweightReport();
+		report.add(flyweights);
+		return report;
+	}
+	
+	/**
+	 * Turns the sharing of agent, account and party subtrees between the transactions of this group on or off for
+	 * the transactions created from now on (on by default). Turn it off when the objects returned by
+	 * {@link #getInformation()} are modified.
+	 */
+	public void setSharedSubtrees(boolean shareSubtrees){
+		this.shareSubtrees = shareSubtrees;
+	}
+	
+	/**
+	 * Checks the debtor IBAN and the creditor IBANs of all transactions with {@link Iban}, in parallel in the
+	 * common pool.
+	 * 
+	 * @return number of IBANs checked and the invalid ones
+	 */
+	public IbanReport checkIbans(){
+		return checkIbans(ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Checks the debtor IBAN and the creditor IBANs of all transactions with {@link Iban}. Transactions kept with
+	 * compact or off-heap storage are checked from the store, without creating their JAXB objects.
+	 * 
+	 * @param pool pool checking the IBANs in parallel, null to check them in the calling thread
+	 * @return number of IBANs checked and the invalid ones
+	 */
+	public IbanReport checkIbans(ForkJoinPool pool){
+		final IbanReport report = new IbanReport();
+		String debtorIBAN = iban(paymentGroup.getDbtrAcct());
+		int result = Iban.check(debtorIBAN);
+		if (result != Iban.VALID) {
+			report.invalid(null, debtorIBAN, result);
+		}
+		report.checked(1);
+		
+		// Creditor IBANs, gathered first so they can be checked in parallel
+		final String[] ibans = new String[nbOfTxs];
+		final byte[] results = new byte[nbOfTxs];
+		List<CreditTransferTransactionInformation10> transactions = paymentGroup.getCdtTrfTxInf();
+		try {
+			if (store != null) {
+				store.checkIbans(ibans, results, pool);
+			} else {
+				for (int i = 0; i < ibans.length; i++) {
+					ibans[i] = iban(transactions.get(i).getCdtrAcct());
+				}
+				Iban.check(ibans, results, pool);
+			}
+			report.checked(ibans.length);
+			if (!valid(results)) {
+				if (store != null) {
+					store.forEach(0, new CreditTransferStore.Visitor() {
+						private int row;
+						
+						public void transaction(String endToEndIdentification, BigDecimal amount,
+												String creditorName, String creditorIBAN, String creditorBIC){
+							if (results[row] != Iban.VALID) {
+								report.invalid(endToEndIdentification, ibans[row], results[row]);
+							}
+							row++;
+						}
+					});
+				} else {
+					for (int i = 0; i < results.length; i++) {
+						if (results[i] != Iban.VALID) {
+							report.invalid(transactions.get(i).getPmtId().getEndToEndId(), ibans[i], results[i]);
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return report;
+	}
+	
+	/**
+	 * @return problems found so far by {@link FieldRules} in the fields of the group and of its transactions
+	 */
+	public RuleViolations getRuleViolations(){
+		return violations;
+	}
+	
+	/**
+	 * Turns the {@link FieldRules} checks of the transactions added from now on on or off (on by default).
+	 */
+	public void setFieldChecks(boolean checkFields){
+		this.checkFields = checkFields;
+	}
+	
+	/**
+	 * Turns the search for EndToEndIds repeated in the document, reported as {@link FieldRules#DUPLICATE}, on or off
+	 * for the transactions added from now on. It is on by default with {@link TransactionStorage#JAXB} storage and
+	 * off with compact and off-heap storage, as the hash of every id is kept on the heap (16 to 32 bytes per id, and
+	 * as much again in the document); turning it on for those groups makes their heap grow with the number of
+	 * transactions.
+	 */
+	public void setDuplicateChecks(boolean checkDuplicates){
+		this.checkDuplicates = checkDuplicates;
+	}
+	
+	/**
+	 * Checks the EndToEndIds of the transactions added from now on against the ids of earlier files. Ids the filter
+	 * may have seen are reported as {@link FieldRules#SEEN_BEFORE}. Nothing is put in the filter here: the ids of
+	 * a file are put once it is written, see {@link CreditTransfer#putIds(IdBloomFilter)}.
+	 * 
+	 * @param usedIds filter shared by the files checked together, null to stop checking
+	 */
+	public void setUsedIds(IdBloomFilter usedIds){
+		this.usedIds = usedIds;
+	}
+	
+	/**
+	 * Adds the ids of this group to those of the payment groups already in the document, reporting the ids used
+	 * by both as {@link FieldRules#DUPLICATE}. Only ids added while duplicate checks were on are known.
+	 */
+	void addIds(IdHashSet documentEndToEndIds){
+		addIds(documentEndToEndIds, endToEndIds, FieldRules.Field.END_TO_END_ID);
+	}
+	
+	private void addIds(IdHashSet documentIds, IdHashSet ids, FieldRules.Field field){
+		int[] duplicates = new int[ids.size()];
+		int count = documentIds.addAll(ids, duplicates);
+		for (int i = 0; i < count; i++) {
+			violations.add(duplicates[i], FieldRules.code(field, FieldRules.DUPLICATE));
+		}
+	}
+	
+	/**
+	 * Puts the EndToEndIds of all transactions in the filter. Stored transactions are read back from the store.
+	 */
+	void putIds(final IdBloomFilter filter) throws IOException{
+		if (store != null) {
+			store.forEach(0, new CreditTransferStore.Visitor() {
+				public void transaction(String endToEndIdentification, BigDecimal amount,
+										String creditorName, String creditorIBAN, String creditorBIC){
+					filter.put(endToEndIdentification);
+				}
+			});
+		} else {
+			for (CreditTransferTransactionInformation10 transaction : paymentGroup.getCdtTrfTxInf()) {
+				filter.put(transaction.getPmtId().getEndToEndId());
+			}
+		}
+	}
+	
+	ControlSum getControlSum(){
+		return ctrlSum;
+	}
 		
 	public void addTransaction(String endToEndIdentification, BigDecimal amount,
 							   String creditorName, String creditorIBAN, String creditorBIC)
 	{	
+		addTransaction(endToEndIdentification, amount, NOT_CENTS, creditorName, creditorIBAN, creditorBIC);
+	}
+	
+	/**
+	 * Adds a transaction with the amount in euro cents (1050 for 10.50).
+	 */
+	public void addTransaction(String endToEndIdentification, long amountCents,
+							   String creditorName, String creditorIBAN, String creditorBIC)
+	{	
+		addTransaction(endToEndIdentification, BigDecimal.valueOf(amountCents, 2), amountCents,
+					   creditorName, creditorIBAN, creditorBIC);
+	}
+	
+	/**
+	 * Adds a transaction given either way: every check and counter of the group goes through here.
+	 * 
+	 * @param amountCents the amount in cents, kept as a long by the store and the control sum, or NOT_CENTS
+	 */
+	private void addTransaction(String endToEndIdentification, BigDecimal amount, long amountCents,
+								String creditorName, String creditorIBAN, String creditorBIC)
+	{
+		if (transliterate) {
+			endToEndIdentification = Transliteration.toSepa(endToEndIdentification, FieldRules.Field.END_TO_END_ID);
+			creditorName = Transliteration.toSepa(creditorName, FieldRules.Field.NAME);
+		}
+		if (checkFields) {
+			checkFields(endToEndIdentification, creditorName, creditorIBAN, creditorBIC);
+		}
+		if (checkDuplicates || usedIds != null) {
+			checkIds(endToEndIdentification);
+		}
+		if (store == null) {
+			createTransaction(endToEndIdentification, amount, creditorName, creditorIBAN, creditorBIC);
+		} else if (amountCents != NOT_CENTS) {
+			store.add(endToEndIdentification, amountCents, creditorName, creditorIBAN, creditorBIC);
+		} else {
+			store.add(endToEndIdentification, amount, creditorName, creditorIBAN, creditorBIC);
+		}
+		
+		// Update counters
+		nbOfTxs++;
+		if (amountCents != NOT_CENTS) {
+			ctrlSum.add(amountCents);
+		} else {
+			ctrlSum.add(amount);
+		}
+	}
+	
+	private void checkFields(String endToEndIdentification, String creditorName, String creditorIBAN, String creditorBIC){
+		violations.check(nbOfTxs, FieldRules.Field.END_TO_END_ID, endToEndIdentification);
+		violations.check(nbOfTxs, FieldRules.Field.NAME, creditorName);
+		violations.check(nbOfTxs, FieldRules.Field.IBAN, creditorIBAN);
+		violations.check(nbOfTxs, FieldRules.Field.BIC, creditorBIC);
+	}
+	
+	/**
+	 * Looks for an id already used in the group or, through the filter, in earlier files.
+	 */
+	private void checkIds(String endToEndIdentification){
+		if (endToEndIdentification != null) {
+			long hash = IdHashSet.hash(endToEndIdentification);
+			if (checkDuplicates && endToEndIds.add(hash, nbOfTxs) >= 0) {
+				violations.add(nbOfTxs, FieldRules.code(FieldRules.Field.END_TO_END_ID, FieldRules.DUPLICATE));
+			} else if (usedIds != null && usedIds.mightContainHash(hash)) {
+				violations.add(nbOfTxs, FieldRules.code(FieldRules.Field.END_TO_END_ID, FieldRules.SEEN_BEFORE));
+			}
+		}
+	}
+	
+	private void createTransaction(String endToEndIdentification, BigDecimal amount,
+								   String creditorName, String creditorIBAN, String creditorBIC)
+	{
 		CreditTransferTransactionInformation10 transaction = new CreditTransferTransactionInformation10();
 
 		// Set transaction id
@@ -84,33 +509,31 @@ public class CreditTransferPaymentGroup {
 				
 		// Add transaction to payment group
 		paymentGroup.getCdtTrfTxInf().add(transaction);
-		
-		// Update counters
-		int numTxs=Integer.parseInt(paymentGroup.getNbOfTxs()) + 1;
-		paymentGroup.setNbOfTxs(Integer.toString(numTxs));
-		paymentGroup.setCtrlSum(paymentGroup.getCtrlSum().add(amount));
+	}
+	
+	private static boolean valid(byte[] results){
+		for (byte result : results) {
+			if (result != Iban.VALID) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static String iban(CashAccount16 account){
+		return account == null || account.getId() == null ? null : account.getId().getIBAN();
 	}
 	
 	private PartyIdentification32 createParty(String name){
-		PartyIdentification32 party = new PartyIdentification32();
-		party.setNm(name);
-		return party;
+		return shareSubtrees ? parties.get(name, flyweights) : parties.create(name);
 	}
 	
 	private CashAccount16 createAccount(String iban){
-		CashAccount16 account = new CashAccount16();
-		AccountIdentification4Choice accountId = new AccountIdentification4Choice();
-		accountId.setIBAN(iban);
-		account.setId(accountId);
-		return account;		
+		return shareSubtrees ? accounts.get(iban, flyweights) : accounts.create(iban);
 	}
 
 	private BranchAndFinancialInstitutionIdentification4 createAgent(String bic){
-		BranchAndFinancialInstitutionIdentification4 agent = new BranchAndFinancialInstitutionIdentification4();
-		FinancialInstitutionIdentification7 finId = new FinancialInstitutionIdentification7();
-		finId.setBIC(bic);
-		agent.setFinInstnId(finId);
-		return agent;
+		return shareSubtrees ? agents.get(bic, flyweights) : agents.create(bic);
 	}
 
 }
@@ -0,0 +1,55 @@
+package pt.sibace.sepa;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Transactions of a {@link CreditTransferPaymentGroup} kept outside the JAXB tree.
+ *
+ */
+interface CreditTransferStore {
+
+	void add(String endToEndIdentification, BigDecimal amount,
+			 String creditorName, String creditorIBAN, String creditorBIC);
+
+	void add(String endToEndIdentification, long amountCents,
+			 String creditorName, String creditorIBAN, String creditorBIC);
+
+	/**
+	 * @return number of transactions stored
+	 */
+	int size();
+
+	/**
+	 * Writes the CdtTrfTxInf blocks of all transactions, in the order they were added.
+	 */
+	void write(XmlByteWriter w) throws IOException;
+
+	/**
+	 * Reads the transactions back, in the order they were added.
+	 * 
+	 * @param from first transaction to read
+	 * @param visitor receiver of the transactions
+	 */
+	void forEach(int from, Visitor visitor) throws IOException;
+
+	/**
+	 * Checks the creditor IBAN of each transaction with {@link Iban}, in the order they were added.
+	 * 
+	 * @param ibans receives the IBANs, at least those found invalid
+	 * @param results receives the check results
+	 * @param pool pool checking the IBANs in parallel, null to check them in the calling thread
+	 */
+	void checkIbans(String[] ibans, byte[] results, ForkJoinPool pool) throws IOException;
+
+	/**
+	 * Frees the storage. The transactions can no longer be read or written.
+	 */
+	void close();
+
+	interface Visitor {
+		void transaction(String endToEndIdentification, BigDecimal amount,
+						 String creditorName, String creditorIBAN, String creditorBIC) throws IOException;
+	}
+}
@@ -0,0 +1,319 @@
+package pt.sibace.sepa;
+
+import iso.std.iso._20022.tech.xsd.pain_001_001_03.AccountIdentification4Choice;
+import iso.std.iso._20022.tech.xsd.pain_001_001_03.ActiveOrHistoricCurrencyAndAmount;
+import iso.std.iso._20022.tech.xsd.pain_001_001_03.AmountType3Choice;
+import iso.std.iso._20022.tech.xsd.pain_001_001_03.BranchAndFinancialInstitutionIdentification4;
+import iso.std.iso._20022.tech.xsd.pain_001_001_03.CashAccount16;
+import iso.std.iso._20022.tech.xsd.pain_001_001_03.CreditTransferTransactionInformation10;
+import iso.std.iso._20022.tech.xsd.pain_001_001_03.Document;
+import iso.std.iso._20022.tech.xsd.pain_001_001_03.FinancialInstitutionIdentification7;
+import iso.std.iso._20022.tech.xsd.pain_001_001_03.GroupHeader32;
+import iso.std.iso._20022.tech.xsd.pain_001_001_03.PartyIdentification32;
+import iso.std.iso._20022.tech.xsd.pain_001_001_03.PaymentIdentification1;
+import iso.std.iso._20022.tech.xsd.pain_001_001_03.PaymentInstructionInformation3;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * Writes the pain.001.001.03 blocks produced by {@link CreditTransfer} and {@link CreditTransferPaymentGroup}
+ * with an {@link XmlByteWriter}, in the same element order and layout as the JAXB marshaller.
+ *
+ * {@link #write(Document, List, XmlByteWriter, ForkJoinPool)} serializes a whole document without going through
+ * JAXB. It covers the elements the builders set; other optional elements of the schema, if set directly on the JAXB
+ * objects, are not written and require the JAXB engine.
+ *
+ */
+final class CreditTransferXml {
+
+	static final String NAMESPACE = "urn:iso:std:iso:20022:tech:xsd:pain.001.001.03";
+
+	// Depth of a PmtInf element inside the document
+	static final int PAYMENT_GROUP_DEPTH = 2;
+
+	// Depth of a CdtTrfTxInf element inside the document
+	static final int TRANSACTION_DEPTH = 3;
+
+	static final byte[] DOCUMENT = XmlByteWriter.tag("Document");
+	static final byte[] XMLNS = XmlByteWriter.tag("xmlns");
+	static final byte[] CSTMR_CDT_TRF_INITN = XmlByteWriter.tag("CstmrCdtTrfInitn");
+	static final byte[] GRP_HDR = XmlByteWriter.tag("GrpHdr");
+	static final byte[] MSG_ID = XmlByteWriter.tag("MsgId");
+	static final byte[] CRE_DT_TM = XmlByteWriter.tag("CreDtTm");
+	static final byte[] NB_OF_TXS = XmlByteWriter.tag("NbOfTxs");
+	static final byte[] CTRL_SUM = XmlByteWriter.tag("CtrlSum");
+	static final byte[] INITG_PTY = XmlByteWriter.tag("InitgPty");
+	static final byte[] PMT_INF = XmlByteWriter.tag("PmtInf");
+	static final byte[] PMT_INF_ID = XmlByteWriter.tag("PmtInfId");
+	static final byte[] PMT_MTD = XmlByteWriter.tag("PmtMtd");
+	static final byte[] REQD_EXCTN_DT = XmlByteWriter.tag("ReqdExctnDt");
+	static final byte[] DBTR = XmlByteWriter.tag("Dbtr");
+	static final byte[] DBTR_ACCT = XmlByteWriter.tag("DbtrAcct");
+	static final byte[] DBTR_AGT = XmlByteWriter.tag("DbtrAgt");
+	static final byte[] CDT_TRF_TX_INF = XmlByteWriter.tag("CdtTrfTxInf");
+	static final byte[] PMT_ID = XmlByteWriter.tag("PmtId");
+	static final byte[] END_TO_END_ID = XmlByteWriter.tag("EndToEndId");
+	static final byte[] AMT = XmlByteWriter.tag("Amt");
+	static final byte[] INSTD_AMT = XmlByteWriter.tag("InstdAmt");
+	static final byte[] CCY = XmlByteWriter.tag("Ccy");
+	static final byte[] CDTR_AGT = XmlByteWriter.tag("CdtrAgt");
+	static final byte[] CDTR = XmlByteWriter.tag("Cdtr");
+	static final byte[] CDTR_ACCT = XmlByteWriter.tag("CdtrAcct");
+	static final byte[] NM = XmlByteWriter.tag("Nm");
+	static final byte[] ID = XmlByteWriter.tag("Id");
+	static final byte[] IBAN = XmlByteWriter.tag("IBAN");
+	static final byte[] FIN_INSTN_ID = XmlByteWriter.tag("FinInstnId");
+	static final byte[] BIC = XmlByteWriter.tag("BIC");
+
+	private CreditTransferXml(){
+	}
+
+	/**
+	 * Writes the XML declaration, opens the document and writes the group header.
+	 */
+	static void startDocument(XmlByteWriter w, String msgId, XMLGregorianCalendar creDtTm,
+							  String nbOfTxs, BigDecimal ctrlSum, String companyName) throws IOException{
+		w.declaration();
+		w.start(DOCUMENT);
+		w.attribute(XMLNS, NAMESPACE);
+		w.start(CSTMR_CDT_TRF_INITN);
+		w.start(GRP_HDR);
+		w.element(MSG_ID, msgId);
+		w.element(CRE_DT_TM, creDtTm);
+		w.element(NB_OF_TXS, nbOfTxs);
+		w.element(CTRL_SUM, ctrlSum);
+		w.start(INITG_PTY);
+		w.element(NM, companyName);
+		w.end(INITG_PTY);
+		w.end(GRP_HDR);
+	}
+
+	static void endDocument(XmlByteWriter w) throws IOException{
+		w.end(CSTMR_CDT_TRF_INITN);
+		w.end(DOCUMENT);
+		w.endDocument();
+	}
+
+	/**
+	 * Opens a PmtInf block and writes everything up to the first transaction.
+	 */
+	static void startPaymentGroup(XmlByteWriter w, String pmtInfId, String nbOfTxs, BigDecimal ctrlSum,
+								  XMLGregorianCalendar reqdExctnDt,
+								  String debtorName, String debtorIBAN, String debtorBIC) throws IOException{
+		w.start(PMT_INF);
+		w.element(PMT_INF_ID, pmtInfId);
+		w.element(PMT_MTD, "TRF");
+		w.element(NB_OF_TXS, nbOfTxs);
+		w.element(CTRL_SUM, ctrlSum);
+		w.element(REQD_EXCTN_DT, reqdExctnDt);
+		party(w, DBTR, debtorName);
+		account(w, DBTR_ACCT, debtorIBAN);
+		agent(w, DBTR_AGT, debtorBIC);
+	}
+
+	static void endPaymentGroup(XmlByteWriter w) throws IOException{
+		w.end(PMT_INF);
+	}
+
+	/**
+	 * Writes one CdtTrfTxInf block, as built by {@link CreditTransferPaymentGroup#addTransaction}.
+	 */
+	static void transaction(XmlByteWriter w, String endToEndIdentification, BigDecimal amount,
+							String creditorName, String creditorIBAN, String creditorBIC) throws IOException{
+		startTransaction(w, endToEndIdentification);
+		if (amount != null) {
+			w.text(amount.toPlainString());
+		}
+		endTransaction(w, creditorName, creditorIBAN, creditorBIC);
+	}
+
+	/**
+	 * Writes one CdtTrfTxInf block with an amount given in cents.
+	 */
+	static void transaction(XmlByteWriter w, String endToEndIdentification, long amountCents,
+							String creditorName, String creditorIBAN, String creditorBIC) throws IOException{
+		startTransaction(w, endToEndIdentification);
+		w.text(amountCents, 2);
+		endTransaction(w, creditorName, creditorIBAN, creditorBIC);
+	}
+
+	/**
+	 * Writes a CdtTrfTxInf block up to the InstdAmt value.
+	 */
+	private static void startTransaction(XmlByteWriter w, String endToEndIdentification) throws IOException{
+		w.start(CDT_TRF_TX_INF);
+		w.start(PMT_ID);
+		w.element(END_TO_END_ID, endToEndIdentification);
+		w.end(PMT_ID);
+		w.start(AMT);
+		w.start(INSTD_AMT);
+		w.attribute(CCY, "EUR");
+	}
+
+	private static void endTransaction(XmlByteWriter w, String creditorName, String creditorIBAN, String creditorBIC) throws IOException{
+		w.end(INSTD_AMT);
+		w.end(AMT);
+		agent(w, CDTR_AGT, creditorBIC);
+		party(w, CDTR, creditorName);
+		account(w, CDTR_ACCT, creditorIBAN);
+		w.end(CDT_TRF_TX_INF);
+	}
+
+	static void party(XmlByteWriter w, byte[] tag, String name) throws IOException{
+		w.start(tag);
+		w.element(NM, name);
+		w.end(tag);
+	}
+
+	static void account(XmlByteWriter w, byte[] tag, String iban) throws IOException{
+		w.start(tag);
+		w.start(ID);
+		w.element(IBAN, iban);
+		w.end(ID);
+		w.end(tag);
+	}
+
+	static void agent(XmlByteWriter w, byte[] tag, String bic) throws IOException{
+		w.start(tag);
+		w.start(FIN_INSTN_ID);
+		w.element(BIC, bic);
+		w.end(FIN_INSTN_ID);
+		w.end(tag);
+	}
+
+	/**
+	 * Serializes a document built by {@link CreditTransfer}: the group header from the document tree and the
+	 * payment groups from their builders, so that groups with compact storage are written without JAXB objects.
+	 *
+	 * @param pool pool used to encode payment groups, or null to encode them on the calling thread
+	 */
+	static void write(Document document, List<CreditTransferPaymentGroup> groups, XmlByteWriter w, ForkJoinPool pool) throws IOException{
+		w.declaration();
+		w.start(DOCUMENT);
+		w.attribute(XMLNS, NAMESPACE);
+		w.start(CSTMR_CDT_TRF_INITN);
+		groupHeader(w, document.getCstmrCdtTrfInitn().getGrpHdr());
+		if (pool != null && groups.size() > 1) {
+			new FragmentWriter<CreditTransferPaymentGroup>(pool, PAYMENT_GROUP_DEPTH) {
+				void encode(CreditTransferPaymentGroup group, XmlByteWriter fragment) throws IOException{
+					group.write(fragment);
+				}
+			}.write(groups, w);
+		} else {
+			for (int i = 0, n = groups.size(); i < n; i++) {
+				groups.get(i).write(w);
+			}
+		}
+		w.end(CSTMR_CDT_TRF_INITN);
+		w.end(DOCUMENT);
+		w.endDocument();
+	}
+
+	static void groupHeader(XmlByteWriter w, GroupHeader32 header) throws IOException{
+		if (header == null) {
+			return;
+		}
+		w.start(GRP_HDR);
+		w.element(MSG_ID, header.getMsgId());
+		w.element(CRE_DT_TM, header.getCreDtTm());
+		w.element(NB_OF_TXS, header.getNbOfTxs());
+		w.element(CTRL_SUM, header.getCtrlSum());
+		party(w, INITG_PTY, header.getInitgPty());
+		w.end(GRP_HDR);
+	}
+
+	static void paymentGroup(XmlByteWriter w, PaymentInstructionInformation3 group) throws IOException{
+		startPaymentGroup(w, group);
+		List<CreditTransferTransactionInformation10> transactions = group.getCdtTrfTxInf();
+		for (int i = 0, n = transactions.size(); i < n; i++) {
+			transaction(w, transactions.get(i));
+		}
+		w.end(PMT_INF);
+	}
+
+	/**
+	 * Opens a PmtInf block and writes the payment information elements, up to the first transaction.
+	 */
+	static void startPaymentGroup(XmlByteWriter w, PaymentInstructionInformation3 group) throws IOException{
+		w.start(PMT_INF);
+		w.element(PMT_INF_ID, group.getPmtInfId());
+		if (group.getPmtMtd() != null) {
+			w.element(PMT_MTD, group.getPmtMtd().value());
+		}
+		w.element(NB_OF_TXS, group.getNbOfTxs());
+		w.element(CTRL_SUM, group.getCtrlSum());
+		w.element(REQD_EXCTN_DT, group.getReqdExctnDt());
+		party(w, DBTR, group.getDbtr());
+		account(w, DBTR_ACCT, group.getDbtrAcct());
+		agent(w, DBTR_AGT, group.getDbtrAgt());
+	}
+
+	static void transaction(XmlByteWriter w, CreditTransferTransactionInformation10 transaction) throws IOException{
+		w.start(CDT_TRF_TX_INF);
+		PaymentIdentification1 pmtId = transaction.getPmtId();
+		if (pmtId != null) {
+			w.start(PMT_ID);
+			w.element(END_TO_END_ID, pmtId.getEndToEndId());
+			w.end(PMT_ID);
+		}
+		AmountType3Choice amt = transaction.getAmt();
+		if (amt != null) {
+			w.start(AMT);
+			ActiveOrHistoricCurrencyAndAmount instdAmt = amt.getInstdAmt();
+			if (instdAmt != null) {
+				w.start(INSTD_AMT);
+				if (instdAmt.getCcy() != null) {
+					w.attribute(CCY, instdAmt.getCcy());
+				}
+				if (instdAmt.getValue() != null) {
+					w.text(instdAmt.getValue().toPlainString());
+				}
+				w.end(INSTD_AMT);
+			}
+			w.end(AMT);
+		}
+		agent(w, CDTR_AGT, transaction.getCdtrAgt());
+		party(w, CDTR, transaction.getCdtr());
+		account(w, CDTR_ACCT, transaction.getCdtrAcct());
+		w.end(CDT_TRF_TX_INF);
+	}
+
+	static void party(XmlByteWriter w, byte[] tag, PartyIdentification32 party) throws IOException{
+		if (party != null) {
+			party(w, tag, party.getNm());
+		}
+	}
+
+	static void account(XmlByteWriter w, byte[] tag, CashAccount16 account) throws IOException{
+		if (account == null) {
+			return;
+		}
+		w.start(tag);
+		AccountIdentification4Choice id = account.getId();
+		if (id != null) {
+			w.start(ID);
+			w.element(IBAN, id.getIBAN());
+			w.end(ID);
+		}
+		w.end(tag);
+	}
+
+	static void agent(XmlByteWriter w, byte[] tag, BranchAndFinancialInstitutionIdentification4 agent) throws IOException{
+		if (agent == null) {
+			return;
+		}
+		w.start(tag);
+		FinancialInstitutionIdentification7 finInstnId = agent.getFinInstnId();
+		if (finInstnId != null) {
+			w.start(FIN_INSTN_ID);
+			w.element(BIC, finInstnId.getBIC());
+			w.end(FIN_INSTN_ID);
+		}
+		w.end(tag);
+	}
+}
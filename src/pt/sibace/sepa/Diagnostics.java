@@ -0,0 +1,135 @@
+package pt.sibace.sepa;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link DiagnosticsSink} that counts problems by bank code, and passes at most a given number per second on to
+ * another sink (the console, a logger...). The counts can be read during or after a run.
+ *
+ * Recording a problem costs a counter increment and, with samples, a clock read; nothing is allocated past the
+ * sample limit.
+ *
+ */
+public final class Diagnostics implements DiagnosticsSink {
+
+	/**
+	 * Prints each problem on System.out.
+	 */
+	public static final DiagnosticsSink CONSOLE = new DiagnosticsSink() {
+		public void unknownBankCode(int bankCode, CharSequence nib){
+			System.out.println("Unknown Bank Code: " + nib.subSequence(0, Math.min(4, nib.length())));
+		}
+	};
+
+	// Counts by bank code, with the codes that are not digits last
+	private static final int NOT_DIGITS = 10000;
+	private final AtomicLongArray unknownBankCodes = new AtomicLongArray(NOT_DIGITS + 1);
+
+	private final DiagnosticsSink samples;
+	private final int samplesPerSecond;
+	private final LongAdder suppressed = new LongAdder();
+
+	// Second (from System.nanoTime) in the high half, samples passed on in that second in the low half
+	private final AtomicLong window = new AtomicLong();
+
+	/**
+	 * Counts problems without passing any on.
+	 */
+	public Diagnostics(){
+		this(null, 0);
+	}
+
+	/**
+	 * @param samples sink receiving a sample of the problems, null for none
+	 * @param samplesPerSecond most problems passed on per second
+	 */
+	public Diagnostics(DiagnosticsSink samples, int samplesPerSecond){
+		if (samplesPerSecond < 0) {
+			throw new IllegalArgumentException("Negative sample rate: " + samplesPerSecond);
+		}
+		this.samples = samples;
+		this.samplesPerSecond = samples == null ? 0 : samplesPerSecond;
+	}
+
+	public void unknownBankCode(int bankCode, CharSequence nib){
+		unknownBankCodes.incrementAndGet(bankCode >= 0 && bankCode < NOT_DIGITS ? bankCode : NOT_DIGITS);
+		if (sample()) {
+			samples.unknownBankCode(bankCode, nib);
+		} else {
+			suppressed.increment();
+		}
+	}
+
+	/**
+	 * @return number of lookups of unknown bank codes
+	 */
+	public long getUnknownBankCodes(){
+		long total = 0;
+		for (int i = 0; i <= NOT_DIGITS; i++) {
+			total += unknownBankCodes.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * @param bankCode 0 to 9999, or -1 for codes that are not digits
+	 * @return number of lookups of the given unknown bank code
+	 */
+	public long getUnknownBankCodeCount(int bankCode){
+		return unknownBankCodes.get(bankCode >= 0 && bankCode < NOT_DIGITS ? bankCode : NOT_DIGITS);
+	}
+
+	/**
+	 * @return number of lookups of each unknown bank code, by bank code ("????" for codes that are not digits)
+	 */
+	public Map<String, Long> getUnknownBankCodeCounts(){
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (int i = 0; i <= NOT_DIGITS; i++) {
+			long count = unknownBankCodes.get(i);
+			if (count > 0) {
+				counts.put(i == NOT_DIGITS ? "????" : String.format("%04d", i), count);
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * @return number of problems not passed on, over the sample limit
+	 */
+	public long getSuppressed(){
+		return suppressed.sum();
+	}
+
+	@Override
+	public String toString(){
+		return getUnknownBankCodes() + " unknown bank codes " + getUnknownBankCodeCounts() + ", " + getSuppressed() + " not reported";
+	}
+
+	/**
+	 * @return true if the problem is within the sample limit of the current second
+	 */
+	private boolean sample(){
+		if (samplesPerSecond == 0) {
+			return false;
+		}
+		long second = System.nanoTime() / 1000000000L;
+		for (;;) {
+			long current = window.get();
+			long next;
+			if (current >>> 32 != (second & 0xFFFFFFFFL)) {
+				next = second << 32 | 1;
+			} else if ((int) current < samplesPerSecond) {
+				next = current + 1;
+			} else {
+				return false;
+			}
+			if (window.compareAndSet(current, next)) {
+				return true;
+			}
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package pt.sibace.sepa;
+
+/**
+ * Receiver of data problems found while building documents, set with {@link SepaUtils#setDiagnostics(DiagnosticsSink)}.
+ *
+ * Calls come from the threads building documents, on their hot path: implementations must be thread safe and
+ * should not block. {@link Diagnostics} counts the problems and passes a limited sample on.
+ *
+ */
+public interface DiagnosticsSink {
+
+	/**
+	 * A NIB whose bank code has no BIC in the bank directory.
+	 *
+	 * @param bankCode bank code, 0 to 9999, or -1 if the first four characters are not digits
+	 * @param nib the NIB looked up
+	 */
+	void unknownBankCode(int bankCode, CharSequence nib);
+}
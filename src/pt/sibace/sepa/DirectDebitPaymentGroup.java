@@ -1,26 +1,164 @@
 package pt.sibace.sepa;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.xml.datatype.XMLGregorianCalendar;
 
 import iso.std.iso._20022.tech.xsd.pain_008_001_02.*;
 
 /**
  * Helper class to build a Direct Debit payment group. A payment group holds a collection of payment transactions.
  *  
+ * Agent, account and party subtrees, and mandate dates, are shared between the transactions of the group with the
+ * same BIC, IBAN, name or date, unless turned off with {@link #setSharedSubtrees(boolean)}.
  * 
  * @author Joao Osorio (joao.osorio@sibace.pt)
  *
  */
-public class DirectDebitPaymentGroup {
+public class DirectDebitPaymentGroup implements Closeable {
+
+	// Subtrees shared by the transactions of this group, by BIC, IBAN or name, unless turned off
+	private final FlyweightCache<String, PartyIdentification32> parties =
+			new FlyweightCache<String, PartyIdentification32>(FlyweightReport.Subtree.PARTY, 16384) {
+		PartyIdentification32 create(String name){
+			PartyIdentification32 party = new PartyIdentification32();
+			party.setNm(name);
+			return party;
+		}
+	};
+
+	private final FlyweightCache<String, CashAccount16> accounts =
+			new FlyweightCache<String, CashAccount16>(FlyweightReport.Subtree.ACCOUNT, 16384) {
+		CashAccount16 create(String iban){
+			CashAccount16 account = new CashAccount16();
+			AccountIdentification4Choice accountId = new AccountIdentification4Choice();
+			accountId.setIBAN(iban);
+			account.setId(accountId);
+			return account;
+		}
+	};
+
+	private final FlyweightCache<String, BranchAndFinancialInstitutionIdentification4> agents =
+			new FlyweightCache<String, BranchAndFinancialInstitutionIdentification4>(FlyweightReport.Subtree.AGENT, 1024) {
+		BranchAndFinancialInstitutionIdentification4 create(String bic){
+			BranchAndFinancialInstitutionIdentification4 agent = new BranchAndFinancialInstitutionIdentification4();
+			FinancialInstitutionIdentification7 finId = new FinancialInstitutionIdentification7();
+			finId.setBIC(bic);
+			agent.setFinInstnId(finId);
+			return agent;
+		}
+	};
+	
+	// Mandate dates shared by the transactions of this group, copied from the instances cached by SepaUtils
+	private final FlyweightCache<XMLGregorianCalendar, XMLGregorianCalendar> dates =
+			new FlyweightCache<XMLGregorianCalendar, XMLGregorianCalendar>(FlyweightReport.Subtree.DATE, 1024) {
+		XMLGregorianCalendar create(XMLGregorianCalendar date){
+			return (XMLGregorianCalendar) date.clone();
+		}
+	};
+	
+	// Amount in cents of the transactions added with a BigDecimal amount
+	private static final long NOT_CENTS = Long.MIN_VALUE;
 	
 	PaymentInstructionInformation4 paymentGroup;
 	
+	// Group counters, set on the payment information by getInformation()
+	private int nbOfTxs;
+	private final ControlSum ctrlSum = new ControlSum();
+	
+	// Transactions kept outside the JAXB tree, null with JAXB storage
+	final DirectDebitStore store;
+	
+	// Stored transactions already added to the JAXB tree
+	private int materialized;
+	
+	// Subtrees this group took from the caches instead of creating them
+	private final FlyweightReport flyweights = new FlyweightReport();
+	private boolean shareSubtrees = true;
+	
+	// Problems found by FieldRules in the fields given, checked unless turned off
+	private final RuleViolations violations = new RuleViolations();
+	private boolean checkFields = true;
+	
+	// Names and ids given are turned into SEPA characters, if asked when created
+	private final boolean transliterate;
+	
+	// Hashes of the ids added, to find duplicates in the document, and filter of the ids of earlier files
+	private boolean checkDuplicates;
+	private final IdHashSet endToEndIds = new IdHashSet();
+	private final IdHashSet mandateIds = new IdHashSet();
+	private IdBloomFilter usedIds;
+	
 	public DirectDebitPaymentGroup(String pmtInfId, Date reqDate, 
 									String creditorName, String creditorId, 
 									String creditorIBAN, String creditorBIC,
 									String groupType)
 	{
+		this(pmtInfId, reqDate, creditorName, creditorId, creditorIBAN, creditorBIC, groupType, TransactionStorage.JAXB);
+	}
+	
+	/**
+	 * Creates a payment group keeping its transactions in the given storage.
+	 */
+	public DirectDebitPaymentGroup(String pmtInfId, Date reqDate, 
+									String creditorName, String creditorId, 
+									String creditorIBAN, String creditorBIC,
+									String groupType, TransactionStorage storage)
+	{
+		this(pmtInfId, reqDate, creditorName, creditorId, creditorIBAN, creditorBIC, groupType, storage, null);
+	}
+	
+	/**
+	 * Creates a payment group keeping its transactions in the given storage. Groups with
+	 * {@link TransactionStorage#OFF_HEAP} storage must be closed once written, to delete their scratch file.
+	 * 
+	 * @param scratchDirectory directory for the scratch file, or null for the system temporary directory
+	 */
+	public DirectDebitPaymentGroup(String pmtInfId, Date reqDate, 
+									String creditorName, String creditorId, 
+									String creditorIBAN, String creditorBIC,
+									String groupType, TransactionStorage storage, File scratchDirectory)
+	{
+		this(pmtInfId, reqDate, creditorName, creditorId, creditorIBAN, creditorBIC, groupType, storage, scratchDirectory, false);
+	}
+	
+	/**
+	 * Creates a payment group keeping its transactions in the given storage, optionally turning the names and ids
+	 * of the group and of its transactions into SEPA characters with {@link Transliteration}. Names are then cut to
+	 * 70 characters; ids are never cut, too long ones are reported by the field checks.
+	 * 
+	 * @param scratchDirectory directory for the scratch file, or null for the system temporary directory
+	 * @param transliterate true to replace the characters outside the SEPA set, false to keep them (and have them
+	 * reported by the field checks)
+	 */
+	public DirectDebitPaymentGroup(String pmtInfId, Date reqDate, 
+									String creditorName, String creditorId, 
+									String creditorIBAN, String creditorBIC,
+									String groupType, TransactionStorage storage, File scratchDirectory,
+									boolean transliterate)
+	{
+		this.transliterate = transliterate;
+		if (transliterate) {
+			// Only SEPA characters in names and ids
+			pmtInfId = Transliteration.toSepa(pmtInfId, FieldRules.Field.PAYMENT_INFORMATION_ID);
+			creditorName = Transliteration.toSepa(creditorName, FieldRules.Field.NAME);
+			creditorId = Transliteration.toSepa(creditorId, FieldRules.Field.CREDITOR_ID);
+		}
+		
+		// Check the fields of the group
+		violations.check(RuleViolations.PAYMENT_GROUP, FieldRules.Field.PAYMENT_INFORMATION_ID, pmtInfId);
+		violations.check(RuleViolations.PAYMENT_GROUP, FieldRules.Field.NAME, creditorName);
+		violations.check(RuleViolations.PAYMENT_GROUP, FieldRules.Field.CREDITOR_ID, creditorId);
+		violations.check(RuleViolations.PAYMENT_GROUP, FieldRules.Field.IBAN, creditorIBAN);
+		violations.check(RuleViolations.PAYMENT_GROUP, FieldRules.Field.BIC, creditorBIC);
+		
 		paymentGroup = new PaymentInstructionInformation4();
 
 		// Set payment information id
@@ -29,10 +167,6 @@ public class DirectDebitPaymentGroup {
 		// Set payment method - always DD
 		paymentGroup.setPmtMtd(PaymentMethod2Code.DD);
 		
-		// Initialize counters
-		paymentGroup.setNbOfTxs("0");
-		paymentGroup.setCtrlSum(BigDecimal.ZERO);
-		
 		// Set requested collection date
 		paymentGroup.setReqdColltnDt(SepaUtils.ISODate(reqDate));
 	    
@@ -53,11 +187,276 @@ public class DirectDebitPaymentGroup {
 	    PaymentTypeInformation20 pmtTpInf = new PaymentTypeInformation20();
 	    pmtTpInf.setSeqTp(SequenceType1Code.fromValue(groupType));
 	    paymentGroup.setPmtTpInf(pmtTpInf);
+	    
+		// Repeated ids are looked for only when the transactions are on the heap anyway
+		checkDuplicates = storage != TransactionStorage.COMPACT && storage != TransactionStorage.OFF_HEAP;
+		
+		// Storage last, so that a scratch file is never left behind by a bad argument
+		if (storage == TransactionStorage.COMPACT) {
+			store = new CompactDirectDebitStore();
+		} else if (storage == TransactionStorage.OFF_HEAP) {
+			store = new OffHeapDirectDebitStore(scratchDirectory);
+		} else {
+			store = null;
+		}
 	}
 	
+	/**
+	 * @return payment information, with NbOfTxs and CtrlSum of the transactions added so far. With compact or
+	 * off-heap storage, the JAXB objects of the transactions are created by this call. Their agent, account and
+	 * party objects and mandate dates are shared by the transactions of this group with the same BIC, IBAN, name or
+	 * date, never with other
+	 * groups: a change made to one shows in all of those transactions, unless sharing was turned off with
+	 * {@link #setSharedSubtrees(boolean)}.
+	 */
 	public PaymentInstructionInformation4 getInformation(){
+		updateCounters();
+		if (store != null && materialized < store.size()) {
+			try {
+				store.forEach(materialized, new DirectDebitStore.Visitor() {
+					public void transaction(String endToEndIdentification, BigDecimal amount,
+											String mandateId, XMLGregorianCalendar mandateDate,
+											String debtorName, String debtorIBAN, String debtorBIC,
+											boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN){
+						createTransaction(endToEndIdentification, amount, mandateId, createDate(mandateDate), debtorName, debtorIBAN, debtorBIC,
+										  debtorBankChanged, debtorAccountChanged, originalIBAN);
+					}
+				});
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			materialized = store.size();
+		}
 		return paymentGroup;
 	}
+	
+	/**
+	 * Sets NbOfTxs and CtrlSum on the payment information.
+	 */
+	void updateCounters(){
+		paymentGroup.setNbOfTxs(Integer.toString(nbOfTxs));
+		paymentGroup.setCtrlSum(ctrlSum.toBigDecimal());
+	}
+	
+	/**
+	 * Writes the PmtInf block, straight from the store with compact or off-heap storage. Counters must be up to date.
+	 */
+	void write(XmlByteWriter w) throws IOException{
+		if (store == null) {
+			DirectDebitXml.paymentGroup(w, paymentGroup);
+		} else {
+			DirectDebitXml.startPaymentGroup(w, paymentGroup);
+			store.write(w);
+			DirectDebitXml.endPaymentGroup(w);
+		}
+	}
+	
+	/**
+	 * Frees the transaction storage: deletes the scratch file of {@link TransactionStorage#OFF_HEAP} groups, does
+	 * nothing for other storages. The group can no longer be written afterwards. Safe to call more than once.
+	 */
+	public void close(){
+		if (store != null) {
+			store.close();
+		}
+	}
+	
+	/**
+	 * @return number of transactions added so far
+	 */
+	public int getNbOfTxs(){
+		return nbOfTxs;
+	}
+	
+	/**
+	 * @return sum of the transaction amounts added so far
+	 */
+	public BigDecimal getCtrlSum(){
+		return ctrlSum.toBigDecimal();
+	}
+	
+	/**
+	 * @return number of agent, account and party subtrees and mandate dates this group shares instead of creating them
+	 */
+	public FlyweightReport getFlyweightReport(){
+		FlyweightReport report = new FlyweightReport();
+		report.add(flyweights);
+		return report;
+	}
+	
+	/**
+	 * Turns the sharing of agent, account and party subtrees and of mandate dates between the transactions of this
+	 * group on or off for the transactions created from now on (on by default). Turn it off when the objects returned
+	 * by {@link #getInformation()} are modified.
+	 */
+	public void setSharedSubtrees(boolean shareSubtrees){
+		this.shareSubtrees = shareSubtrees;
+	}
+	
+	/**
+	 * Checks the creditor IBAN, and the debtor IBANs (and original debtor IBANs of changed accounts) of all
+	 * transactions with {@link Iban}, in parallel in the common pool.
+	 * 
+	 * @return number of IBANs checked and the invalid ones
+	 */
+	public IbanReport checkIbans(){
+		return checkIbans(ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Checks the creditor IBAN, and the debtor IBANs (and original debtor IBANs of changed accounts) of all
+	 * transactions with {@link Iban}. Transactions kept with compact or off-heap storage are checked from the store,
+	 * without creating their JAXB objects.
+	 * 
+	 * @param pool pool checking the IBANs in parallel, null to check them in the calling thread
+	 * @return number of IBANs checked and the invalid ones
+	 */
+	public IbanReport checkIbans(ForkJoinPool pool){
+		final IbanReport report = new IbanReport();
+		String creditorIBAN = iban(paymentGroup.getCdtrAcct());
+		int result = Iban.check(creditorIBAN);
+		if (result != Iban.VALID) {
+			report.invalid(null, creditorIBAN, result);
+		}
+		report.checked(1);
+		
+		// Debtor IBANs, gathered first so they can be checked in parallel
+		final String[] ibans = new String[nbOfTxs];
+		final byte[] results = new byte[nbOfTxs];
+		final String[] originalIbans = new String[nbOfTxs];
+		final byte[] originalResults = new byte[nbOfTxs];
+		List<DirectDebitTransactionInformation9> transactions = paymentGroup.getDrctDbtTxInf();
+		try {
+			int checked;
+			if (store != null) {
+				checked = store.checkIbans(ibans, results, originalIbans, originalResults, pool);
+			} else {
+				for (int i = 0; i < ibans.length; i++) {
+					DirectDebitTransactionInformation9 transaction = transactions.get(i);
+					ibans[i] = iban(transaction.getDbtrAcct());
+					AmendmentInformationDetails6 amendment = transaction.getDrctDbtTx().getMndtRltdInf().getAmdmntInfDtls();
+					if (amendment != null && amendment.getOrgnlDbtrAcct() != null) {
+						originalIbans[i] = iban(amendment.getOrgnlDbtrAcct());
+					}
+				}
+				Iban.check(ibans, results, pool);
+				Iban.check(originalIbans, originalResults, pool);
+				checked = ibans.length;
+				for (int i = 0; i < ibans.length; i++) {
+					if (originalIbans[i] != null) {
+						checked++;
+					} else {
+						// Not used by the transaction
+						originalResults[i] = Iban.VALID;
+					}
+				}
+			}
+			boolean valid = true;
+			for (int i = 0; i < ibans.length; i++) {
+				valid &= results[i] == Iban.VALID && originalResults[i] == Iban.VALID;
+			}
+			report.checked(checked);
+			if (!valid) {
+				if (store != null) {
+					store.forEach(0, new DirectDebitStore.Visitor() {
+						private int row;
+						
+						public void transaction(String endToEndIdentification, BigDecimal amount,
+												String mandateId, XMLGregorianCalendar mandateDate,
+												String debtorName, String debtorIBAN, String debtorBIC,
+												boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN){
+							invalid(report, endToEndIdentification, row, ibans, results, originalIbans, originalResults);
+							row++;
+						}
+					});
+				} else {
+					for (int i = 0; i < results.length; i++) {
+						invalid(report, transactions.get(i).getPmtId().getEndToEndId(), i, ibans, results, originalIbans, originalResults);
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return report;
+	}
+	
+	/**
+	 * @return problems found so far by {@link FieldRules} in the fields of the group and of its transactions
+	 */
+	public RuleViolations getRuleViolations(){
+		return violations;
+	}
+	
+	/**
+	 * Turns the {@link FieldRules} checks of the transactions added from now on on or off (on by default).
+	 */
+	public void setFieldChecks(boolean checkFields){
+		this.checkFields = checkFields;
+	}
+	
+	/**
+	 * Turns the search for EndToEndIds and mandate ids repeated in the document, reported as {@link FieldRules#DUPLICATE}, on or off
+	 * for the transactions added from now on. It is on by default with {@link TransactionStorage#JAXB} storage and
+	 * off with compact and off-heap storage, as the hash of every id is kept on the heap (16 to 32 bytes per id, and
+	 * as much again in the document); turning it on for those groups makes their heap grow with the number of
+	 * transactions.
+	 */
+	public void setDuplicateChecks(boolean checkDuplicates){
+		this.checkDuplicates = checkDuplicates;
+	}
+	
+	/**
+	 * Checks the EndToEndIds of the transactions added from now on against the ids of earlier files. Ids the filter
+	 * may have seen are reported as {@link FieldRules#SEEN_BEFORE}. Nothing is put in the filter here: the ids of
+	 * a file are put once it is written, see {@link DirectDebit#putIds(IdBloomFilter)}.
+	 * 
+	 * @param usedIds filter shared by the files checked together, null to stop checking
+	 */
+	public void setUsedIds(IdBloomFilter usedIds){
+		this.usedIds = usedIds;
+	}
+	
+	/**
+	 * Adds the ids of this group to those of the payment groups already in the document, reporting the ids used
+	 * by both as {@link FieldRules#DUPLICATE}. Only ids added while duplicate checks were on are known.
+	 */
+	void addIds(IdHashSet documentEndToEndIds, IdHashSet documentMandateIds){
+		addIds(documentEndToEndIds, endToEndIds, FieldRules.Field.END_TO_END_ID);
+		addIds(documentMandateIds, mandateIds, FieldRules.Field.MANDATE_ID);
+	}
+	
+	private void addIds(IdHashSet documentIds, IdHashSet ids, FieldRules.Field field){
+		int[] duplicates = new int[ids.size()];
+		int count = documentIds.addAll(ids, duplicates);
+		for (int i = 0; i < count; i++) {
+			violations.add(duplicates[i], FieldRules.code(field, FieldRules.DUPLICATE));
+		}
+	}
+	
+	/**
+	 * Puts the EndToEndIds of all transactions in the filter. Stored transactions are read back from the store.
+	 */
+	void putIds(final IdBloomFilter filter) throws IOException{
+		if (store != null) {
+			store.forEach(0, new DirectDebitStore.Visitor() {
+				public void transaction(String endToEndIdentification, BigDecimal amount,
+										String mandateId, XMLGregorianCalendar mandateDate,
+										String debtorName, String debtorIBAN, String debtorBIC,
+										boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN){
+					filter.put(endToEndIdentification);
+				}
+			});
+		} else {
+			for (DirectDebitTransactionInformation9 transaction : paymentGroup.getDrctDbtTxInf()) {
+				filter.put(transaction.getPmtId().getEndToEndId());
+			}
+		}
+	}
+	
+	ControlSum getControlSum(){
+		return ctrlSum;
+	}
 		
 	public void addTransactionWithoutAmendment(String endToEndIdentification, BigDecimal amount,
 			   				   	       		   String mandateId, Date mandateDate,
@@ -79,11 +478,134 @@ public class DirectDebitPaymentGroup {
 		addTransaction(endToEndIdentification, amount, mandateId, mandateDate, debtorName, debtorIBAN, debtorBIC, false, true, originalIBAN);		
 		
 	}
+	
+	/**
+	 * Same as {@link #addTransactionWithoutAmendment(String, BigDecimal, String, Date, String, String, String)},
+	 * with the amount in euro cents (1050 for 10.50).
+	 */
+	public void addTransactionWithoutAmendment(String endToEndIdentification, long amountCents,
+											   String mandateId, Date mandateDate,
+											   String debtorName, String debtorIBAN, String debtorBIC){
+		addTransaction(endToEndIdentification, amountCents, mandateId, mandateDate, debtorName, debtorIBAN, debtorBIC, false, false, "");
+	}
+	
+	/**
+	 * Same as {@link #addTransactionWithAmendedDebtorBank(String, BigDecimal, String, Date, String, String, String)},
+	 * with the amount in euro cents (1050 for 10.50).
+	 */
+	public void addTransactionWithAmendedDebtorBank(String endToEndIdentification, long amountCents,
+													String mandateId, Date mandateDate,
+													String debtorName, String debtorIBAN, String debtorBIC){
+		addTransaction(endToEndIdentification, amountCents, mandateId, mandateDate, debtorName, debtorIBAN, debtorBIC, true, false, "");
+	}
+	
+	/**
+	 * Same as {@link #addTransactionWithAmendedDebtorAccount(String, BigDecimal, String, Date, String, String, String, String)},
+	 * with the amount in euro cents (1050 for 10.50).
+	 */
+	public void addTransactionWithAmendedDebtorAccount(String endToEndIdentification, long amountCents,
+													   String mandateId, Date mandateDate,
+													   String debtorName, String debtorIBAN, String debtorBIC,
+													   String originalIBAN){
+		addTransaction(endToEndIdentification, amountCents, mandateId, mandateDate, debtorName, debtorIBAN, debtorBIC, false, true, originalIBAN);
+	}
 
 	public void addTransaction(String endToEndIdentification, BigDecimal amount,
 							   String mandateId, Date mandateDate,
 							   String debtorName, String debtorIBAN, String debtorBIC,
 							   boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN)
+	{	
+		addTransaction(endToEndIdentification, amount, NOT_CENTS, mandateId, mandateDate, debtorName, debtorIBAN, debtorBIC,
+					   debtorBankChanged, debtorAccountChanged, originalIBAN);
+	}
+	
+	/**
+	 * Adds a transaction with the amount in euro cents (1050 for 10.50).
+	 */
+	public void addTransaction(String endToEndIdentification, long amountCents,
+							   String mandateId, Date mandateDate,
+							   String debtorName, String debtorIBAN, String debtorBIC,
+							   boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN)
+	{	
+		addTransaction(endToEndIdentification, BigDecimal.valueOf(amountCents, 2), amountCents, mandateId, mandateDate,
+					   debtorName, debtorIBAN, debtorBIC, debtorBankChanged, debtorAccountChanged, originalIBAN);
+	}
+	
+	/**
+	 * Adds a transaction given either way: every check and counter of the group goes through here.
+	 * 
+	 * @param amountCents the amount in cents, kept as a long by the store and the control sum, or NOT_CENTS
+	 */
+	private void addTransaction(String endToEndIdentification, BigDecimal amount, long amountCents,
+								String mandateId, Date mandateDate,
+								String debtorName, String debtorIBAN, String debtorBIC,
+								boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN)
+	{
+		if (transliterate) {
+			endToEndIdentification = Transliteration.toSepa(endToEndIdentification, FieldRules.Field.END_TO_END_ID);
+			mandateId = Transliteration.toSepa(mandateId, FieldRules.Field.MANDATE_ID);
+			debtorName = Transliteration.toSepa(debtorName, FieldRules.Field.NAME);
+		}
+		if (checkFields) {
+			checkFields(endToEndIdentification, mandateId, debtorName, debtorIBAN, debtorBIC, debtorAccountChanged, originalIBAN);
+		}
+		if (checkDuplicates || usedIds != null) {
+			checkIds(endToEndIdentification, mandateId);
+		}
+		if (store == null) {
+			createTransaction(endToEndIdentification, amount, mandateId, createDate(mandateDate),
+							  debtorName, debtorIBAN, debtorBIC, debtorBankChanged, debtorAccountChanged, originalIBAN);
+		} else if (amountCents != NOT_CENTS) {
+			store.add(endToEndIdentification, amountCents, mandateId, mandateDate, debtorName, debtorIBAN, debtorBIC,
+					  debtorBankChanged, debtorAccountChanged, originalIBAN);
+		} else {
+			store.add(endToEndIdentification, amount, mandateId, mandateDate, debtorName, debtorIBAN, debtorBIC,
+					  debtorBankChanged, debtorAccountChanged, originalIBAN);
+		}
+		
+		// Update counters
+		nbOfTxs++;
+		if (amountCents != NOT_CENTS) {
+			ctrlSum.add(amountCents);
+		} else {
+			ctrlSum.add(amount);
+		}
+	}
+
+	private void checkFields(String endToEndIdentification, String mandateId,
+							 String debtorName, String debtorIBAN, String debtorBIC,
+							 boolean debtorAccountChanged, String originalIBAN){
+		violations.check(nbOfTxs, FieldRules.Field.END_TO_END_ID, endToEndIdentification);
+		violations.check(nbOfTxs, FieldRules.Field.MANDATE_ID, mandateId);
+		violations.check(nbOfTxs, FieldRules.Field.NAME, debtorName);
+		violations.check(nbOfTxs, FieldRules.Field.IBAN, debtorIBAN);
+		violations.check(nbOfTxs, FieldRules.Field.BIC, debtorBIC);
+		if (debtorAccountChanged) {
+			violations.check(nbOfTxs, FieldRules.Field.IBAN, originalIBAN);
+		}
+	}
+	
+	/**
+	 * Looks for ids already used in the group or, through the filter, in earlier files.
+	 */
+	private void checkIds(String endToEndIdentification, String mandateId){
+		if (endToEndIdentification != null) {
+			long hash = IdHashSet.hash(endToEndIdentification);
+			if (checkDuplicates && endToEndIds.add(hash, nbOfTxs) >= 0) {
+				violations.add(nbOfTxs, FieldRules.code(FieldRules.Field.END_TO_END_ID, FieldRules.DUPLICATE));
+			} else if (usedIds != null && usedIds.mightContainHash(hash)) {
+				violations.add(nbOfTxs, FieldRules.code(FieldRules.Field.END_TO_END_ID, FieldRules.SEEN_BEFORE));
+			}
+		}
+		if (checkDuplicates && mandateId != null && mandateIds.add(IdHashSet.hash(mandateId), nbOfTxs) >= 0) {
+			violations.add(nbOfTxs, FieldRules.code(FieldRules.Field.MANDATE_ID, FieldRules.DUPLICATE));
+		}
+	}
+
+	private void createTransaction(String endToEndIdentification, BigDecimal amount,
+								   String mandateId, XMLGregorianCalendar mandateDate,
+								   String debtorName, String debtorIBAN, String debtorBIC,
+								   boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN)
 	{	
 		DirectDebitTransactionInformation9 transaction = new DirectDebitTransactionInformation9();
 
@@ -102,7 +624,7 @@ public class DirectDebitPaymentGroup {
 		DirectDebitTransaction6 drctDbtTx = new DirectDebitTransaction6();
 		MandateRelatedInformation6 mndRltdInf = new MandateRelatedInformation6();
 		mndRltdInf.setMndtId(mandateId);
-		mndRltdInf.setDtOfSgntr(SepaUtils.ISODate(mandateDate));
+		mndRltdInf.setDtOfSgntr(mandateDate);
 		drctDbtTx.setMndtRltdInf(mndRltdInf);		
 		if (debtorBankChanged) {
 			//TODO check if paymentGroup is of type FRST. If it isn't, throw exception "new bank amendments require sequence type of FRST"
@@ -119,11 +641,7 @@ public class DirectDebitPaymentGroup {
 		} else if (debtorAccountChanged){
 			mndRltdInf.setAmdmntInd(true);
 			AmendmentInformationDetails6 amdmntInfDtls = new AmendmentInformationDetails6();
-			CashAccount16 orgnlDbtAcct = new CashAccount16();
-			AccountIdentification4Choice id = new AccountIdentification4Choice();
-			id.setIBAN(originalIBAN);
-			orgnlDbtAcct.setId(id);
-			amdmntInfDtls.setOrgnlDbtrAcct(orgnlDbtAcct);			
+			amdmntInfDtls.setOrgnlDbtrAcct(createAccount(originalIBAN));			
 			mndRltdInf.setAmdmntInfDtls(amdmntInfDtls);
 		}
 		transaction.setDrctDbtTx(drctDbtTx);		
@@ -139,17 +657,27 @@ public class DirectDebitPaymentGroup {
 
 		// Add transaction to payment group
 		paymentGroup.getDrctDbtTxInf().add(transaction);
-		
-		// Update counters
-		int numTxs=Integer.parseInt(paymentGroup.getNbOfTxs()) + 1;
-		paymentGroup.setNbOfTxs(Integer.toString(numTxs));
-		paymentGroup.setCtrlSum(paymentGroup.getCtrlSum().add(amount));
 	}
 		
+	/**
+	 * Adds the invalid IBANs of a transaction to the report.
+	 */
+	private static void invalid(IbanReport report, String endToEndIdentification, int row,
+								String[] ibans, byte[] results, String[] originalIbans, byte[] originalResults){
+		if (results[row] != Iban.VALID) {
+			report.invalid(endToEndIdentification, ibans[row], results[row]);
+		}
+		if (originalResults[row] != Iban.VALID) {
+			report.invalid(endToEndIdentification, originalIbans[row], originalResults[row]);
+		}
+	}
+	
+	private static String iban(CashAccount16 account){
+		return account == null || account.getId() == null ? null : account.getId().getIBAN();
+	}
+	
 	private PartyIdentification32 createParty(String name){
-		PartyIdentification32 party = new PartyIdentification32();
-		party.setNm(name);
-		return party;
+		return shareSubtrees ? parties.get(name, flyweights) : parties.create(name);
 	}
 
 	private PartyIdentification32 createPartyId( String id){
@@ -165,18 +693,21 @@ public class DirectDebitPaymentGroup {
 	}
 	
 	private CashAccount16 createAccount(String iban){
-		CashAccount16 account = new CashAccount16();
-		AccountIdentification4Choice accountId = new AccountIdentification4Choice();
-		accountId.setIBAN(iban);
-		account.setId(accountId);
-		return account;		
+		return shareSubtrees ? accounts.get(iban, flyweights) : accounts.create(iban);
 	}
 
 	private BranchAndFinancialInstitutionIdentification4 createAgent(String bic){
-		BranchAndFinancialInstitutionIdentification4 agent = new BranchAndFinancialInstitutionIdentification4();
-		FinancialInstitutionIdentification7 finId = new FinancialInstitutionIdentification7();
-		finId.setBIC(bic);
-		agent.setFinInstnId(finId);
-		return agent;
+		return shareSubtrees ? agents.get(bic, flyweights) : agents.create(bic);
+	}
+	
+	private XMLGregorianCalendar createDate(Date date){
+		return createDate(SepaUtils.sharedISODate(date));
+	}
+	
+	/**
+	 * @param date instance cached by SepaUtils, which must not reach the callers
+	 */
+	private XMLGregorianCalendar createDate(XMLGregorianCalendar date){
+		return shareSubtrees ? dates.get(date, flyweights) : dates.create(date);
 	}
 }
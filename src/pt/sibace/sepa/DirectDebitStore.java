@@ -0,0 +1,73 @@
+package pt.sibace.sepa;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.concurrent.ForkJoinPool;
+import java.util.Date;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * Transactions of a {@link DirectDebitPaymentGroup} kept outside the JAXB tree.
+ *
+ */
+interface DirectDebitStore {
+
+	void add(String endToEndIdentification, BigDecimal amount,
+			 String mandateId, Date mandateDate,
+			 String debtorName, String debtorIBAN, String debtorBIC,
+			 boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN);
+
+	void add(String endToEndIdentification, long amountCents,
+			 String mandateId, Date mandateDate,
+			 String debtorName, String debtorIBAN, String debtorBIC,
+			 boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN);
+
+	/**
+	 * @return number of transactions stored
+	 */
+	int size();
+
+	/**
+	 * Writes the DrctDbtTxInf blocks of all transactions, in the order they were added.
+	 */
+	void write(XmlByteWriter w) throws IOException;
+
+	/**
+	 * Reads the transactions back, in the order they were added.
+	 * 
+	 * @param from first transaction to read
+	 * @param visitor receiver of the transactions
+	 */
+	void forEach(int from, Visitor visitor) throws IOException;
+
+	/**
+	 * Checks the debtor IBAN of each transaction, and the original debtor IBAN of those whose account changed, with
+	 * {@link Iban}, in the order they were added.
+	 * 
+	 * @param debtorIBANs receives the debtor IBANs, at least those found invalid
+	 * @param debtorResults receives the check results of the debtor IBANs
+	 * @param originalIBANs receives the original IBANs, at least those found invalid
+	 * @param originalResults receives the check results of the original IBANs, valid for transactions without one
+	 * @param pool pool checking the IBANs in parallel, null to check them in the calling thread
+	 * @return number of IBANs checked
+	 */
+	int checkIbans(String[] debtorIBANs, byte[] debtorResults, String[] originalIBANs, byte[] originalResults,
+				   ForkJoinPool pool) throws IOException;
+
+	/**
+	 * Frees the storage. The transactions can no longer be read or written.
+	 */
+	void close();
+
+	/**
+	 * Receives the stored transactions. The mandate date is the instance cached by {@link SepaUtils}, which must not
+	 * be modified or handed out.
+	 */
+	interface Visitor {
+		void transaction(String endToEndIdentification, BigDecimal amount,
+						 String mandateId, XMLGregorianCalendar mandateDate,
+						 String debtorName, String debtorIBAN, String debtorBIC,
+						 boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN) throws IOException;
+	}
+}
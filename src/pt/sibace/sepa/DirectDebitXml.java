@@ -0,0 +1,447 @@
+package pt.sibace.sepa;
+
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.AccountIdentification4Choice;
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.ActiveOrHistoricCurrencyAndAmount;
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.AmendmentInformationDetails6;
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.BranchAndFinancialInstitutionIdentification4;
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.CashAccount16;
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.DirectDebitTransaction6;
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.DirectDebitTransactionInformation9;
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.Document;
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.FinancialInstitutionIdentification7;
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.GenericFinancialIdentification1;
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.GenericPersonIdentification1;
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.GroupHeader39;
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.MandateRelatedInformation6;
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.Party6Choice;
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.PartyIdentification32;
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.PaymentIdentification1;
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.PaymentInstructionInformation4;
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.PaymentTypeInformation20;
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.PersonIdentification5;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * Writes the pain.008.001.02 blocks produced by {@link DirectDebit} and {@link DirectDebitPaymentGroup}
+ * with an {@link XmlByteWriter}, in the same element order and layout as the JAXB marshaller.
+ *
+ * {@link #write(Document, List, XmlByteWriter, ForkJoinPool)} serializes a whole document without going through
+ * JAXB. It covers the elements the builders set; other optional elements of the schema, if set directly on the JAXB
+ * objects, are not written and require the JAXB engine.
+ *
+ */
+final class DirectDebitXml {
+
+	static final String NAMESPACE = "urn:iso:std:iso:20022:tech:xsd:pain.008.001.02";
+
+	// Depth of a PmtInf element inside the document
+	static final int PAYMENT_GROUP_DEPTH = 2;
+
+	// Depth of a DrctDbtTxInf element inside the document
+	static final int TRANSACTION_DEPTH = 3;
+
+	// Original debtor agent identification used for "new bank" amendments
+	static final String SAME_MANDATE_NEW_DEBTOR_AGENT = "SMNDA";
+
+	static final byte[] DOCUMENT = XmlByteWriter.tag("Document");
+	static final byte[] XMLNS = XmlByteWriter.tag("xmlns");
+	static final byte[] CSTMR_DRCT_DBT_INITN = XmlByteWriter.tag("CstmrDrctDbtInitn");
+	static final byte[] GRP_HDR = XmlByteWriter.tag("GrpHdr");
+	static final byte[] MSG_ID = XmlByteWriter.tag("MsgId");
+	static final byte[] CRE_DT_TM = XmlByteWriter.tag("CreDtTm");
+	static final byte[] NB_OF_TXS = XmlByteWriter.tag("NbOfTxs");
+	static final byte[] CTRL_SUM = XmlByteWriter.tag("CtrlSum");
+	static final byte[] INITG_PTY = XmlByteWriter.tag("InitgPty");
+	static final byte[] PMT_INF = XmlByteWriter.tag("PmtInf");
+	static final byte[] PMT_INF_ID = XmlByteWriter.tag("PmtInfId");
+	static final byte[] PMT_MTD = XmlByteWriter.tag("PmtMtd");
+	static final byte[] PMT_TP_INF = XmlByteWriter.tag("PmtTpInf");
+	static final byte[] SEQ_TP = XmlByteWriter.tag("SeqTp");
+	static final byte[] REQD_COLLTN_DT = XmlByteWriter.tag("ReqdColltnDt");
+	static final byte[] CDTR = XmlByteWriter.tag("Cdtr");
+	static final byte[] CDTR_ACCT = XmlByteWriter.tag("CdtrAcct");
+	static final byte[] CDTR_AGT = XmlByteWriter.tag("CdtrAgt");
+	static final byte[] CDTR_SCHME_ID = XmlByteWriter.tag("CdtrSchmeId");
+	static final byte[] DRCT_DBT_TX_INF = XmlByteWriter.tag("DrctDbtTxInf");
+	static final byte[] PMT_ID = XmlByteWriter.tag("PmtId");
+	static final byte[] END_TO_END_ID = XmlByteWriter.tag("EndToEndId");
+	static final byte[] INSTD_AMT = XmlByteWriter.tag("InstdAmt");
+	static final byte[] CCY = XmlByteWriter.tag("Ccy");
+	static final byte[] DRCT_DBT_TX = XmlByteWriter.tag("DrctDbtTx");
+	static final byte[] MNDT_RLTD_INF = XmlByteWriter.tag("MndtRltdInf");
+	static final byte[] MNDT_ID = XmlByteWriter.tag("MndtId");
+	static final byte[] DT_OF_SGNTR = XmlByteWriter.tag("DtOfSgntr");
+	static final byte[] AMDMNT_IND = XmlByteWriter.tag("AmdmntInd");
+	static final byte[] AMDMNT_INF_DTLS = XmlByteWriter.tag("AmdmntInfDtls");
+	static final byte[] ORGNL_DBTR_ACCT = XmlByteWriter.tag("OrgnlDbtrAcct");
+	static final byte[] ORGNL_DBTR_AGT = XmlByteWriter.tag("OrgnlDbtrAgt");
+	static final byte[] DBTR_AGT = XmlByteWriter.tag("DbtrAgt");
+	static final byte[] DBTR = XmlByteWriter.tag("Dbtr");
+	static final byte[] DBTR_ACCT = XmlByteWriter.tag("DbtrAcct");
+	static final byte[] NM = XmlByteWriter.tag("Nm");
+	static final byte[] ID = XmlByteWriter.tag("Id");
+	static final byte[] PRVT_ID = XmlByteWriter.tag("PrvtId");
+	static final byte[] OTHR = XmlByteWriter.tag("Othr");
+	static final byte[] IBAN = XmlByteWriter.tag("IBAN");
+	static final byte[] FIN_INSTN_ID = XmlByteWriter.tag("FinInstnId");
+	static final byte[] BIC = XmlByteWriter.tag("BIC");
+
+	private DirectDebitXml(){
+	}
+
+	/**
+	 * Writes the XML declaration, opens the document and writes the group header.
+	 */
+	static void startDocument(XmlByteWriter w, String msgId, XMLGregorianCalendar creDtTm,
+							  String nbOfTxs, BigDecimal ctrlSum, String companyName, String companyId) throws IOException{
+		w.declaration();
+		w.start(DOCUMENT);
+		w.attribute(XMLNS, NAMESPACE);
+		w.start(CSTMR_DRCT_DBT_INITN);
+		w.start(GRP_HDR);
+		w.element(MSG_ID, msgId);
+		w.element(CRE_DT_TM, creDtTm);
+		w.element(NB_OF_TXS, nbOfTxs);
+		w.element(CTRL_SUM, ctrlSum);
+		w.start(INITG_PTY);
+		w.element(NM, companyName);
+		partyId(w, ID, companyId);
+		w.end(INITG_PTY);
+		w.end(GRP_HDR);
+	}
+
+	static void endDocument(XmlByteWriter w) throws IOException{
+		w.end(CSTMR_DRCT_DBT_INITN);
+		w.end(DOCUMENT);
+		w.endDocument();
+	}
+
+	/**
+	 * Opens a PmtInf block and writes everything up to the first transaction.
+	 */
+	static void startPaymentGroup(XmlByteWriter w, String pmtInfId, String nbOfTxs, BigDecimal ctrlSum,
+								  String seqTp, XMLGregorianCalendar reqdColltnDt,
+								  String creditorName, String creditorIBAN, String creditorBIC,
+								  String creditorId) throws IOException{
+		w.start(PMT_INF);
+		w.element(PMT_INF_ID, pmtInfId);
+		w.element(PMT_MTD, "DD");
+		w.element(NB_OF_TXS, nbOfTxs);
+		w.element(CTRL_SUM, ctrlSum);
+		w.start(PMT_TP_INF);
+		w.element(SEQ_TP, seqTp);
+		w.end(PMT_TP_INF);
+		w.element(REQD_COLLTN_DT, reqdColltnDt);
+		party(w, CDTR, creditorName);
+		account(w, CDTR_ACCT, creditorIBAN);
+		agent(w, CDTR_AGT, creditorBIC);
+		w.start(CDTR_SCHME_ID);
+		partyId(w, ID, creditorId);
+		w.end(CDTR_SCHME_ID);
+	}
+
+	static void endPaymentGroup(XmlByteWriter w) throws IOException{
+		w.end(PMT_INF);
+	}
+
+	/**
+	 * Writes one DrctDbtTxInf block, as built by {@link DirectDebitPaymentGroup#addTransaction}.
+	 */
+	static void transaction(XmlByteWriter w, String endToEndIdentification, BigDecimal amount,
+							String mandateId, XMLGregorianCalendar mandateDate,
+							String debtorName, String debtorIBAN, String debtorBIC,
+							boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN) throws IOException{
+		startTransaction(w, endToEndIdentification);
+		if (amount != null) {
+			w.text(amount.toPlainString());
+		}
+		endTransaction(w, mandateId, mandateDate, debtorName, debtorIBAN, debtorBIC,
+					   debtorBankChanged, debtorAccountChanged, originalIBAN);
+	}
+
+	/**
+	 * Writes one DrctDbtTxInf block with an amount given in cents.
+	 */
+	static void transaction(XmlByteWriter w, String endToEndIdentification, long amountCents,
+							String mandateId, XMLGregorianCalendar mandateDate,
+							String debtorName, String debtorIBAN, String debtorBIC,
+							boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN) throws IOException{
+		startTransaction(w, endToEndIdentification);
+		w.text(amountCents, 2);
+		endTransaction(w, mandateId, mandateDate, debtorName, debtorIBAN, debtorBIC,
+					   debtorBankChanged, debtorAccountChanged, originalIBAN);
+	}
+
+	/**
+	 * Writes a DrctDbtTxInf block up to the InstdAmt value.
+	 */
+	private static void startTransaction(XmlByteWriter w, String endToEndIdentification) throws IOException{
+		w.start(DRCT_DBT_TX_INF);
+		w.start(PMT_ID);
+		w.element(END_TO_END_ID, endToEndIdentification);
+		w.end(PMT_ID);
+		w.start(INSTD_AMT);
+		w.attribute(CCY, "EUR");
+	}
+
+	private static void endTransaction(XmlByteWriter w, String mandateId, XMLGregorianCalendar mandateDate,
+									   String debtorName, String debtorIBAN, String debtorBIC,
+									   boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN) throws IOException{
+		w.end(INSTD_AMT);
+		w.start(DRCT_DBT_TX);
+		w.start(MNDT_RLTD_INF);
+		w.element(MNDT_ID, mandateId);
+		w.element(DT_OF_SGNTR, mandateDate);
+		if (debtorBankChanged) {
+			w.element(AMDMNT_IND, "true");
+			w.start(AMDMNT_INF_DTLS);
+			w.start(ORGNL_DBTR_AGT);
+			w.start(FIN_INSTN_ID);
+			w.start(OTHR);
+			w.element(ID, SAME_MANDATE_NEW_DEBTOR_AGENT);
+			w.end(OTHR);
+			w.end(FIN_INSTN_ID);
+			w.end(ORGNL_DBTR_AGT);
+			w.end(AMDMNT_INF_DTLS);
+		} else if (debtorAccountChanged) {
+			w.element(AMDMNT_IND, "true");
+			w.start(AMDMNT_INF_DTLS);
+			account(w, ORGNL_DBTR_ACCT, originalIBAN);
+			w.end(AMDMNT_INF_DTLS);
+		}
+		w.end(MNDT_RLTD_INF);
+		w.end(DRCT_DBT_TX);
+		agent(w, DBTR_AGT, debtorBIC);
+		party(w, DBTR, debtorName);
+		account(w, DBTR_ACCT, debtorIBAN);
+		w.end(DRCT_DBT_TX_INF);
+	}
+
+	static void party(XmlByteWriter w, byte[] tag, String name) throws IOException{
+		w.start(tag);
+		w.element(NM, name);
+		w.end(tag);
+	}
+
+	/**
+	 * Writes a private identification block (Id/PrvtId/Othr/Id), used for the creditor scheme id.
+	 */
+	static void partyId(XmlByteWriter w, byte[] tag, String id) throws IOException{
+		w.start(tag);
+		w.start(PRVT_ID);
+		w.start(OTHR);
+		w.element(ID, id);
+		w.end(OTHR);
+		w.end(PRVT_ID);
+		w.end(tag);
+	}
+
+	static void account(XmlByteWriter w, byte[] tag, String iban) throws IOException{
+		w.start(tag);
+		w.start(ID);
+		w.element(IBAN, iban);
+		w.end(ID);
+		w.end(tag);
+	}
+
+	static void agent(XmlByteWriter w, byte[] tag, String bic) throws IOException{
+		w.start(tag);
+		w.start(FIN_INSTN_ID);
+		w.element(BIC, bic);
+		w.end(FIN_INSTN_ID);
+		w.end(tag);
+	}
+
+	/**
+	 * Serializes a document built by {@link DirectDebit}: the group header from the document tree and the payment
+	 * groups from their builders, so that groups with compact storage are written without JAXB objects.
+	 *
+	 * @param pool pool used to encode payment groups, or null to encode them on the calling thread
+	 */
+	static void write(Document document, List<DirectDebitPaymentGroup> groups, XmlByteWriter w, ForkJoinPool pool) throws IOException{
+		w.declaration();
+		w.start(DOCUMENT);
+		w.attribute(XMLNS, NAMESPACE);
+		w.start(CSTMR_DRCT_DBT_INITN);
+		groupHeader(w, document.getCstmrDrctDbtInitn().getGrpHdr());
+		if (pool != null && groups.size() > 1) {
+			new FragmentWriter<DirectDebitPaymentGroup>(pool, PAYMENT_GROUP_DEPTH) {
+				void encode(DirectDebitPaymentGroup group, XmlByteWriter fragment) throws IOException{
+					group.write(fragment);
+				}
+			}.write(groups, w);
+		} else {
+			for (int i = 0, n = groups.size(); i < n; i++) {
+				groups.get(i).write(w);
+			}
+		}
+		w.end(CSTMR_DRCT_DBT_INITN);
+		w.end(DOCUMENT);
+		w.endDocument();
+	}
+
+	static void groupHeader(XmlByteWriter w, GroupHeader39 header) throws IOException{
+		if (header == null) {
+			return;
+		}
+		w.start(GRP_HDR);
+		w.element(MSG_ID, header.getMsgId());
+		w.element(CRE_DT_TM, header.getCreDtTm());
+		w.element(NB_OF_TXS, header.getNbOfTxs());
+		w.element(CTRL_SUM, header.getCtrlSum());
+		party(w, INITG_PTY, header.getInitgPty());
+		w.end(GRP_HDR);
+	}
+
+	static void paymentGroup(XmlByteWriter w, PaymentInstructionInformation4 group) throws IOException{
+		startPaymentGroup(w, group);
+		List<DirectDebitTransactionInformation9> transactions = group.getDrctDbtTxInf();
+		for (int i = 0, n = transactions.size(); i < n; i++) {
+			transaction(w, transactions.get(i));
+		}
+		w.end(PMT_INF);
+	}
+
+	/**
+	 * Opens a PmtInf block and writes the payment information elements, up to the first transaction.
+	 */
+	static void startPaymentGroup(XmlByteWriter w, PaymentInstructionInformation4 group) throws IOException{
+		w.start(PMT_INF);
+		w.element(PMT_INF_ID, group.getPmtInfId());
+		if (group.getPmtMtd() != null) {
+			w.element(PMT_MTD, group.getPmtMtd().value());
+		}
+		w.element(NB_OF_TXS, group.getNbOfTxs());
+		w.element(CTRL_SUM, group.getCtrlSum());
+		PaymentTypeInformation20 pmtTpInf = group.getPmtTpInf();
+		if (pmtTpInf != null) {
+			w.start(PMT_TP_INF);
+			if (pmtTpInf.getSeqTp() != null) {
+				w.element(SEQ_TP, pmtTpInf.getSeqTp().value());
+			}
+			w.end(PMT_TP_INF);
+		}
+		w.element(REQD_COLLTN_DT, group.getReqdColltnDt());
+		party(w, CDTR, group.getCdtr());
+		account(w, CDTR_ACCT, group.getCdtrAcct());
+		agent(w, CDTR_AGT, group.getCdtrAgt());
+		party(w, CDTR_SCHME_ID, group.getCdtrSchmeId());
+	}
+
+	static void transaction(XmlByteWriter w, DirectDebitTransactionInformation9 transaction) throws IOException{
+		w.start(DRCT_DBT_TX_INF);
+		PaymentIdentification1 pmtId = transaction.getPmtId();
+		if (pmtId != null) {
+			w.start(PMT_ID);
+			w.element(END_TO_END_ID, pmtId.getEndToEndId());
+			w.end(PMT_ID);
+		}
+		ActiveOrHistoricCurrencyAndAmount instdAmt = transaction.getInstdAmt();
+		if (instdAmt != null) {
+			w.start(INSTD_AMT);
+			if (instdAmt.getCcy() != null) {
+				w.attribute(CCY, instdAmt.getCcy());
+			}
+			if (instdAmt.getValue() != null) {
+				w.text(instdAmt.getValue().toPlainString());
+			}
+			w.end(INSTD_AMT);
+		}
+		DirectDebitTransaction6 drctDbtTx = transaction.getDrctDbtTx();
+		if (drctDbtTx != null) {
+			w.start(DRCT_DBT_TX);
+			mandate(w, drctDbtTx.getMndtRltdInf());
+			w.end(DRCT_DBT_TX);
+		}
+		agent(w, DBTR_AGT, transaction.getDbtrAgt());
+		party(w, DBTR, transaction.getDbtr());
+		account(w, DBTR_ACCT, transaction.getDbtrAcct());
+		w.end(DRCT_DBT_TX_INF);
+	}
+
+	static void mandate(XmlByteWriter w, MandateRelatedInformation6 mandate) throws IOException{
+		if (mandate == null) {
+			return;
+		}
+		w.start(MNDT_RLTD_INF);
+		w.element(MNDT_ID, mandate.getMndtId());
+		w.element(DT_OF_SGNTR, mandate.getDtOfSgntr());
+		Boolean amdmntInd = mandate.isAmdmntInd();
+		if (amdmntInd != null) {
+			w.element(AMDMNT_IND, amdmntInd.booleanValue() ? "true" : "false");
+		}
+		AmendmentInformationDetails6 details = mandate.getAmdmntInfDtls();
+		if (details != null) {
+			w.start(AMDMNT_INF_DTLS);
+			account(w, ORGNL_DBTR_ACCT, details.getOrgnlDbtrAcct());
+			agent(w, ORGNL_DBTR_AGT, details.getOrgnlDbtrAgt());
+			w.end(AMDMNT_INF_DTLS);
+		}
+		w.end(MNDT_RLTD_INF);
+	}
+
+	static void party(XmlByteWriter w, byte[] tag, PartyIdentification32 party) throws IOException{
+		if (party == null) {
+			return;
+		}
+		w.start(tag);
+		w.element(NM, party.getNm());
+		Party6Choice id = party.getId();
+		if (id != null) {
+			w.start(ID);
+			PersonIdentification5 prvtId = id.getPrvtId();
+			if (prvtId != null) {
+				w.start(PRVT_ID);
+				List<GenericPersonIdentification1> others = prvtId.getOthr();
+				for (int i = 0, n = others.size(); i < n; i++) {
+					w.start(OTHR);
+					w.element(ID, others.get(i).getId());
+					w.end(OTHR);
+				}
+				w.end(PRVT_ID);
+			}
+			w.end(ID);
+		}
+		w.end(tag);
+	}
+
+	static void account(XmlByteWriter w, byte[] tag, CashAccount16 account) throws IOException{
+		if (account == null) {
+			return;
+		}
+		w.start(tag);
+		AccountIdentification4Choice id = account.getId();
+		if (id != null) {
+			w.start(ID);
+			w.element(IBAN, id.getIBAN());
+			w.end(ID);
+		}
+		w.end(tag);
+	}
+
+	static void agent(XmlByteWriter w, byte[] tag, BranchAndFinancialInstitutionIdentification4 agent) throws IOException{
+		if (agent == null) {
+			return;
+		}
+		w.start(tag);
+		FinancialInstitutionIdentification7 finInstnId = agent.getFinInstnId();
+		if (finInstnId != null) {
+			w.start(FIN_INSTN_ID);
+			w.element(BIC, finInstnId.getBIC());
+			GenericFinancialIdentification1 othr = finInstnId.getOthr();
+			if (othr != null) {
+				w.start(OTHR);
+				w.element(ID, othr.getId());
+				w.end(OTHR);
+			}
+			w.end(FIN_INSTN_ID);
+		}
+		w.end(tag);
+	}
+}
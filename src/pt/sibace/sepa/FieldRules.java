@@ -0,0 +1,172 @@
+package pt.sibace.sepa;
+
+/**
+ * Length and character rules of the SEPA fields set by the payment groups, from the pain.001.001.03 and
+ * pain.008.001.02 schemas and the Portuguese implementation guidelines, checked without regular expressions.
+ *
+ * The rules are tables indexed by field: maximum length, whether the field is required, the characters allowed
+ * (a lookup table per character set) and the format. A problem is reported as a compact code, the field ordinal
+ * and the problem ({@link #MISSING}, {@link #TOO_LONG}, {@link #BAD_CHARACTER}, {@link #BAD_FORMAT}) in one int;
+ * a valid value returns {@link #VALID} without creating anything.
+ *
+ */
+public final class FieldRules {
+
+	/**
+	 * Fields checked.
+	 */
+	public enum Field {
+		END_TO_END_ID, PAYMENT_INFORMATION_ID, MANDATE_ID, CREDITOR_ID, NAME, IBAN, BIC
+	}
+
+	public static final int VALID = 0;
+	public static final int MISSING = 1;
+	public static final int TOO_LONG = 2;
+	public static final int BAD_CHARACTER = 3;
+	public static final int BAD_FORMAT = 4;
+	// Ids only
+	public static final int DUPLICATE = 5;
+	public static final int SEEN_BEFORE = 6;
+
+	private static final String[] PROBLEMS = {"valid", "missing", "too long", "character not allowed", "wrong format",
+		"already used in the document", "possibly used in an earlier file"};
+
+	// Formats
+	private static final int TEXT = 0;
+	// Identifiers: not starting or ending with '/', and without "//"
+	private static final int IDENTIFIER = 1;
+	// Two letters, two digits, then letters and digits
+	private static final int IBAN_FORMAT = 2;
+	// Six letters, a letter or digit other than 0 and 1, a letter other than O or a digit, optionally three more
+	private static final int BIC_FORMAT = 3;
+
+	// Characters: SEPA set (a-z A-Z 0-9 / - ? : ( ) . , ' + space), or letters and digits only
+	private static final boolean[] SEPA = new boolean[128];
+	private static final boolean[] ALPHANUMERIC = new boolean[128];
+
+	// Rules by field ordinal
+	private static final int[] MAX_LENGTH = {35, 35, 35, 35, 70, 34, 11};
+	private static final boolean[] REQUIRED = {true, true, true, true, true, true, true};
+	private static final boolean[][] CHARACTERS = {SEPA, SEPA, SEPA, SEPA, SEPA, ALPHANUMERIC, ALPHANUMERIC};
+	private static final int[] FORMAT = {IDENTIFIER, IDENTIFIER, IDENTIFIER, IDENTIFIER, TEXT, IBAN_FORMAT, BIC_FORMAT};
+
+	private static final Field[] FIELDS = Field.values();
+
+	static {
+		for (char c = 0; c < 128; c++) {
+			ALPHANUMERIC[c] = c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9';
+			SEPA[c] = ALPHANUMERIC[c] || "/-?:().,'+ ".indexOf(c) >= 0;
+		}
+	}
+
+	private FieldRules(){
+	}
+
+	/**
+	 * @param field
+	 * @param value value of the field, null if not set
+	 * @return {@link #VALID}, or the code of the first problem found
+	 */
+	public static int check(Field field, String value){
+		int rule = field.ordinal();
+		if (value == null) {
+			return REQUIRED[rule] ? code(field, MISSING) : VALID;
+		}
+		int length = value.length();
+		if (length == 0) {
+			// An empty element is not valid either, even for optional fields
+			return code(field, MISSING);
+		}
+		if (length > MAX_LENGTH[rule]) {
+			return code(field, TOO_LONG);
+		}
+		boolean[] characters = CHARACTERS[rule];
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c >= 128 || !characters[c]) {
+				return code(field, BAD_CHARACTER);
+			}
+		}
+		return isFormatted(FORMAT[rule], value, length) ? VALID : code(field, BAD_FORMAT);
+	}
+
+	/**
+	 * @return most characters allowed in the field
+	 */
+	public static int maxLength(Field field){
+		return MAX_LENGTH[field.ordinal()];
+	}
+
+	/**
+	 * @return true if the character is in the SEPA set
+	 */
+	static boolean isSepa(char c){
+		return c < 128 && SEPA[c];
+	}
+
+	/**
+	 * @return field of a problem code
+	 */
+	public static Field field(int code){
+		return FIELDS[code >>> 4];
+	}
+
+	/**
+	 * @return problem of a problem code: {@link #MISSING}, {@link #TOO_LONG}, {@link #BAD_CHARACTER}, {@link #BAD_FORMAT},
+	 * {@link #DUPLICATE} or {@link #SEEN_BEFORE}
+	 */
+	public static int problem(int code){
+		return code & 0xF;
+	}
+
+	/**
+	 * @return text describing a problem code
+	 */
+	public static String message(int code){
+		return code == VALID ? PROBLEMS[VALID] : field(code) + " " + PROBLEMS[problem(code)];
+	}
+
+	static int code(Field field, int problem){
+		return field.ordinal() << 4 | problem;
+	}
+
+	private static boolean isFormatted(int format, String value, int length){
+		switch (format) {
+		case IDENTIFIER:
+			return value.charAt(0) != '/' && value.charAt(length - 1) != '/' && value.indexOf("//") < 0;
+		case IBAN_FORMAT:
+			return length >= 5 && isUpper(value.charAt(0)) && isUpper(value.charAt(1))
+					&& isDigit(value.charAt(2)) && isDigit(value.charAt(3));
+		case BIC_FORMAT:
+			if (length != 8 && length != 11) {
+				return false;
+			}
+			for (int i = 0; i < 6; i++) {
+				if (!isUpper(value.charAt(i))) {
+					return false;
+				}
+			}
+			char location = value.charAt(6);
+			char code = value.charAt(7);
+			if (!isUpper(location) && (location < '2' || location > '9') || !isUpper(code) && !isDigit(code) || code == 'O') {
+				return false;
+			}
+			for (int i = 8; i < length; i++) {
+				if (!isUpper(value.charAt(i)) && !isDigit(value.charAt(i))) {
+					return false;
+				}
+			}
+			return true;
+		default:
+			return true;
+		}
+	}
+
+	private static boolean isUpper(char c){
+		return c >= 'A' && c <= 'Z';
+	}
+
+	private static boolean isDigit(char c){
+		return c >= '0' && c <= '9';
+	}
+}
@@ -0,0 +1,35 @@
+package pt.sibace.sepa;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Writes split files to the file system, naming them with a {@link String#format(String, Object...)} pattern
+ * that receives the file number and the file's MsgId, e.g. <code>"/out/ct-%03d.xml"</code> or 
+ * <code>"/out/%2$s.xml"</code>.
+ *
+ */
+public class FileSplitOutput implements SplitOutput {
+
+	private final String pattern;
+
+	/**
+	 * @param pattern System dependent file name pattern
+	 */
+	public FileSplitOutput(String pattern){
+		this.pattern = pattern;
+	}
+
+	public OutputStream open(int part, String msgId) throws IOException{
+		return new FileOutputStream(fileName(part, msgId));
+	}
+
+	/**
+	 * @return name of the given file
+	 */
+	public String fileName(int part, String msgId){
+		return String.format(Locale.ROOT, pattern, part, msgId);
+	}
+}
@@ -0,0 +1,66 @@
+package pt.sibace.sepa;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded canonicalizing cache of JAXB subtrees that are the same for a given key (the agent of a BIC, the account
+ * of an IBAN...), shared by the transactions of one payment group.
+ *
+ * When the cache is full, its least recently used subtree is evicted; transactions still using it keep their
+ * reference. Not thread safe: a cache belongs to its payment group, which is filled by one thread at a time.
+ *
+ * Shared subtrees must not be modified: a change would show in every transaction of the group that uses them.
+ *
+ */
+abstract class FlyweightCache<K, V> {
+
+	private final FlyweightReport.Subtree subtree;
+	private final Lru<K, V> values;
+
+	/**
+	 * @param subtree kind of subtree cached, for the reports
+	 * @param maxSize maximum number of subtrees kept
+	 */
+	FlyweightCache(FlyweightReport.Subtree subtree, int maxSize){
+		this.subtree = subtree;
+		this.values = new Lru<K, V>(maxSize);
+	}
+
+	/**
+	 * Creates the subtree of a key.
+	 */
+	abstract V create(K key);
+
+	/**
+	 * @param key
+	 * @param report report counting the subtrees shared
+	 * @return cached subtree of the key, created if needed
+	 */
+	V get(K key, FlyweightReport report){
+		V value = values.get(key);
+		if (value == null) {
+			value = create(key);
+			values.put(key, value);
+		} else {
+			report.shared(subtree);
+		}
+		return value;
+	}
+
+	private static final class Lru<K, V> extends LinkedHashMap<K, V> {
+		private static final long serialVersionUID = 1L;
+
+		private final int maxSize;
+
+		Lru(int maxSize){
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest){
+			return size() > maxSize;
+		}
+	}
+}
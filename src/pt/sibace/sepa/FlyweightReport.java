@@ -0,0 +1,101 @@
+package pt.sibace.sepa;
+
+/**
+ * Number of JAXB subtrees (agents, accounts, parties, mandate dates) the transactions of payment groups share with earlier
+ * transactions of the same group instead of creating them again, and the number of objects this saved.
+ *
+ */
+public final class FlyweightReport {
+
+	/**
+	 * Kind of shared subtree, with the number of JAXB objects it is made of.
+	 */
+	enum Subtree {
+		// BranchAndFinancialInstitutionIdentification4 and FinancialInstitutionIdentification7
+		AGENT(2),
+		// CashAccount16 and AccountIdentification4Choice
+		ACCOUNT(2),
+		// PartyIdentification32
+		PARTY(1),
+		// XMLGregorianCalendar of a mandate signature date
+		DATE(1);
+
+		final int objects;
+
+		Subtree(int objects){
+			this.objects = objects;
+		}
+	}
+
+	private long agents;
+	private long accounts;
+	private long parties;
+	private long dates;
+	private long objects;
+
+	void shared(Subtree subtree){
+		switch (subtree) {
+		case AGENT:
+			agents++;
+			break;
+		case ACCOUNT:
+			accounts++;
+			break;
+		case DATE:
+			dates++;
+			break;
+		default:
+			parties++;
+		}
+		objects += subtree.objects;
+	}
+
+	void add(FlyweightReport other){
+		agents += other.agents;
+		accounts += other.accounts;
+		parties += other.parties;
+		dates += other.dates;
+		objects += other.objects;
+	}
+
+	/**
+	 * @return number of agent (BIC) subtrees shared
+	 */
+	public long getSharedAgents(){
+		return agents;
+	}
+
+	/**
+	 * @return number of account (IBAN) subtrees shared
+	 */
+	public long getSharedAccounts(){
+		return accounts;
+	}
+
+	/**
+	 * @return number of party (name) subtrees shared
+	 */
+	public long getSharedParties(){
+		return parties;
+	}
+
+	/**
+	 * @return number of mandate dates shared
+	 */
+	public long getSharedDates(){
+		return dates;
+	}
+
+	/**
+	 * @return number of JAXB objects not created thanks to sharing
+	 */
+	public long getObjectsSaved(){
+		return objects;
+	}
+
+	@Override
+	public String toString(){
+		return "FlyweightReport[agents=" + agents + ", accounts=" + accounts + ", parties=" + parties
+				+ ", dates=" + dates + ", objectsSaved=" + objects + "]";
+	}
+}
@@ -0,0 +1,115 @@
+package pt.sibace.sepa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Encodes the items of a list (payment groups) as independent XML fragments on a fork-join pool, and copies the
+ * fragments into the target writer in list order, so the result is the same as a sequential write.
+ *
+ * Only a window of fragments is kept in flight (twice the pool parallelism), so memory is bounded by the size of
+ * a few groups rather than by the size of the document.
+ *
+ */
+abstract class FragmentWriter<T> {
+
+	private static final int FRAGMENT_BUFFER_SIZE = 8 * 1024;
+
+	private final ForkJoinPool pool;
+	private final int depth;
+
+	/**
+	 * @param pool pool used to encode fragments
+	 * @param depth depth of each fragment root element inside the document
+	 */
+	FragmentWriter(ForkJoinPool pool, int depth){
+		this.pool = pool;
+		this.depth = depth;
+	}
+
+	/**
+	 * Encodes one item. Called concurrently, from pool threads.
+	 */
+	abstract void encode(T item, XmlByteWriter w) throws IOException;
+
+	void write(List<T> items, XmlByteWriter target) throws IOException{
+		int n = items.size();
+		int window = Math.max(2, pool.getParallelism() * 2);
+		Queue<ForkJoinTask<Fragment>> inFlight = new ArrayDeque<ForkJoinTask<Fragment>>(Math.min(window, n) + 1);
+		int next = 0;
+		try {
+			while (next < n && inFlight.size() < window) {
+				inFlight.add(pool.submit(task(items.get(next++))));
+			}
+			while (!inFlight.isEmpty()) {
+				Fragment fragment = join(inFlight.poll());
+				if (next < n) {
+					inFlight.add(pool.submit(task(items.get(next++))));
+				}
+				fragment.copyTo(target);
+			}
+		} finally {
+			// Only left over when a fragment failed
+			for (ForkJoinTask<Fragment> task : inFlight) {
+				task.cancel(false);
+			}
+		}
+		if (n > 0) {
+			target.markChildren();
+		}
+	}
+
+	private Callable<Fragment> task(final T item){
+		return new Callable<Fragment>() {
+			public Fragment call() throws IOException{
+				Fragment fragment = new Fragment();
+				XmlByteWriter w = new XmlByteWriter(fragment, FRAGMENT_BUFFER_SIZE);
+				w.setDepth(depth);
+				encode(item, w);
+				w.flush();
+				return fragment;
+			}
+		};
+	}
+
+	private static Fragment join(ForkJoinTask<Fragment> task) throws IOException{
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while encoding payment groups", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Encoded fragment, copied to the target without an extra array copy.
+	 */
+	private static final class Fragment extends ByteArrayOutputStream {
+		Fragment(){
+			super(FRAGMENT_BUFFER_SIZE);
+		}
+
+		void copyTo(XmlByteWriter w) throws IOException{
+			w.write(buf, 0, count);
+		}
+	}
+}
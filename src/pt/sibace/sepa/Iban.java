@@ -0,0 +1,272 @@
+package pt.sibace.sepa;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * IBAN checks for the countries of the SEPA scheme: country code, length, BBAN format (digits, letters or both at
+ * each position, per the IBAN registry) and the ISO 7064 mod 97-10 check digits.
+ *
+ * The countries are those of the scheme's geographical scope after the November 2024 decision admitting Albania,
+ * Moldova, Montenegro and North Macedonia.
+ *
+ * IBANs are checked in their electronic form (uppercase, without spaces), as the xml files require. The checksum
+ * is computed over the characters in place, in long arithmetic reduced every few characters, without building the
+ * numeric string or any other object.
+ *
+ */
+public final class Iban {
+
+	public static final int VALID = 0;
+	public static final int MISSING = 1;
+	public static final int UNKNOWN_COUNTRY = 2;
+	public static final int WRONG_LENGTH = 3;
+	public static final int WRONG_FORMAT = 4;
+	public static final int WRONG_CHECKSUM = 5;
+
+	private static final String[] MESSAGES = {
+		"Valid", "Missing IBAN", "Country not in SEPA", "Wrong length for the country", "Wrong format for the country", "Wrong check digits"
+	};
+
+	// BBAN format per country: count and kind of characters (n digits, a uppercase letters, c both), in order
+	private static final String[] COUNTRIES = {
+		"AD 4n4n12c", "AL 8n16c", "AT 5n11n", "BE 3n7n2n", "BG 4a4n2n8c", "CH 5n12c", "CY 3n5n16c", "CZ 4n6n10n",
+		"DE 8n10n", "DK 4n9n1n", "EE 2n2n11n1n", "ES 4n4n1n1n10n", "FI 3n11n", "FR 5n5n11c2n", "GB 4a6n8n",
+		"GI 4a15c", "GR 3n4n16c", "HR 7n10n", "HU 3n4n1n15n1n", "IE 4a6n8n", "IS 4n2n6n10n", "IT 1a5n5n12c",
+		"LI 5n12c", "LT 5n11n", "LU 3n13c", "LV 4a13c", "MC 5n5n11c2n", "MD 2c18c", "ME 3n13n2n", "MK 3n10c2n",
+		"MT 4a5n18c", "NL 4a10n", "NO 4n6n1n", "PL 8n16n", "PT 4n4n11n2n", "RO 4a16c", "SE 3n16n1n", "SI 5n8n2n",
+		"SK 4n6n10n", "SM 1a5n5n12c", "VA 3n15n"
+	};
+
+	private static final byte DIGIT = 1;
+	private static final byte LETTER = 2;
+	private static final byte ALPHANUMERIC = DIGIT | LETTER;
+
+	// Character kind at each BBAN position, by country (first letter * 26 + second letter); null outside SEPA
+	private static final byte[][] FORMATS = new byte[26 * 26][];
+
+	// Countries whose BBAN is only digits, checked eight digits at a time in byte form
+	private static final boolean[] NUMERIC = new boolean[26 * 26];
+
+	// Reduce the remainder before it could overflow when two more digits are added
+	private static final long REDUCE = 10000000000000000L;
+
+	// IBANs per task when checking in parallel
+	static final int CHUNK = 8192;
+
+	static {
+		for (String country : COUNTRIES) {
+			StringBuilder kinds = new StringBuilder();
+			int count = 0;
+			for (int i = 3; i < country.length(); i++) {
+				char c = country.charAt(i);
+				if (c >= '0' && c <= '9') {
+					count = count * 10 + c - '0';
+					continue;
+				}
+				byte kind = c == 'n' ? DIGIT : c == 'a' ? LETTER : ALPHANUMERIC;
+				for (; count > 0; count--) {
+					kinds.append((char) kind);
+				}
+			}
+			byte[] format = new byte[kinds.length()];
+			for (int i = 0; i < format.length; i++) {
+				format[i] = (byte) kinds.charAt(i);
+			}
+			FORMATS[(country.charAt(0) - 'A') * 26 + country.charAt(1) - 'A'] = format;
+			NUMERIC[(country.charAt(0) - 'A') * 26 + country.charAt(1) - 'A'] = country.indexOf('a') < 0 && country.indexOf('c') < 0;
+		}
+	}
+
+	private Iban(){
+	}
+
+	/**
+	 * @return true if the IBAN is valid and from a SEPA country
+	 */
+	public static boolean isValid(CharSequence iban){
+		return check(iban) == VALID;
+	}
+
+	/**
+	 * @return {@link #VALID}, or the first problem found
+	 */
+	public static int check(CharSequence iban){
+		if (iban == null || iban.length() == 0) {
+			return MISSING;
+		}
+		int length = iban.length();
+		if (length < 4 || !isLetter(iban.charAt(0)) || !isLetter(iban.charAt(1))) {
+			return length < 4 ? WRONG_LENGTH : UNKNOWN_COUNTRY;
+		}
+		byte[] format = FORMATS[(iban.charAt(0) - 'A') * 26 + iban.charAt(1) - 'A'];
+		if (format == null) {
+			return UNKNOWN_COUNTRY;
+		}
+		if (length != format.length + 4) {
+			return WRONG_LENGTH;
+		}
+		if (!isDigit(iban.charAt(2)) || !isDigit(iban.charAt(3))) {
+			return WRONG_FORMAT;
+		}
+		// BBAN first, then the country code and check digits
+		long remainder = 0;
+		for (int i = 4; i < length; i++) {
+			char c = iban.charAt(i);
+			byte kind = format[i - 4];
+			if (isDigit(c) && (kind & DIGIT) != 0) {
+				remainder = remainder * 10 + c - '0';
+			} else if (isLetter(c) && (kind & LETTER) != 0) {
+				remainder = remainder * 100 + c - 'A' + 10;
+			} else {
+				return WRONG_FORMAT;
+			}
+			if (remainder >= REDUCE) {
+				remainder %= 97;
+			}
+		}
+		// Country letters (two digits each) and check digits: six more digits at once
+		int checkDigits = (iban.charAt(2) - '0') * 10 + iban.charAt(3) - '0';
+		remainder = (remainder % 97 * 1000000 + (iban.charAt(0) - 'A' + 10) * 10000 + (iban.charAt(1) - 'A' + 10) * 100
+					 + checkDigits) % 97;
+		return remainder == 1 && isCheckDigits(checkDigits) ? VALID : WRONG_CHECKSUM;
+	}
+
+	/**
+	 * Checks an IBAN given as ASCII bytes, as {@link #check(CharSequence)} does. BBANs made only of digits are
+	 * checked with {@link AsciiScan}, and enter the checksum eight digits at a time.
+	 * 
+	 * @return {@link #VALID}, or the first problem found
+	 */
+	static int check(byte[] iban, int offset, int length){
+		if (length == 0) {
+			return MISSING;
+		}
+		if (length < 4 || !AsciiScan.isLetter(iban[offset]) || !AsciiScan.isLetter(iban[offset + 1])) {
+			return length < 4 ? WRONG_LENGTH : UNKNOWN_COUNTRY;
+		}
+		int country = (iban[offset] - 'A') * 26 + iban[offset + 1] - 'A';
+		byte[] format = FORMATS[country];
+		if (format == null) {
+			return UNKNOWN_COUNTRY;
+		}
+		if (length != format.length + 4) {
+			return WRONG_LENGTH;
+		}
+		if (!AsciiScan.isDigit(iban[offset + 2]) || !AsciiScan.isDigit(iban[offset + 3])) {
+			return WRONG_FORMAT;
+		}
+		long remainder = 0;
+		int end = offset + length;
+		int i = offset + 4;
+		if (NUMERIC[country] && AsciiScan.isDigits(iban, i, length - 4)) {
+			for (; i + 8 <= end; i += 8) {
+				remainder = (remainder * 100000000 + AsciiScan.digits(iban, i)) % 97;
+			}
+			for (; i < end; i++) {
+				remainder = remainder * 10 + iban[i] - '0';
+			}
+		} else {
+			for (; i < end; i++) {
+				byte b = iban[i];
+				byte kind = format[i - offset - 4];
+				if (AsciiScan.isDigit(b) && (kind & DIGIT) != 0) {
+					remainder = remainder * 10 + b - '0';
+				} else if (AsciiScan.isLetter(b) && (kind & LETTER) != 0) {
+					remainder = remainder * 100 + b - 'A' + 10;
+				} else {
+					return WRONG_FORMAT;
+				}
+				if (remainder >= REDUCE) {
+					remainder %= 97;
+				}
+			}
+		}
+		int checkDigits = (iban[offset + 2] - '0') * 10 + iban[offset + 3] - '0';
+		remainder = (remainder % 97 * 1000000 + (iban[offset] - 'A' + 10) * 10000 + (iban[offset + 1] - 'A' + 10) * 100
+					 + checkDigits) % 97;
+		return remainder == 1 && isCheckDigits(checkDigits) ? VALID : WRONG_CHECKSUM;
+	}
+
+	/**
+	 * Checks many IBANs, split in chunks checked in parallel.
+	 *
+	 * @param ibans IBANs to check, null for missing ones
+	 * @param pool pool running the chunks, null to check them in the calling thread
+	 * @return result of each IBAN, as {@link #check(CharSequence)} returns it
+	 */
+	public static byte[] check(CharSequence[] ibans, ForkJoinPool pool){
+		byte[] results = new byte[ibans.length];
+		check(ibans, results, pool);
+		return results;
+	}
+
+	/**
+	 * Checks many IBANs into the given results array, as {@link #check(CharSequence[], ForkJoinPool)} does.
+	 */
+	static void check(CharSequence[] ibans, byte[] results, ForkJoinPool pool){
+		if (pool == null || ibans.length <= CHUNK) {
+			check(ibans, results, 0, ibans.length);
+		} else {
+			pool.invoke(new Chunk(ibans, results, 0, ibans.length));
+		}
+	}
+
+	/**
+	 * @return text describing a result of {@link #check(CharSequence)}
+	 */
+	public static String message(int result){
+		return result >= 0 && result < MESSAGES.length ? MESSAGES[result] : "Unknown result " + result;
+	}
+
+	private static void check(CharSequence[] ibans, byte[] results, int from, int to){
+		for (int i = from; i < to; i++) {
+			results[i] = (byte) check(ibans[i]);
+		}
+	}
+
+	/**
+	 * @return true for check digits that can be computed, 02 to 98: 00, 01 and 99 pass the mod 97 test in place of
+	 * 97, 98 and 02, but are never issued
+	 */
+	private static boolean isCheckDigits(int checkDigits){
+		return checkDigits >= 2 && checkDigits <= 98;
+	}
+
+	private static boolean isDigit(char c){
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isLetter(char c){
+		return c >= 'A' && c <= 'Z';
+	}
+
+	/**
+	 * Range of IBANs, split in halves down to {@link #CHUNK} IBANs.
+	 */
+	private static final class Chunk extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final CharSequence[] ibans;
+		private final byte[] results;
+		private final int from;
+		private final int to;
+
+		Chunk(CharSequence[] ibans, byte[] results, int from, int to){
+			this.ibans = ibans;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute(){
+			if (to - from <= CHUNK) {
+				check(ibans, results, from, to);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new Chunk(ibans, results, from, middle), new Chunk(ibans, results, middle, to));
+		}
+	}
+}
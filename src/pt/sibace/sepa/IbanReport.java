@@ -0,0 +1,90 @@
+package pt.sibace.sepa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of checking the IBANs of a payment group with {@link Iban}: number of IBANs checked and the invalid ones.
+ *
+ */
+public final class IbanReport {
+
+	private int checked;
+	private final List<Invalid> invalid = new ArrayList<Invalid>();
+
+	IbanReport(){
+	}
+
+	void checked(int count){
+		checked += count;
+	}
+
+	void invalid(String endToEndIdentification, String iban, int result){
+		invalid.add(new Invalid(endToEndIdentification, iban, result));
+	}
+
+	/**
+	 * @return number of IBANs checked
+	 */
+	public int getChecked(){
+		return checked;
+	}
+
+	/**
+	 * @return invalid IBANs, in the order of the transactions
+	 */
+	public List<Invalid> getInvalid(){
+		return Collections.unmodifiableList(invalid);
+	}
+
+	/**
+	 * @return true if all IBANs are valid
+	 */
+	public boolean isValid(){
+		return invalid.isEmpty();
+	}
+
+	@Override
+	public String toString(){
+		return checked + " IBANs checked, " + invalid.size() + " invalid" + (invalid.isEmpty() ? "" : " " + invalid);
+	}
+
+	/**
+	 * An invalid IBAN, with the transaction using it.
+	 */
+	public static final class Invalid {
+		private final String endToEndIdentification;
+		private final String iban;
+		private final int result;
+
+		Invalid(String endToEndIdentification, String iban, int result){
+			this.endToEndIdentification = endToEndIdentification;
+			this.iban = iban;
+			this.result = result;
+		}
+
+		/**
+		 * @return EndToEndId of the transaction, null for the account of the payment group
+		 */
+		public String getEndToEndIdentification(){
+			return endToEndIdentification;
+		}
+
+		public String getIban(){
+			return iban;
+		}
+
+		/**
+		 * @return problem found, one of the {@link Iban} results
+		 */
+		public int getResult(){
+			return result;
+		}
+
+		@Override
+		public String toString(){
+			return (endToEndIdentification == null ? "payment group" : endToEndIdentification) + ": " + iban + " (" + Iban.message(result) + ")";
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package pt.sibace.sepa;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generator of unique identifiers for MsgId, PmtInfId and EndToEndId, safe to share between threads.
+ *
+ * Each id is the prefix followed by 15 base 36 characters (0-9, A-Z): 13 for a value made of the current time in
+ * milliseconds and a sequence number within that millisecond, then 2 for the node number. Ids of one generator
+ * are unique and increasing, also in string order for the same prefix, even if the clock goes back: the value
+ * never decreases, and when more than a million ids are taken in one millisecond it moves on to the next one.
+ * Generators with different node numbers (0 to {@link #MAX_NODE}) never produce the same id.
+ *
+ * The value is taken with a compare and set, without locks. The only objects created are the char array the id is
+ * written into and the returned String, which copies it.
+ *
+ */
+public final class IdGenerator {
+
+	/**
+	 * Greatest node number, so it fits two base 36 characters.
+	 */
+	public static final int MAX_NODE = 36 * 36 - 1;
+
+	/**
+	 * Greatest prefix length, keeping ids within the 35 characters of Max35Text.
+	 */
+	public static final int MAX_PREFIX_LENGTH = 35 - 15;
+
+	// Bits of the value holding the sequence number within a millisecond
+	private static final int SEQUENCE_BITS = 20;
+
+	private static final int VALUE_LENGTH = 13;
+
+	private static final char[] DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+
+	private final int node;
+	private final char node0;
+	private final char node1;
+
+	// Time in milliseconds and sequence number of the last id
+	private final AtomicLong last = new AtomicLong();
+
+	/**
+	 * @param node number of this generator, 0 to {@link #MAX_NODE}, different for each generator that must not
+	 * collide with the others
+	 */
+	public IdGenerator(int node){
+		if (node < 0 || node > MAX_NODE) {
+			throw new IllegalArgumentException("Node out of range: " + node);
+		}
+		this.node = node;
+		node0 = DIGITS[node / 36];
+		node1 = DIGITS[node % 36];
+	}
+
+	/**
+	 * @return new id, without prefix
+	 */
+	public String next(){
+		return next("");
+	}
+
+	/**
+	 * @param prefix text before the generated part, at most {@link #MAX_PREFIX_LENGTH} characters
+	 * @return new id
+	 */
+	public String next(String prefix){
+		int length = prefix.length();
+		if (length > MAX_PREFIX_LENGTH) {
+			throw new IllegalArgumentException("Id prefix longer than " + MAX_PREFIX_LENGTH + " characters: " + prefix);
+		}
+		long value = nextValue();
+		char[] id = new char[length + VALUE_LENGTH + 2];
+		prefix.getChars(0, length, id, 0);
+		base36(value, id, length, VALUE_LENGTH);
+		id[length + VALUE_LENGTH] = node0;
+		id[length + VALUE_LENGTH + 1] = node1;
+		return new String(id);
+	}
+
+	/**
+	 * @return node number of this generator
+	 */
+	public int getNode(){
+		return node;
+	}
+
+	/**
+	 * Writes a non negative value in base 36, with leading zeros up to the given width, so that string order
+	 * follows the value.
+	 */
+	static void base36(long value, char[] target, int offset, int width){
+		for (int i = offset + width - 1; i >= offset; i--) {
+			target[i] = DIGITS[(int) (value % 36)];
+			value /= 36;
+		}
+	}
+
+	/**
+	 * @return time and sequence of a new id, greater than all the previous ones
+	 */
+	private long nextValue(){
+		for (;;) {
+			long previous = last.get();
+			long value = Math.max(previous + 1, System.currentTimeMillis() << SEQUENCE_BITS);
+			if (last.compareAndSet(previous, value)) {
+				return value;
+			}
+		}
+	}
+}
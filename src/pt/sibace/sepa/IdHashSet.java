@@ -0,0 +1,121 @@
+package pt.sibace.sepa;
+
+import java.util.Arrays;
+
+/**
+ * Set of 64 bit hashes of ids (EndToEndId, MndtId), each with the number of the transaction it was first added by,
+ * in open addressing arrays (linear probing) with no object per id. Two ids with the same 64 bit hash are taken as
+ * the same id; with a well mixed hash, that is unlikely below billions of ids.
+ *
+ */
+final class IdHashSet {
+
+	// Hash stored for ids hashing to 0, which marks a free slot
+	private static final long ZERO = 0x9E3779B97F4A7C15L;
+
+	private long[] hashes;
+	private int[] transactions;
+	private int size;
+	private int mask;
+
+	IdHashSet(){
+		this(16);
+	}
+
+	IdHashSet(int expected){
+		int capacity = Integer.highestOneBit(Math.max(8, expected) * 2 - 1) << 1;
+		hashes = new long[capacity];
+		transactions = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * @return 64 bit hash of the characters of an id: FNV-1a over each char, then the MurmurHash3 finalizer
+	 */
+	static long hash(CharSequence id){
+		long h = 0xCBF29CE484222325L;
+		for (int i = 0, n = id.length(); i < n; i++) {
+			h = (h ^ id.charAt(i)) * 0x100000001B3L;
+		}
+		return mix(h);
+	}
+
+	static long mix(long h){
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Adds a hash, unless already there.
+	 *
+	 * @return -1 if added, or the transaction that added the hash first
+	 */
+	int add(long hash, int transaction){
+		if (hash == 0) {
+			hash = ZERO;
+		}
+		int slot = (int) hash & mask;
+		for (;;) {
+			long current = hashes[slot];
+			if (current == 0) {
+				break;
+			}
+			if (current == hash) {
+				return transactions[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		hashes[slot] = hash;
+		transactions[slot] = transaction;
+		if (++size * 4 > hashes.length * 3) {
+			grow();
+		}
+		return -1;
+	}
+
+	int size(){
+		return size;
+	}
+
+	/**
+	 * Adds the hashes of another set to this one, with the transaction numbers of the other set.
+	 *
+	 * @param duplicates receives the transaction numbers of the other set whose hashes were already here; the
+	 * first entries of the array, as many as returned
+	 * @return number of hashes already here
+	 */
+	int addAll(IdHashSet other, int[] duplicates){
+		int count = 0;
+		for (int slot = 0; slot < other.hashes.length; slot++) {
+			if (other.hashes[slot] != 0 && add(other.hashes[slot], other.transactions[slot]) >= 0) {
+				duplicates[count++] = other.transactions[slot];
+			}
+		}
+		// In the order of the transactions
+		Arrays.sort(duplicates, 0, count);
+		return count;
+	}
+
+	private void grow(){
+		long[] oldHashes = hashes;
+		int[] oldTransactions = transactions;
+		hashes = new long[oldHashes.length * 2];
+		transactions = new int[oldHashes.length * 2];
+		mask = hashes.length - 1;
+		for (int i = 0; i < oldHashes.length; i++) {
+			long hash = oldHashes[i];
+			if (hash != 0) {
+				int slot = (int) hash & mask;
+				while (hashes[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				hashes[slot] = hash;
+				transactions[slot] = oldTransactions[i];
+			}
+		}
+	}
+}
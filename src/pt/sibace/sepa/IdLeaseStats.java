@@ -0,0 +1,72 @@
+package pt.sibace.sepa;
+
+/**
+ * Lease counters of a {@link LeasedIdAllocator}, at the time they were read.
+ *
+ */
+public final class IdLeaseStats {
+
+	private final long leases;
+	private final long leasedIds;
+	private final long issuedIds;
+	private final long returnedIds;
+	private final long remainingIds;
+	private final long leaseNanos;
+
+	IdLeaseStats(long leases, long leasedIds, long issuedIds, long returnedIds, long remainingIds, long leaseNanos){
+		this.leases = leases;
+		this.leasedIds = leasedIds;
+		this.issuedIds = issuedIds;
+		this.returnedIds = returnedIds;
+		this.remainingIds = remainingIds;
+		this.leaseNanos = leaseNanos;
+	}
+
+	/**
+	 * @return number of blocks taken from the counter file
+	 */
+	public long getLeases(){
+		return leases;
+	}
+
+	/**
+	 * @return number of ids in the blocks taken
+	 */
+	public long getLeasedIds(){
+		return leasedIds;
+	}
+
+	/**
+	 * @return number of ids handed out
+	 */
+	public long getIssuedIds(){
+		return issuedIds;
+	}
+
+	/**
+	 * @return number of unused ids given back to the counter file on close
+	 */
+	public long getReturnedIds(){
+		return returnedIds;
+	}
+
+	/**
+	 * @return number of ids left in the current block
+	 */
+	public long getRemainingIds(){
+		return remainingIds;
+	}
+
+	/**
+	 * @return time spent taking blocks, waiting for the file lock included, in nanoseconds
+	 */
+	public long getLeaseNanos(){
+		return leaseNanos;
+	}
+
+	@Override
+	public String toString(){
+		return leases + " leases, " + issuedIds + " of " + leasedIds + " ids issued, " + returnedIds + " returned, "
+				+ remainingIds + " remaining, " + leaseNanos / 1000000 + " ms leasing";
+	}
+}
@@ -0,0 +1,253 @@
+package pt.sibace.sepa;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocator of ids unique across processes, which take blocks of numbers from a shared counter file.
+ *
+ * A block is leased by locking the counter file, moving the counter past the block and forcing it to disk before
+ * any id of the block is handed out; ids are then handed out from memory, without locks or I/O, until the block
+ * runs out. A process that crashes only loses the rest of its block. On {@link #close()} the unused part of the
+ * block is given back if no one leased a block after it.
+ *
+ * The counter is kept twice, in two slots written in turn with a generation number and a check value, so a write
+ * cut short by a crash leaves the previous counter readable. A counter file that cannot be read is reported, never
+ * started again from zero.
+ *
+ * Ids are the prefix followed by the number in 13 base 36 characters (0-9, A-Z), increasing within each process.
+ * The counter file can be on a shared file system only if that file system supports file locks.
+ *
+ */
+public final class LeasedIdAllocator implements Closeable {
+
+	/**
+	 * Greatest prefix length, keeping ids within the 35 characters of Max35Text.
+	 */
+	public static final int MAX_PREFIX_LENGTH = 35 - 13;
+
+	private static final int VALUE_LENGTH = 13;
+
+	// Slot: generation, counter, check value
+	private static final int SLOT_SIZE = 24;
+	private static final long CHECK = 0x5345504149444C53L;
+
+	// File locks belong to the process, so two allocators of this JVM cannot lock the same counter file at the same
+	// time: they take their leases one at a time
+	private static final Object FILE_LOCK = new Object();
+
+	private final File counterFile;
+	private final int blockSize;
+
+	private volatile Lease lease = new Lease(0, 0);
+	private volatile boolean closed;
+
+	// Counters, guarded by this
+	private long leases;
+	private long leasedIds;
+	private long returnedIds;
+	private long leaseNanos;
+
+	/**
+	 * @param counterFile counter shared by the allocators, created if it does not exist
+	 * @param blockSize number of ids leased at a time
+	 */
+	public LeasedIdAllocator(File counterFile, int blockSize){
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+		}
+		this.counterFile = counterFile;
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @return new id number, leasing a block from the counter file when the current one runs out
+	 * @throws UncheckedIOException if the counter file cannot be read or written
+	 * @throws IllegalStateException if the allocator is closed
+	 */
+	public long nextValue(){
+		for (;;) {
+			Lease current = lease;
+			long value = current.next.getAndIncrement();
+			if (value < current.end) {
+				return value;
+			}
+			renew(current);
+		}
+	}
+
+	/**
+	 * @param prefix text before the number, at most {@link #MAX_PREFIX_LENGTH} characters
+	 * @return new id
+	 * @throws UncheckedIOException if the counter file cannot be read or written
+	 * @throws IllegalStateException if the allocator is closed
+	 */
+	public String next(String prefix){
+		int length = prefix.length();
+		if (length > MAX_PREFIX_LENGTH) {
+			throw new IllegalArgumentException("Id prefix longer than " + MAX_PREFIX_LENGTH + " characters: " + prefix);
+		}
+		long value = nextValue();
+		char[] id = new char[length + VALUE_LENGTH];
+		prefix.getChars(0, length, id, 0);
+		IdGenerator.base36(value, id, length, VALUE_LENGTH);
+		return new String(id);
+	}
+
+	/**
+	 * @return lease counters so far
+	 */
+	public synchronized IdLeaseStats getStats(){
+		Lease current = lease;
+		long remaining = current.end - Math.min(current.next.get(), current.end);
+		return new IdLeaseStats(leases, leasedIds, leasedIds - returnedIds - remaining, returnedIds, remaining, leaseNanos);
+	}
+
+	/**
+	 * Gives the unused ids of the current block back, if no block was leased after it. The allocator can no longer
+	 * hand out ids afterwards. Safe to call more than once.
+	 */
+	public synchronized void close() throws IOException{
+		if (closed) {
+			return;
+		}
+		closed = true;
+		Lease current = lease;
+		// Threads still taking ids from this block now get numbers past its end, and fail on renewing it
+		long unused = Math.min(current.next.getAndSet(current.end), current.end);
+		if (unused < current.end && giveBack(current.end, unused)) {
+			returnedIds += current.end - unused;
+		}
+	}
+
+	private synchronized void renew(Lease expired){
+		if (closed) {
+			throw new IllegalStateException("Id allocator already closed");
+		}
+		if (lease != expired) {
+			// Renewed by another thread
+			return;
+		}
+		long start = System.nanoTime();
+		long first;
+		try {
+			first = reserve(blockSize);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		lease = new Lease(first, first + blockSize);
+		leases++;
+		leasedIds += blockSize;
+		leaseNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Moves the counter past a block of ids.
+	 *
+	 * @return first id of the block
+	 */
+	private long reserve(int count) throws IOException{
+		synchronized (FILE_LOCK) {
+			RandomAccessFile file = new RandomAccessFile(counterFile, "rw");
+			try {
+				// Released when the file is closed
+				FileChannel channel = file.getChannel();
+				channel.lock();
+				long[] counter = read(channel);
+				if (counter[1] > Long.MAX_VALUE - count) {
+					throw new IllegalStateException("Id counter exhausted: " + counterFile);
+				}
+				write(channel, counter[0] + 1, counter[1] + count);
+				return counter[1];
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	/**
+	 * Moves the counter back to the first unused id, if it is still at the end of this allocator's block.
+	 *
+	 * @return true if the ids were given back
+	 */
+	private boolean giveBack(long end, long unused) throws IOException{
+		synchronized (FILE_LOCK) {
+			RandomAccessFile file = new RandomAccessFile(counterFile, "rw");
+			try {
+				FileChannel channel = file.getChannel();
+				channel.lock();
+				long[] counter = read(channel);
+				if (counter[1] != end) {
+					return false;
+				}
+				write(channel, counter[0] + 1, unused);
+				return true;
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	/**
+	 * @return generation and value of the current counter, zeros for a new file
+	 */
+	private long[] read(FileChannel channel) throws IOException{
+		if (channel.size() == 0) {
+			return new long[] {0, 0};
+		}
+		ByteBuffer slots = ByteBuffer.allocate(2 * SLOT_SIZE);
+		while (slots.hasRemaining() && channel.read(slots, slots.position()) >= 0) {
+			// Read until full or end of file
+		}
+		long[] current = null;
+		for (int offset = 0; offset + SLOT_SIZE <= slots.position(); offset += SLOT_SIZE) {
+			long generation = slots.getLong(offset);
+			long value = slots.getLong(offset + 8);
+			if (slots.getLong(offset + 16) == check(generation, value) && generation >= 0 && value >= 0
+					&& (current == null || generation > current[0])) {
+				current = new long[] {generation, value};
+			}
+		}
+		if (current == null) {
+			throw new IOException("Id counter file is corrupt: " + counterFile);
+		}
+		return current;
+	}
+
+	/**
+	 * Writes the counter in the slot of its generation, leaving the previous one in the other slot.
+	 */
+	private static void write(FileChannel channel, long generation, long value) throws IOException{
+		ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+		slot.putLong(generation).putLong(value).putLong(check(generation, value));
+		slot.flip();
+		long position = (generation & 1) * SLOT_SIZE;
+		while (slot.hasRemaining()) {
+			channel.write(slot, position + slot.position());
+		}
+		channel.force(true);
+	}
+
+	private static long check(long generation, long value){
+		return Long.rotateLeft(generation, 32) ^ value ^ CHECK;
+	}
+
+	/**
+	 * Block of ids, handed out from next up to end (excluded).
+	 */
+	private static final class Lease {
+		final AtomicLong next;
+		final long end;
+
+		Lease(long first, long end){
+			this.next = new AtomicLong(first);
+			this.end = end;
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package pt.sibace.sepa;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.MarshalException;
+import javax.xml.bind.Marshaller;
+
+/**
+ * Shared marshalling engine used by {@link CreditTransfer} and {@link DirectDebit}.
+ *
+ * Building a JAXBContext reflects over every generated class of the schema, so each context is created only once
+ * per document class and kept for the lifetime of the engine. Marshallers are not thread safe, so they are pooled:
+ * a writer borrows one, marshals, and gives it back for the next writer.
+ *
+ * Hit/miss and creation time counters are kept to monitor how effective the pool is.
+ *
+ */
+public final class MarshallerEngine {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final MarshallerEngine INSTANCE = new MarshallerEngine(Runtime.getRuntime().availableProcessors() * 2);
+
+	// Context and marshaller pool, per document class
+	private final ConcurrentMap<Class<?>, Entry> entries = new ConcurrentHashMap<Class<?>, Entry>();
+
+	// Maximum number of idle marshallers kept per document class
+	private final int maxIdle;
+
+	// Statistics
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong contextsCreated = new AtomicLong();
+	private final AtomicLong contextCreationNanos = new AtomicLong();
+	private final AtomicLong marshallerCreationNanos = new AtomicLong();
+
+	/**
+	 * Creates a new engine. Most callers should use the shared instance returned by {@link #getInstance()}.
+	 *
+	 * @param maxIdle maximum number of idle marshallers kept per document class
+	 */
+	public MarshallerEngine(int maxIdle){
+		if (maxIdle < 1) {
+			throw new IllegalArgumentException("maxIdle must be at least 1");
+		}
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * @return engine shared by all builders in this package
+	 */
+	public static MarshallerEngine getInstance(){
+		return INSTANCE;
+	}
+
+	/**
+	 * Marshals a JAXB element into a character stream, using formatted UTF-8 output.
+	 *
+	 * @param documentClass class used to build the JAXBContext (the schema's Document class)
+	 * @param element JAXB element to marshal
+	 * @param writer destination
+	 * @throws JAXBException
+	 */
+	public void marshal(Class<?> documentClass, Object element, Writer writer) throws JAXBException{
+		Marshaller marshaller = acquire(documentClass);
+		try {
+			marshaller.marshal(element, writer);
+		} finally {
+			release(documentClass, marshaller);
+		}
+	}
+
+	/**
+	 * Marshals a JAXB element into a byte stream, using formatted UTF-8 output.
+	 *
+	 * @param documentClass class used to build the JAXBContext (the schema's Document class)
+	 * @param element JAXB element to marshal
+	 * @param out destination
+	 * @throws JAXBException
+	 */
+	public void marshal(Class<?> documentClass, Object element, OutputStream out) throws JAXBException{
+		// The marshaller's own byte output loses the indentation of elements nested more than eight levels deep
+		// (mandate amendment details), so bytes are produced from its character output instead
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+		marshal(documentClass, element, writer);
+		try {
+			writer.flush();
+		} catch (IOException e) {
+			throw new MarshalException(e);
+		}
+	}
+
+	/**
+	 * Borrows a marshaller configured for formatted UTF-8 output. It must be given back with
+	 * {@link #release(Class, Marshaller)} and must not be used by more than one thread at a time.
+	 *
+	 * @param documentClass class used to build the JAXBContext (the schema's Document class)
+	 * @return pooled or newly created marshaller
+	 * @throws JAXBException
+	 */
+	public Marshaller acquire(Class<?> documentClass) throws JAXBException{
+		Entry entry = entry(documentClass);
+		Marshaller marshaller = entry.idle.poll();
+		if (marshaller != null) {
+			entry.idleCount.decrementAndGet();
+			hits.incrementAndGet();
+			return marshaller;
+		}
+		misses.incrementAndGet();
+
+		long start = System.nanoTime();
+		marshaller = entry.context().createMarshaller();
+		marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+		marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+		marshallerCreationNanos.addAndGet(System.nanoTime() - start);
+		return marshaller;
+	}
+
+	/**
+	 * Gives back a marshaller borrowed with {@link #acquire(Class)}. Marshallers above the idle limit are discarded.
+	 *
+	 * @param documentClass class the marshaller was borrowed for
+	 * @param marshaller
+	 */
+	public void release(Class<?> documentClass, Marshaller marshaller){
+		Entry entry = entry(documentClass);
+		if (entry.idleCount.incrementAndGet() <= maxIdle) {
+			entry.idle.offer(marshaller);
+		} else {
+			entry.idleCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @param documentClass
+	 * @return shared JAXBContext for the given document class, created on first use
+	 * @throws JAXBException
+	 */
+	public JAXBContext getContext(Class<?> documentClass) throws JAXBException{
+		return entry(documentClass).context();
+	}
+
+	/**
+	 * @return number of marshallers served from the pool
+	 */
+	public long getHits(){
+		return hits.get();
+	}
+
+	/**
+	 * @return number of marshallers that had to be created because the pool was empty
+	 */
+	public long getMisses(){
+		return misses.get();
+	}
+
+	/**
+	 * @return number of JAXBContexts created by this engine
+	 */
+	public long getContextsCreated(){
+		return contextsCreated.get();
+	}
+
+	/**
+	 * @return total time spent creating JAXBContexts, in nanoseconds
+	 */
+	public long getContextCreationNanos(){
+		return contextCreationNanos.get();
+	}
+
+	/**
+	 * @return total time spent creating marshallers, in nanoseconds
+	 */
+	public long getMarshallerCreationNanos(){
+		return marshallerCreationNanos.get();
+	}
+
+	@Override
+	public String toString(){
+		return "MarshallerEngine[hits=" + getHits() + ", misses=" + getMisses()
+				+ ", contexts=" + getContextsCreated()
+				+ ", contextCreationMs=" + getContextCreationNanos() / 1000000
+				+ ", marshallerCreationMs=" + getMarshallerCreationNanos() / 1000000 + "]";
+	}
+
+	private Entry entry(Class<?> documentClass){
+		Entry entry = entries.get(documentClass);
+		if (entry == null) {
+			Entry created = new Entry(documentClass);
+			entry = entries.putIfAbsent(documentClass, created);
+			if (entry == null) {
+				entry = created;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Context and idle marshallers for one document class. The context is created lazily, by the first writer
+	 * that needs it; concurrent writers wait for it instead of building their own.
+	 */
+	private final class Entry {
+		private final Class<?> documentClass;
+		private final Queue<Marshaller> idle = new ConcurrentLinkedQueue<Marshaller>();
+		private final AtomicInteger idleCount = new AtomicInteger();
+		private volatile JAXBContext context;
+
+		Entry(Class<?> documentClass){
+			this.documentClass = documentClass;
+		}
+
+		JAXBContext context() throws JAXBException{
+			JAXBContext jc = context;
+			if (jc == null) {
+				synchronized (this) {
+					jc = context;
+					if (jc == null) {
+						long start = System.nanoTime();
+						jc = JAXBContext.newInstance(documentClass);
+						contextCreationNanos.addAndGet(System.nanoTime() - start);
+						contextsCreated.incrementAndGet();
+						context = jc;
+					}
+				}
+			}
+			return jc;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package pt.sibace.sepa;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * {@link CreditTransferStore} appending each transaction as a binary record to a scratch {@link RecordFile},
+ * in the order of the CdtTrfTxInf elements, so it is written back in a single sequential read.
+ *
+ */
+final class OffHeapCreditTransferStore implements CreditTransferStore {
+
+	private final File directory;
+
+	// Created with the first transaction
+	private RecordFile records;
+	private int size;
+	private boolean closed;
+
+	// Where the last read stopped, so transactions added since are read without going through the earlier ones
+	private int resumeIndex;
+	private long resumePosition;
+
+	/**
+	 * @param directory directory for the scratch file, or null for the system temporary directory
+	 */
+	OffHeapCreditTransferStore(File directory){
+		this.directory = directory;
+	}
+
+	public void add(String endToEndIdentification, BigDecimal amount,
+					String creditorName, String creditorIBAN, String creditorBIC){
+		if (amount == null) {
+			throw new NullPointerException("amount");
+		}
+		try {
+			RecordFile out = records();
+			out.writeString(endToEndIdentification);
+			out.writeAmount(amount);
+			writeStrings(out, creditorName, creditorIBAN, creditorBIC);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public void add(String endToEndIdentification, long amountCents,
+					String creditorName, String creditorIBAN, String creditorBIC){
+		try {
+			RecordFile out = records();
+			out.writeString(endToEndIdentification);
+			out.writeAmount(amountCents);
+			writeStrings(out, creditorName, creditorIBAN, creditorBIC);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public void write(XmlByteWriter w) throws IOException{
+		if (size == 0) {
+			return;
+		}
+		RecordFile.Reader in = records.read(0);
+		for (int i = 0; i < size; i++) {
+			w.start(CreditTransferXml.CDT_TRF_TX_INF);
+			w.start(CreditTransferXml.PMT_ID);
+			in.element(w, CreditTransferXml.END_TO_END_ID);
+			w.end(CreditTransferXml.PMT_ID);
+			w.start(CreditTransferXml.AMT);
+			w.start(CreditTransferXml.INSTD_AMT);
+			w.attribute(CreditTransferXml.CCY, "EUR");
+			in.amountText(w);
+			w.end(CreditTransferXml.INSTD_AMT);
+			w.end(CreditTransferXml.AMT);
+			w.start(CreditTransferXml.CDTR_AGT);
+			w.start(CreditTransferXml.FIN_INSTN_ID);
+			in.element(w, CreditTransferXml.BIC);
+			w.end(CreditTransferXml.FIN_INSTN_ID);
+			w.end(CreditTransferXml.CDTR_AGT);
+			w.start(CreditTransferXml.CDTR);
+			in.element(w, CreditTransferXml.NM);
+			w.end(CreditTransferXml.CDTR);
+			w.start(CreditTransferXml.CDTR_ACCT);
+			w.start(CreditTransferXml.ID);
+			in.element(w, CreditTransferXml.IBAN);
+			w.end(CreditTransferXml.ID);
+			w.end(CreditTransferXml.CDTR_ACCT);
+			w.end(CreditTransferXml.CDT_TRF_TX_INF);
+		}
+	}
+
+	public void checkIbans(final String[] target, byte[] results, ForkJoinPool pool) throws IOException{
+		forEach(0, new Visitor() {
+			private int row;
+
+			public void transaction(String endToEndIdentification, BigDecimal amount,
+									String creditorName, String creditorIBAN, String creditorBIC){
+				target[row++] = creditorIBAN;
+			}
+		});
+		Iban.check(target, results, pool);
+	}
+
+	public void forEach(int from, Visitor visitor) throws IOException{
+		if (from >= size) {
+			return;
+		}
+		boolean resume = from == resumeIndex;
+		RecordFile.Reader in = records.read(resume ? resumePosition : 0);
+		for (int i = resume ? from : 0; i < size; i++) {
+			String endToEndIdentification = in.readString();
+			BigDecimal amount = in.readAmount();
+			String creditorBIC = in.readString();
+			String creditorName = in.readString();
+			String creditorIBAN = in.readString();
+			if (i >= from) {
+				visitor.transaction(endToEndIdentification, amount, creditorName, creditorIBAN, creditorBIC);
+			}
+		}
+		resumeIndex = size;
+		resumePosition = in.position();
+	}
+
+	public void close(){
+		closed = true;
+		if (records != null) {
+			records.close();
+		}
+	}
+
+	private RecordFile records() throws IOException{
+		if (closed) {
+			throw new IllegalStateException("Transaction storage already closed");
+		}
+		if (records == null) {
+			records = new RecordFile(directory);
+		}
+		return records;
+	}
+
+	/**
+	 * Writes the creditor fields, in element order, and completes the record.
+	 */
+	private void writeStrings(RecordFile out, String creditorName, String creditorIBAN, String creditorBIC) throws IOException{
+		out.writeString(creditorBIC);
+		out.writeString(creditorName);
+		out.writeString(creditorIBAN);
+		size++;
+	}
+}
@@ -0,0 +1,233 @@
+package pt.sibace.sepa;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * {@link DirectDebitStore} appending each transaction as a binary record to a scratch {@link RecordFile},
+ * in the order of the DrctDbtTxInf elements, so it is written back in a single sequential read.
+ *
+ */
+final class OffHeapDirectDebitStore implements DirectDebitStore {
+
+	private static final byte DEBTOR_BANK_CHANGED = 1;
+	private static final byte DEBTOR_ACCOUNT_CHANGED = 2;
+
+	private final File directory;
+
+	// Created with the first transaction
+	private RecordFile records;
+	private int size;
+	private boolean closed;
+
+	// Where the last read stopped, so transactions added since are read without going through the earlier ones
+	private int resumeIndex;
+	private long resumePosition;
+
+	/**
+	 * @param directory directory for the scratch file, or null for the system temporary directory
+	 */
+	OffHeapDirectDebitStore(File directory){
+		this.directory = directory;
+	}
+
+	public void add(String endToEndIdentification, BigDecimal amount,
+					String mandateId, Date mandateDate,
+					String debtorName, String debtorIBAN, String debtorBIC,
+					boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN){
+		if (amount == null) {
+			throw new NullPointerException("amount");
+		}
+		int date = SepaUtils.yyyymmdd(mandateDate);
+		try {
+			RecordFile out = records();
+			out.writeString(endToEndIdentification);
+			out.writeAmount(amount);
+			writeFields(out, mandateId, date, debtorName, debtorIBAN, debtorBIC,
+						debtorBankChanged, debtorAccountChanged, originalIBAN);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public void add(String endToEndIdentification, long amountCents,
+					String mandateId, Date mandateDate,
+					String debtorName, String debtorIBAN, String debtorBIC,
+					boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN){
+		int date = SepaUtils.yyyymmdd(mandateDate);
+		try {
+			RecordFile out = records();
+			out.writeString(endToEndIdentification);
+			out.writeAmount(amountCents);
+			writeFields(out, mandateId, date, debtorName, debtorIBAN, debtorBIC,
+						debtorBankChanged, debtorAccountChanged, originalIBAN);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public void write(XmlByteWriter w) throws IOException{
+		if (size == 0) {
+			return;
+		}
+		RecordFile.Reader in = records.read(0);
+		for (int i = 0; i < size; i++) {
+			w.start(DirectDebitXml.DRCT_DBT_TX_INF);
+			w.start(DirectDebitXml.PMT_ID);
+			in.element(w, DirectDebitXml.END_TO_END_ID);
+			w.end(DirectDebitXml.PMT_ID);
+			w.start(DirectDebitXml.INSTD_AMT);
+			w.attribute(DirectDebitXml.CCY, "EUR");
+			in.amountText(w);
+			w.end(DirectDebitXml.INSTD_AMT);
+			w.start(DirectDebitXml.DRCT_DBT_TX);
+			w.start(DirectDebitXml.MNDT_RLTD_INF);
+			in.element(w, DirectDebitXml.MNDT_ID);
+			w.start(DirectDebitXml.DT_OF_SGNTR);
+			w.date(in.readInt());
+			w.end(DirectDebitXml.DT_OF_SGNTR);
+			byte amendment = in.readByte();
+			if ((amendment & DEBTOR_BANK_CHANGED) != 0) {
+				in.readString();
+				w.element(DirectDebitXml.AMDMNT_IND, "true");
+				w.start(DirectDebitXml.AMDMNT_INF_DTLS);
+				w.start(DirectDebitXml.ORGNL_DBTR_AGT);
+				w.start(DirectDebitXml.FIN_INSTN_ID);
+				w.start(DirectDebitXml.OTHR);
+				w.element(DirectDebitXml.ID, DirectDebitXml.SAME_MANDATE_NEW_DEBTOR_AGENT);
+				w.end(DirectDebitXml.OTHR);
+				w.end(DirectDebitXml.FIN_INSTN_ID);
+				w.end(DirectDebitXml.ORGNL_DBTR_AGT);
+				w.end(DirectDebitXml.AMDMNT_INF_DTLS);
+			} else if ((amendment & DEBTOR_ACCOUNT_CHANGED) != 0) {
+				w.element(DirectDebitXml.AMDMNT_IND, "true");
+				w.start(DirectDebitXml.AMDMNT_INF_DTLS);
+				account(w, in, DirectDebitXml.ORGNL_DBTR_ACCT);
+				w.end(DirectDebitXml.AMDMNT_INF_DTLS);
+			} else {
+				in.readString();
+			}
+			w.end(DirectDebitXml.MNDT_RLTD_INF);
+			w.end(DirectDebitXml.DRCT_DBT_TX);
+			w.start(DirectDebitXml.DBTR_AGT);
+			w.start(DirectDebitXml.FIN_INSTN_ID);
+			in.element(w, DirectDebitXml.BIC);
+			w.end(DirectDebitXml.FIN_INSTN_ID);
+			w.end(DirectDebitXml.DBTR_AGT);
+			w.start(DirectDebitXml.DBTR);
+			in.element(w, DirectDebitXml.NM);
+			w.end(DirectDebitXml.DBTR);
+			account(w, in, DirectDebitXml.DBTR_ACCT);
+			w.end(DirectDebitXml.DRCT_DBT_TX_INF);
+		}
+	}
+
+	public int checkIbans(final String[] debtorIBANs, byte[] debtorResults, final String[] originalIBANs, byte[] originalResults,
+						  ForkJoinPool pool) throws IOException{
+		forEach(0, new Visitor() {
+			private int row;
+
+			public void transaction(String endToEndIdentification, BigDecimal amount,
+									String mandateId, XMLGregorianCalendar mandateDate,
+									String debtorName, String debtorIBAN, String debtorBIC,
+									boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN){
+				debtorIBANs[row] = debtorIBAN;
+				if (debtorAccountChanged && !debtorBankChanged) {
+					originalIBANs[row] = originalIBAN;
+				}
+				row++;
+			}
+		});
+		Iban.check(debtorIBANs, debtorResults, pool);
+		Iban.check(originalIBANs, originalResults, pool);
+		int count = size;
+		for (int i = 0; i < size; i++) {
+			if (originalIBANs[i] != null) {
+				count++;
+			} else {
+				// Not used by the transaction
+				originalResults[i] = Iban.VALID;
+			}
+		}
+		return count;
+	}
+
+	public void forEach(int from, Visitor visitor) throws IOException{
+		if (from >= size) {
+			return;
+		}
+		boolean resume = from == resumeIndex;
+		RecordFile.Reader in = records.read(resume ? resumePosition : 0);
+		for (int i = resume ? from : 0; i < size; i++) {
+			String endToEndIdentification = in.readString();
+			BigDecimal amount = in.readAmount();
+			String mandateId = in.readString();
+			int date = in.readInt();
+			byte amendment = in.readByte();
+			String originalIBAN = in.readString();
+			String debtorBIC = in.readString();
+			String debtorName = in.readString();
+			String debtorIBAN = in.readString();
+			if (i >= from) {
+				visitor.transaction(endToEndIdentification, amount, mandateId,
+									SepaUtils.sharedISODate(date / 10000, date / 100 % 100, date % 100),
+									debtorName, debtorIBAN, debtorBIC,
+									(amendment & DEBTOR_BANK_CHANGED) != 0, (amendment & DEBTOR_ACCOUNT_CHANGED) != 0,
+									originalIBAN);
+			}
+		}
+		resumeIndex = size;
+		resumePosition = in.position();
+	}
+
+	public void close(){
+		closed = true;
+		if (records != null) {
+			records.close();
+		}
+	}
+
+	private RecordFile records() throws IOException{
+		if (closed) {
+			throw new IllegalStateException("Transaction storage already closed");
+		}
+		if (records == null) {
+			records = new RecordFile(directory);
+		}
+		return records;
+	}
+
+	/**
+	 * Writes the fields following the amount, in element order, and completes the record.
+	 */
+	private void writeFields(RecordFile out, String mandateId, int date,
+							 String debtorName, String debtorIBAN, String debtorBIC,
+							 boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN) throws IOException{
+		out.writeString(mandateId);
+		out.writeInt(date);
+		out.writeByte((debtorBankChanged ? DEBTOR_BANK_CHANGED : 0) | (debtorAccountChanged ? DEBTOR_ACCOUNT_CHANGED : 0));
+		out.writeString(originalIBAN);
+		out.writeString(debtorBIC);
+		out.writeString(debtorName);
+		out.writeString(debtorIBAN);
+		size++;
+	}
+
+	private static void account(XmlByteWriter w, RecordFile.Reader in, byte[] tag) throws IOException{
+		w.start(tag);
+		w.start(DirectDebitXml.ID);
+		in.element(w, DirectDebitXml.IBAN);
+		w.end(DirectDebitXml.ID);
+		w.end(tag);
+	}
+}
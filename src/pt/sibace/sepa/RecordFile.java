@@ -0,0 +1,279 @@
+package pt.sibace.sepa;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Scratch file of binary transaction records, used by the off-heap transaction stores.
+ *
+ * Records are appended through a fixed size buffer and read back sequentially through another one, so the heap
+ * used does not depend on the number of records; the records themselves live in the file (and the operating
+ * system's page cache). The file is deleted by {@link #close()}.
+ *
+ * Fields have no tags: readers must read them in the order they were written. Strings are stored as their UTF-8
+ * length (-1 for null) followed by the bytes, encoded as {@link XmlByteWriter} encodes them, so they are copied
+ * to the output as they are.
+ *
+ */
+final class RecordFile implements Closeable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Scale marking an amount kept as text, for amounts that do not fit a long or have a negative scale
+	private static final byte TEXT_AMOUNT = Byte.MIN_VALUE;
+
+	private final File file;
+	private final RandomAccessFile access;
+	private final FileChannel channel;
+
+	// Records appended but not yet in the file
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int count;
+	private long flushed;
+
+	private boolean closed;
+
+	/**
+	 * @param directory directory for the scratch file, or null for the system temporary directory
+	 * @throws IOException
+	 */
+	RecordFile(File directory) throws IOException{
+		file = File.createTempFile("sepa", ".records", directory);
+		access = new RandomAccessFile(file, "rw");
+		channel = access.getChannel();
+	}
+
+	void writeByte(int value) throws IOException{
+		ensure(1);
+		buffer[count++] = (byte) value;
+	}
+
+	void writeInt(int value) throws IOException{
+		ensure(4);
+		buffer[count++] = (byte) (value >>> 24);
+		buffer[count++] = (byte) (value >>> 16);
+		buffer[count++] = (byte) (value >>> 8);
+		buffer[count++] = (byte) value;
+	}
+
+	void writeLong(long value) throws IOException{
+		writeInt((int) (value >>> 32));
+		writeInt((int) value);
+	}
+
+	void writeString(String value) throws IOException{
+		if (value == null) {
+			writeInt(-1);
+			return;
+		}
+		ensure(4 + value.length() * 3);
+		// Encode first, then fill in the length in front
+		int end = BytePool.encode(value, buffer, count + 4);
+		writeInt(end - count - 4);
+		count = end;
+	}
+
+	/**
+	 * Writes an amount, in a form that keeps its exact scale.
+	 */
+	void writeAmount(BigDecimal amount) throws IOException{
+		int scale = amount.scale();
+		if (scale >= 0 && scale <= Byte.MAX_VALUE && amount.unscaledValue().bitLength() < 64) {
+			writeByte(scale);
+			writeLong(amount.unscaledValue().longValue());
+		} else {
+			writeByte(TEXT_AMOUNT);
+			writeString(amount.toString());
+		}
+	}
+
+	void writeAmount(long amountCents) throws IOException{
+		writeByte(2);
+		writeLong(amountCents);
+	}
+
+	/**
+	 * @return bytes appended so far
+	 */
+	long size(){
+		return flushed + count;
+	}
+
+	/**
+	 * Opens a reader over the records appended so far.
+	 *
+	 * @param position file position of the first record to read, 0 or a position returned by {@link Reader#position()}
+	 */
+	Reader read(long position) throws IOException{
+		checkOpen();
+		flush();
+		return new Reader(position);
+	}
+
+	/**
+	 * Closes and deletes the scratch file. Safe to call more than once.
+	 */
+	public void close(){
+		if (closed) {
+			return;
+		}
+		closed = true;
+		buffer = null;
+		try {
+			access.close();
+		} catch (IOException e) {
+			// Nothing to recover, the file is deleted below
+		}
+		file.delete();
+	}
+
+	boolean isClosed(){
+		return closed;
+	}
+
+	private void ensure(int length) throws IOException{
+		checkOpen();
+		if (buffer.length - count < length) {
+			flush();
+			if (buffer.length < length) {
+				// Only for strings longer than the buffer
+				buffer = new byte[length];
+			}
+		}
+	}
+
+	private void flush() throws IOException{
+		ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, count);
+		while (bytes.hasRemaining()) {
+			channel.write(bytes, flushed + bytes.position());
+		}
+		flushed += count;
+		count = 0;
+	}
+
+	private void checkOpen(){
+		if (closed) {
+			throw new IllegalStateException("Transaction storage already closed");
+		}
+	}
+
+	/**
+	 * Sequential reader of the records. Strings are read either as String, or written straight into an
+	 * {@link XmlByteWriter}.
+	 */
+	final class Reader {
+		private byte[] bytes = new byte[BUFFER_SIZE];
+		private int position;
+		private int limit;
+		// File position of bytes[0]
+		private long start;
+
+		private Reader(long position){
+			start = position;
+		}
+
+		/**
+		 * @return file position of the next field
+		 */
+		long position(){
+			return start + position;
+		}
+
+		byte readByte() throws IOException{
+			require(1);
+			return bytes[position++];
+		}
+
+		int readInt() throws IOException{
+			require(4);
+			int value = (bytes[position] & 0xFF) << 24 | (bytes[position + 1] & 0xFF) << 16
+					| (bytes[position + 2] & 0xFF) << 8 | (bytes[position + 3] & 0xFF);
+			position += 4;
+			return value;
+		}
+
+		long readLong() throws IOException{
+			return (long) readInt() << 32 | (readInt() & 0xFFFFFFFFL);
+		}
+
+		String readString() throws IOException{
+			int length = readInt();
+			if (length < 0) {
+				return null;
+			}
+			require(length);
+			String value = new String(bytes, position, length, UTF8);
+			position += length;
+			return value;
+		}
+
+		/**
+		 * Reads a string and writes it as a simple element. Null strings are omitted, as
+		 * {@link XmlByteWriter#element(byte[], String)} does.
+		 */
+		void element(XmlByteWriter w, byte[] tag) throws IOException{
+			int length = readInt();
+			if (length < 0) {
+				return;
+			}
+			require(length);
+			w.start(tag);
+			w.text(bytes, position, length);
+			w.end(tag);
+			position += length;
+		}
+
+		BigDecimal readAmount() throws IOException{
+			byte scale = readByte();
+			if (scale == TEXT_AMOUNT) {
+				return new BigDecimal(readString());
+			}
+			return BigDecimal.valueOf(readLong(), scale);
+		}
+
+		/**
+		 * Reads an amount and writes it as character content, formatted as {@link BigDecimal#toPlainString()}.
+		 */
+		void amountText(XmlByteWriter w) throws IOException{
+			byte scale = readByte();
+			if (scale == TEXT_AMOUNT) {
+				w.text(new BigDecimal(readString()).toPlainString());
+			} else {
+				w.text(readLong(), scale);
+			}
+		}
+
+		private void require(int length) throws IOException{
+			if (limit - position >= length) {
+				return;
+			}
+			checkOpen();
+			// Keep the unread bytes, at the start of the buffer
+			int remaining = limit - position;
+			if (bytes.length < length) {
+				bytes = Arrays.copyOf(bytes, length);
+			}
+			System.arraycopy(bytes, position, bytes, 0, remaining);
+			start += position;
+			position = 0;
+			limit = remaining;
+			ByteBuffer target = ByteBuffer.wrap(bytes, limit, bytes.length - limit);
+			while (limit < length) {
+				int read = channel.read(target, start + limit);
+				if (read < 0) {
+					throw new EOFException("Truncated transaction record");
+				}
+				limit += read;
+			}
+		}
+	}
+}
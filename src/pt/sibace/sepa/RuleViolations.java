@@ -0,0 +1,90 @@
+package pt.sibace.sepa;
+
+import java.util.Arrays;
+
+/**
+ * Problems found by {@link FieldRules} in the fields of a payment group, as pairs of transaction number and
+ * problem code kept in int arrays.
+ *
+ */
+public final class RuleViolations {
+
+	/**
+	 * Transaction number of the fields of the payment group itself (PmtInfId, debtor or creditor).
+	 */
+	public static final int PAYMENT_GROUP = -1;
+
+	private int[] transactions = new int[8];
+	private int[] codes = new int[8];
+	private int size;
+
+	RuleViolations(){
+	}
+
+	/**
+	 * Checks a field, recording a problem if one is found.
+	 */
+	void check(int transaction, FieldRules.Field field, String value){
+		int code = FieldRules.check(field, value);
+		if (code != FieldRules.VALID) {
+			add(transaction, code);
+		}
+	}
+
+	void add(int transaction, int code){
+		if (size == codes.length) {
+			transactions = Arrays.copyOf(transactions, size * 2);
+			codes = Arrays.copyOf(codes, size * 2);
+		}
+		transactions[size] = transaction;
+		codes[size] = code;
+		size++;
+	}
+
+	/**
+	 * @return number of problems found
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @return true if no problem was found
+	 */
+	public boolean isEmpty(){
+		return size == 0;
+	}
+
+	/**
+	 * @return number of the transaction with the given problem, in the order added from 0, or {@link #PAYMENT_GROUP}
+	 */
+	public int getTransaction(int index){
+		checkIndex(index);
+		return transactions[index];
+	}
+
+	/**
+	 * @return code of the given problem, read with {@link FieldRules#field(int)} and {@link FieldRules#problem(int)}
+	 */
+	public int getCode(int index){
+		checkIndex(index);
+		return codes[index];
+	}
+
+	@Override
+	public String toString(){
+		StringBuilder text = new StringBuilder().append(size).append(" field problems");
+		for (int i = 0; i < size; i++) {
+			text.append(i == 0 ? ": " : ", ");
+			text.append(transactions[i] == PAYMENT_GROUP ? "payment group" : "transaction " + transactions[i]);
+			text.append(' ').append(FieldRules.message(codes[i]));
+		}
+		return text.toString();
+	}
+
+	private void checkIndex(int index){
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+}
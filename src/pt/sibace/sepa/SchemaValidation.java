@@ -0,0 +1,64 @@
+package pt.sibace.sepa;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Compiled schemas (pain.001.001.03.xsd, pain.008.001.02.xsd) for validating documents while they are written, see
+ * {@link CreditTransfer#setSchema(Schema)} and {@link DirectDebit#setSchema(Schema)}.
+ *
+ * Compiling a schema parses the whole xsd, so each one is compiled once per location and kept; a compiled Schema is
+ * thread safe and can validate any number of documents at the same time.
+ *
+ */
+public final class SchemaValidation {
+
+	// Compiled schemas, by location
+	private static final ConcurrentMap<String, Schema> SCHEMAS = new ConcurrentHashMap<String, Schema>();
+
+	private SchemaValidation(){
+	}
+
+	/**
+	 * @param xsd location of the schema
+	 * @return compiled schema, compiled on the first call for the location
+	 * @throws SAXException if the schema cannot be read or is not valid
+	 */
+	public static Schema schema(URL xsd) throws SAXException{
+		String location = xsd.toExternalForm();
+		Schema schema = SCHEMAS.get(location);
+		if (schema == null) {
+			// Schema factories are not thread safe
+			synchronized (SCHEMAS) {
+				schema = SCHEMAS.get(location);
+				if (schema == null) {
+					schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(xsd);
+					SCHEMAS.put(location, schema);
+				}
+			}
+		}
+		return schema;
+	}
+
+	/**
+	 * @param xsd schema file
+	 * @return compiled schema, compiled on the first call for the file
+	 * @throws SAXException if the schema cannot be read or is not valid
+	 */
+	public static Schema schema(File xsd) throws SAXException{
+		try {
+			return schema(xsd.getAbsoluteFile().toURI().toURL());
+		} catch (MalformedURLException e) {
+			throw new SAXException(e);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package pt.sibace.sepa;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A document written with a schema set did not validate. The output was written in full and should be discarded.
+ *
+ */
+public class SchemaValidationException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<Problem> problems;
+	private final int count;
+
+	SchemaValidationException(List<Problem> problems, int count){
+		super(count + " schema problems, first at " + problems.get(0));
+		this.problems = Collections.unmodifiableList(problems);
+		this.count = count;
+	}
+
+	/**
+	 * @return problems found, in document order; only the first ones are kept, see {@link #getCount()}
+	 */
+	public List<Problem> getProblems(){
+		return problems;
+	}
+
+	/**
+	 * @return number of problems found
+	 */
+	public int getCount(){
+		return count;
+	}
+
+	/**
+	 * A schema problem, with the transaction it was found in.
+	 */
+	public static final class Problem {
+		private final String endToEndIdentification;
+		private final int line;
+		private final int column;
+		private final String message;
+
+		Problem(String endToEndIdentification, int line, int column, String message){
+			this.endToEndIdentification = endToEndIdentification;
+			this.line = line;
+			this.column = column;
+			this.message = message;
+		}
+
+		/**
+		 * @return EndToEndId of the transaction, null for problems outside transactions (group header, payment group)
+		 */
+		public String getEndToEndIdentification(){
+			return endToEndIdentification;
+		}
+
+		public int getLine(){
+			return line;
+		}
+
+		public int getColumn(){
+			return column;
+		}
+
+		public String getMessage(){
+			return message;
+		}
+
+		Problem withEndToEndIdentification(String endToEndIdentification){
+			return new Problem(endToEndIdentification, line, column, message);
+		}
+
+		@Override
+		public String toString(){
+			return (endToEndIdentification == null ? "" : endToEndIdentification + " ") + "line " + line + ", column " + column + ": " + message;
+		}
+	}
+}
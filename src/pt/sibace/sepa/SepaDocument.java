@@ -0,0 +1,24 @@
+package pt.sibace.sepa;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.xml.bind.JAXBException;
+
+/**
+ * Document built in memory and written in one go: {@link CreditTransfer} or {@link DirectDebit}.
+ *
+ */
+public interface SepaDocument {
+
+	/**
+	 * Writes the document to a stream, encoded in UTF-8, using the given serializer.
+	 * The stream is flushed but not closed.
+	 * 
+	 * @param out
+	 * @param engine serializer to use
+	 * @throws JAXBException
+	 * @throws IOException
+	 */
+	void write(OutputStream out, XmlEngine engine) throws JAXBException, IOException;
+}
@@ -1,13 +1,20 @@
 package pt.sibace.sepa;
 
-import java.text.DecimalFormat;
-import java.text.SimpleDateFormat;
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeConstants;
@@ -21,6 +28,23 @@ import javax.xml.datatype.XMLGregorianCalendar;
  *
  */
 public class SepaUtils {
+	// Time of the switch from the Julian to the Gregorian calendar, as GregorianCalendar sees it. Dates from it on
+	// are split with java.time, which has the same (proleptic Gregorian) calendar
+	private static final long GREGORIAN_CUTOVER = new GregorianCalendar().getGregorianChange().getTime();
+	private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+	// Canonical dates from FIRST_YEAR on, one array of 12 x 31 days per year, created as needed
+	private static final int FIRST_YEAR = 1900;
+	private static final int YEARS = 300;
+	private static final AtomicReferenceArray<AtomicReferenceArray<XMLGregorianCalendar>> DAYS =
+			new AtomicReferenceArray<AtomicReferenceArray<XMLGregorianCalendar>>(YEARS);
+
+	// Generator of uniqueId, with a random node number
+	private static final IdGenerator IDS = new IdGenerator(new Random().nextInt(IdGenerator.MAX_NODE + 1));
+
+	// Looked up once: DatatypeFactory.newInstance() searches the class path on every call
+	private static volatile DatatypeFactory datatypeFactory;
+
 	/**
 	 * Converts java.util.Date into XMLGregorianCalendar (required by the xml structure), using the ISO DateTime pattern to represent date and time.
 	 * 
@@ -31,49 +55,266 @@ public class SepaUtils {
 		XMLGregorianCalendar dateTime;
 		GregorianCalendar calendar = new GregorianCalendar();
 		calendar.setTime(date);
-	    try {
-			dateTime=DatatypeFactory.newInstance().newXMLGregorianCalendar(calendar);
-			dateTime.setMillisecond(DatatypeConstants.FIELD_UNDEFINED);
-			dateTime.setTimezone(DatatypeConstants.FIELD_UNDEFINED);
-
-		} catch (DatatypeConfigurationException e) {
-			throw new RuntimeException(e);
-		}		
+		dateTime=datatypeFactory().newXMLGregorianCalendar(calendar);
+		dateTime.setMillisecond(DatatypeConstants.FIELD_UNDEFINED);
+		dateTime.setTimezone(DatatypeConstants.FIELD_UNDEFINED);
 	    return dateTime;		
 	}
 
+	/**
+	 * ISO DateTime (without fractional seconds and time zone) of an instant, in the default time zone.
+	 * 
+	 * @param instant
+	 * @return
+	 */
+	public static XMLGregorianCalendar ISODateTime(Instant instant){
+		long millis = instant.toEpochMilli();
+		if (millis < GREGORIAN_CUTOVER) {
+			return ISODateTime(new Date(millis));
+		}
+		long local = Math.floorDiv(millis + TimeZone.getDefault().getOffset(millis), 1000L);
+		return ISODateTime(LocalDateTime.ofEpochSecond(local, 0, ZoneOffset.UTC));
+	}
+
+	/**
+	 * ISO DateTime (without fractional seconds and time zone) of a local date and time.
+	 * 
+	 * @param dateTime
+	 * @return
+	 */
+	public static XMLGregorianCalendar ISODateTime(LocalDateTime dateTime){
+		return datatypeFactory().newXMLGregorianCalendar(dateTime.getYear(), dateTime.getMonthValue(), dateTime.getDayOfMonth(),
+														 dateTime.getHour(), dateTime.getMinute(), dateTime.getSecond(),
+														 DatatypeConstants.FIELD_UNDEFINED, DatatypeConstants.FIELD_UNDEFINED);
+	}
+
 	/**
 	 * Converts java.util.Date into XMLGregorianCalendar (required by the xml structure), using the ISO Date pattern to represent date.
 	 * 
+	 * Dates from 1900 on are copies of a cached instance per day, which is cheaper than building them.
+	 * 
 	 * @param date
 	 * @return
 	 */
 	public static XMLGregorianCalendar ISODate(Date date){
-		XMLGregorianCalendar dateOnly;
-		GregorianCalendar calendar = new GregorianCalendar();
-		calendar.setTime(date);
-	    try {
-			dateOnly=DatatypeFactory.newInstance().newXMLGregorianCalendarDate(calendar.get(Calendar.YEAR), 
-																				calendar.get(Calendar.MONTH)+1, 
-																				calendar.get(Calendar.DAY_OF_MONTH),
-																				DatatypeConstants.FIELD_UNDEFINED);
-		} catch (DatatypeConfigurationException e) {
-			throw new RuntimeException(e);
-		}		
+		return (XMLGregorianCalendar) sharedISODate(date).clone();
+	}
+
+	/**
+	 * ISO Date (without time zone) of a local date.
+	 * 
+	 * Dates from 1900 on are copies of a cached instance per day, which is cheaper than building them.
+	 * 
+	 * @param date
+	 * @return
+	 */
+	public static XMLGregorianCalendar ISODate(LocalDate date){
+		return ISODate(date.getYear(), date.getMonthValue(), date.getDayOfMonth());
+	}
+
+	/**
+	 * ISO Date (without time zone) for the given day, a new instance the caller may modify.
+	 * 
+	 * @param year
+	 * @param month 1 to 12
+	 * @param day
+	 * @return
+	 */
+	static XMLGregorianCalendar ISODate(int year, int month, int day){
+		return (XMLGregorianCalendar) sharedISODate(year, month, day).clone();
+	}
+
+	/**
+	 * ISO Date (without time zone) of a date, canonical from 1900 on: every call for the same day returns the same
+	 * instance. Only for the direct writers and the transaction stores, which never hand it to callers; the instance
+	 * must not be modified.
+	 * 
+	 * @param date
+	 * @return
+	 */
+	static XMLGregorianCalendar sharedISODate(Date date){
+		long millis = date.getTime();
+		if (millis < GREGORIAN_CUTOVER) {
+			GregorianCalendar calendar = new GregorianCalendar();
+			calendar.setTime(date);
+			return sharedISODate(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH)+1, calendar.get(Calendar.DAY_OF_MONTH));
+		}
+		LocalDate day = localDate(millis);
+		return sharedISODate(day.getYear(), day.getMonthValue(), day.getDayOfMonth());
+	}
+
+	/**
+	 * ISO Date (without time zone) for the given day, canonical from 1900 on. The instance must not be modified.
+	 * 
+	 * @param year
+	 * @param month 1 to 12
+	 * @param day
+	 * @return
+	 */
+	static XMLGregorianCalendar sharedISODate(int year, int month, int day){
+		if (year < FIRST_YEAR || year >= FIRST_YEAR + YEARS || month < 1 || month > 12 || day < 1 || day > 31) {
+			return datatypeFactory().newXMLGregorianCalendarDate(year, month, day, DatatypeConstants.FIELD_UNDEFINED);
+		}
+		AtomicReferenceArray<XMLGregorianCalendar> days = DAYS.get(year - FIRST_YEAR);
+		if (days == null) {
+			DAYS.compareAndSet(year - FIRST_YEAR, null, new AtomicReferenceArray<XMLGregorianCalendar>(12 * 31));
+			days = DAYS.get(year - FIRST_YEAR);
+		}
+		int slot = (month - 1) * 31 + day - 1;
+		XMLGregorianCalendar dateOnly = days.get(slot);
+		if (dateOnly == null) {
+			// Invalid days (February 30th) throw here, so they are never stored
+			dateOnly = datatypeFactory().newXMLGregorianCalendarDate(year, month, day, DatatypeConstants.FIELD_UNDEFINED);
+			if (!days.compareAndSet(slot, null, dateOnly)) {
+				dateOnly = days.get(slot);
+			}
+		}
 	    return dateOnly;		
 	}
 
+	/**
+	 * Day of a date in the default time zone, as ISODate(Date) splits it.
+	 * 
+	 * @return date as yyyyMMdd
+	 * @throws IllegalArgumentException for dates before year 1 or after year 9999
+	 */
+	static int yyyymmdd(Date date){
+		int year;
+		int month;
+		int day;
+		long millis = date.getTime();
+		if (millis >= GREGORIAN_CUTOVER) {
+			LocalDate localDate = localDate(millis);
+			year = localDate.getYear();
+			month = localDate.getMonthValue();
+			day = localDate.getDayOfMonth();
+		} else {
+			GregorianCalendar calendar = new GregorianCalendar();
+			calendar.setTime(date);
+			if (calendar.get(Calendar.ERA) != GregorianCalendar.AD) {
+				throw new IllegalArgumentException("Date out of range: " + date);
+			}
+			year = calendar.get(Calendar.YEAR);
+			month = calendar.get(Calendar.MONTH) + 1;
+			day = calendar.get(Calendar.DAY_OF_MONTH);
+		}
+		if (year > 9999) {
+			throw new IllegalArgumentException("Date out of range: " + date);
+		}
+		return year * 10000 + month * 100 + day;
+	}
+
+	/**
+	 * Shared DatatypeFactory. Its conversions keep no state, so one instance serves every thread.
+	 */
+	static DatatypeFactory datatypeFactory(){
+		DatatypeFactory factory = datatypeFactory;
+		if (factory == null) {
+			try {
+				factory = DatatypeFactory.newInstance();
+			} catch (DatatypeConfigurationException e) {
+				throw new RuntimeException(e);
+			}
+			datatypeFactory = factory;
+		}
+		return factory;
+	}
+
+	/**
+	 * Day of a time in the default time zone, for times from the Gregorian cutover on. The offset comes from
+	 * TimeZone rather than ZoneId, as their histories differ before 1900.
+	 */
+	private static LocalDate localDate(long millis){
+		long local = millis + TimeZone.getDefault().getOffset(millis);
+		return LocalDate.ofEpochDay(Math.floorDiv(local, DAY_MILLIS));
+	}
+
+	/**
+	 * Id made of the reference and the current time, as ref-yyyyMMdd-HHmm. Ids made in the same minute are equal;
+	 * see {@link #uniqueId(String)} for ids that never repeat.
+	 * 
+	 * @param ref
+	 * @return
+	 */
 	public static String genericId(String ref){
-		SimpleDateFormat df = new SimpleDateFormat("yyyyMMdd-HHmm");
-		return ref+"-"+df.format(new Date());
+		long millis = System.currentTimeMillis();
+		LocalDateTime now = LocalDateTime.ofEpochSecond(Math.floorDiv(millis + TimeZone.getDefault().getOffset(millis), 1000L),
+														0, ZoneOffset.UTC);
+		StringBuilder id = new StringBuilder(ref.length() + 15).append(ref).append('-');
+		pad(id, now.getYear(), 4);
+		pad(id, now.getMonthValue(), 2);
+		pad(id, now.getDayOfMonth(), 2);
+		id.append('-');
+		pad(id, now.getHour(), 2);
+		pad(id, now.getMinute(), 2);
+		return id.toString();
+	}
+	
+	/**
+	 * Unique id made of the reference followed by 15 characters, from a generator shared by the whole process.
+	 * Ids never repeat within the process, and the generator has a random node number so that processes running
+	 * at the same time are unlikely to collide. Use {@link IdGenerator} directly to choose the node numbers.
+	 * 
+	 * @param ref at most {@link IdGenerator#MAX_PREFIX_LENGTH} characters
+	 * @return
+	 */
+	public static String uniqueId(String ref){
+		return IDS.next(ref);
 	}
 	
+	/**
+	 * Id of a payment, as paymentGroupId-00001.
+	 * 
+	 * @param paymentGroupId
+	 * @param seq
+	 * @return
+	 */
 	public static String paymentid(String paymentGroupId, long seq){
-		DecimalFormat df = new DecimalFormat("00000");
-		return paymentGroupId+"-"+df.format(seq);
+		StringBuilder id = new StringBuilder(paymentGroupId.length() + 21).append(paymentGroupId).append('-');
+		if (seq < 0) {
+			// Long.MIN_VALUE has no positive counterpart, its digits are appended as they are
+			id.append('-');
+			if (seq == Long.MIN_VALUE) {
+				return id.append(Long.toString(seq), 1, 20).toString();
+			}
+			seq = -seq;
+		}
+		pad(id, seq, 5);
+		return id.toString();
+	}
+	
+	/**
+	 * Appends a non negative number, with leading zeros up to the given width.
+	 */
+	private static void pad(StringBuilder target, long value, int width){
+		for (long limit = 10; width > 1; width--, limit *= 10) {
+			if (value < limit) {
+				target.append('0');
+			}
+		}
+		target.append(value);
+	}
+	
+	/**
+	 * MsgId of one file of a split document: the original id followed by the file number, with the original id
+	 * shortened if needed to keep within the 35 characters allowed by the schema.
+	 * 
+	 * @param msgId
+	 * @param part file number, starting at 1
+	 * @return
+	 */
+	public static String splitMsgId(String msgId, int part){
+		StringBuilder digits = new StringBuilder(11).append('-');
+		pad(digits, part, 3);
+		String suffix = digits.toString();
+		return msgId.substring(0, Math.max(0, Math.min(msgId.length(), 35-suffix.length())))+suffix;
 	}
 	
 	
+	/**
+	 * Built-in bank codes and BICs. Changes to it are not seen by {@link #bicFromNib(String)}, which uses
+	 * {@link #getBankDirectory()}.
+	 */
 	public static Map<String,String> NibToBicMapping;
 	static {
 	    Map<String,String> temp = new HashMap<String, String>();
@@ -139,12 +380,77 @@ public class SepaUtils {
 	    NibToBicMapping = Collections.unmodifiableMap(temp);
 	}
 	
+	// Directory used by bicFromNib, replaced as a whole on reload
+	private static volatile BankDirectory bankDirectory = BankDirectory.of(NibToBicMapping);
+	
+	// Receiver of unknown bank codes
+	private static volatile DiagnosticsSink diagnostics = new Diagnostics();
+	
+	/**
+	 * @param nib
+	 * @return BIC of the NIB's bank, null (reported to the diagnostics sink) if unknown
+	 */
 	public static String bicFromNib(String nib){
-		String bankCode = nib.substring(0,4);
-		if (NibToBicMapping.get(bankCode)==null){
-			System.out.println("Unknown Bank Code: "+bankCode);
+		String bic = bankDirectory.bicFromNib(nib);
+		if (bic==null){
+			diagnostics.unknownBankCode(BankDirectory.bankCode(nib, 0), nib);
+		}
+		return bic;
+	}
+	
+	/**
+	 * @return sink receiving unknown bank codes; by default a {@link Diagnostics} counting them without printing
+	 * anything
+	 */
+	public static DiagnosticsSink getDiagnostics(){
+		return diagnostics;
+	}
+	
+	/**
+	 * Replaces the sink receiving unknown bank codes, for instance with a new {@link Diagnostics} whose counts are
+	 * read after a run, or with {@code new Diagnostics(Diagnostics.CONSOLE, 10)} to also print some of them.
+	 * 
+	 * @param sink
+	 */
+	public static void setDiagnostics(DiagnosticsSink sink){
+		if (sink == null) {
+			throw new NullPointerException("sink");
 		}
-		return NibToBicMapping.get(bankCode);
+		diagnostics = sink;
+	}
+	
+	/**
+	 * @return bank directory used by {@link #bicFromNib(String)}; the built-in one (NibToBicMapping) until another
+	 * is set or loaded
+	 */
+	public static BankDirectory getBankDirectory(){
+		return bankDirectory;
+	}
+	
+	/**
+	 * Replaces the bank directory used by {@link #bicFromNib(String)}. Lookups in progress finish with the previous one.
+	 * 
+	 * @param directory
+	 */
+	public static void setBankDirectory(BankDirectory directory){
+		if (directory == null) {
+			throw new NullPointerException("directory");
+		}
+		bankDirectory = directory;
+	}
+	
+	/**
+	 * Reads a Banco de Portugal directory file (see {@link BankDirectory#load(File)}) and makes it the one used by
+	 * {@link #bicFromNib(String)}. If the file cannot be read, the current directory is kept.
+	 * 
+	 * @param file
+	 * @return the new directory
+	 * @throws IOException
+	 */
+	public static BankDirectory reloadBankDirectory(File file) throws IOException{
+		BankDirectory directory = BankDirectory.load(file);
+		bankDirectory = directory;
+		return directory;
 	}
 	
 	public static String nibToIban(String nib){
@@ -0,0 +1,99 @@
+package pt.sibace.sepa;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Limits a bank places on a single pain file. Streaming documents given limits start a new file whenever adding
+ * a transaction would exceed one of them.
+ * 
+ * Usage:
+ * <pre>
+ * SplitLimits limits = SplitLimits.none().maxTransactions(10000).maxCtrlSum(new BigDecimal("1000000")).maxBytes(5 * 1024 * 1024);
+ * </pre>
+ *
+ */
+public final class SplitLimits {
+
+	private static final SplitLimits NONE = new SplitLimits(0, null, 0);
+
+	private final int maxTransactions;
+	private final BigDecimal maxCtrlSum;
+	private final long maxBytes;
+	// Control sum limit in cents, rounded down
+	private final long maxCtrlSumCents;
+
+	private SplitLimits(int maxTransactions, BigDecimal maxCtrlSum, long maxBytes){
+		this.maxTransactions = maxTransactions;
+		this.maxCtrlSum = maxCtrlSum;
+		this.maxBytes = maxBytes;
+		this.maxCtrlSumCents = maxCtrlSum == null ? Long.MAX_VALUE
+								: maxCtrlSum.movePointRight(2).setScale(0, RoundingMode.FLOOR).min(BigDecimal.valueOf(Long.MAX_VALUE)).longValue();
+	}
+
+	/**
+	 * @return limits that never split a file
+	 */
+	public static SplitLimits none(){
+		return NONE;
+	}
+
+	/**
+	 * @param maxTransactions maximum NbOfTxs of a file, or 0 for no limit
+	 * @return copy of these limits with the given transaction count limit
+	 */
+	public SplitLimits maxTransactions(int maxTransactions){
+		if (maxTransactions < 0) {
+			throw new IllegalArgumentException("maxTransactions must not be negative");
+		}
+		return new SplitLimits(maxTransactions, maxCtrlSum, maxBytes);
+	}
+
+	/**
+	 * @param maxCtrlSum maximum CtrlSum of a file, or null for no limit
+	 * @return copy of these limits with the given control sum limit
+	 */
+	public SplitLimits maxCtrlSum(BigDecimal maxCtrlSum){
+		if (maxCtrlSum != null && maxCtrlSum.signum() <= 0) {
+			throw new IllegalArgumentException("maxCtrlSum must be positive");
+		}
+		return new SplitLimits(maxTransactions, maxCtrlSum, maxBytes);
+	}
+
+	/**
+	 * @param maxBytes maximum size of a file, in bytes, or 0 for no limit
+	 * @return copy of these limits with the given size limit
+	 */
+	public SplitLimits maxBytes(long maxBytes){
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("maxBytes must not be negative");
+		}
+		return new SplitLimits(maxTransactions, maxCtrlSum, maxBytes);
+	}
+
+	public int getMaxTransactions(){
+		return maxTransactions;
+	}
+
+	public BigDecimal getMaxCtrlSum(){
+		return maxCtrlSum;
+	}
+
+	public long getMaxBytes(){
+		return maxBytes;
+	}
+
+	/**
+	 * @return true if a file with the given totals is within the limits
+	 */
+	boolean allows(int nbOfTxs, ControlSum ctrlSum, long bytes){
+		return (maxTransactions == 0 || nbOfTxs <= maxTransactions)
+				&& (maxCtrlSum == null || !ctrlSum.isAbove(maxCtrlSum, maxCtrlSumCents))
+				&& (maxBytes == 0 || bytes <= maxBytes);
+	}
+
+	@Override
+	public String toString(){
+		return "SplitLimits[maxTransactions=" + maxTransactions + ", maxCtrlSum=" + maxCtrlSum + ", maxBytes=" + maxBytes + "]";
+	}
+}
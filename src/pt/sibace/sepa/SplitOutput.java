@@ -0,0 +1,22 @@
+package pt.sibace.sepa;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Destination of the files of a document split by {@link SplitLimits}.
+ *
+ */
+public interface SplitOutput {
+
+	/**
+	 * Opens the destination of one file. Files are opened one at a time, when they are complete, and the stream
+	 * is closed by the document before the next one is opened.
+	 * 
+	 * @param part file number, starting at 1
+	 * @param msgId MsgId written in the file's group header
+	 * @return destination stream
+	 * @throws IOException
+	 */
+	OutputStream open(int part, String msgId) throws IOException;
+}
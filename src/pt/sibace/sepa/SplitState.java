@@ -0,0 +1,174 @@
+package pt.sibace.sepa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+
+/**
+ * Totals of the file being filled by a streaming document split by {@link SplitLimits}.
+ *
+ * The size of a file is only known once its header totals are written, so the size kept here is an upper bound:
+ * the exact size of the spooled transactions plus the size of the headers written with the widest NbOfTxs and
+ * CtrlSum values. Transactions are encoded into a scratch buffer first so their size is known before deciding
+ * which file they go to.
+ *
+ */
+final class SplitState {
+
+	// Widest values NbOfTxs and CtrlSum can take in the schema (Max15NumericText, DecimalNumber)
+	static final String WIDEST_NB_OF_TXS = "999999999999999";
+	static final BigDecimal WIDEST_CTRL_SUM = new BigDecimal("9999999999999999.99");
+
+	private static final int SCRATCH_BUFFER_SIZE = 1024;
+
+	private final SplitLimits limits;
+	private final Scratch scratch;
+	private final XmlByteWriter scratchWriter;
+	private final Scratch headers;
+	private final XmlByteWriter headerWriter;
+
+	// Current file number, starting at 1
+	private int part = 1;
+
+	// Totals of the current file, and the same totals with the next transaction added
+	private int nbOfTxs;
+	private final ControlSum ctrlSum = new ControlSum();
+	private final ControlSum nextCtrlSum = new ControlSum();
+	private long bytes;
+
+	SplitState(SplitLimits limits){
+		this.limits = limits;
+		if (limits.getMaxBytes() > 0) {
+			this.scratch = new Scratch();
+			this.scratchWriter = new XmlByteWriter(scratch, SCRATCH_BUFFER_SIZE);
+			this.headers = new Scratch();
+			this.headerWriter = new XmlByteWriter(headers, SCRATCH_BUFFER_SIZE);
+		} else {
+			this.scratch = null;
+			this.scratchWriter = null;
+			this.headers = null;
+			this.headerWriter = null;
+		}
+	}
+
+	/**
+	 * @return true if the file size is limited, and encoded sizes must be measured
+	 */
+	boolean measuresBytes(){
+		return scratchWriter != null;
+	}
+
+	/**
+	 * Returns the scratch writer, emptied and set to the given depth, to encode a block whose size is needed.
+	 */
+	XmlByteWriter scratch(int depth){
+		scratch.reset();
+		scratchWriter.setDepth(depth);
+		return scratchWriter;
+	}
+
+	/**
+	 * @return size of the block encoded in the scratch writer
+	 */
+	int scratchSize() throws IOException{
+		scratchWriter.flush();
+		return scratch.size();
+	}
+
+	/**
+	 * Copies the block encoded in the scratch writer.
+	 */
+	void copyScratch(XmlByteWriter target) throws IOException{
+		scratchWriter.flush();
+		target.write(scratch.buffer(), 0, scratch.size());
+	}
+
+	/**
+	 * Returns a writer, emptied and set to the given depth, to measure headers. Separate from the scratch writer
+	 * so a transaction waiting to be copied is kept while headers are measured.
+	 */
+	XmlByteWriter measure(int depth){
+		headers.reset();
+		headerWriter.setDepth(depth);
+		return headerWriter;
+	}
+
+	/**
+	 * @return size of the headers encoded in the measuring writer
+	 */
+	int measuredSize() throws IOException{
+		headerWriter.flush();
+		return headers.size();
+	}
+
+	/**
+	 * @param amount amount of the next transaction, or null if given in cents
+	 * @param amountCents amount of the next transaction in cents, if amount is null
+	 * @param size encoded size of the next transaction, including the header of its payment group if it is not
+	 *             yet in the current file
+	 * @return true if the transaction fits in the current file, false if a new file must be started first
+	 * @throws IllegalArgumentException if the transaction alone exceeds the limits
+	 */
+	boolean fits(BigDecimal amount, long amountCents, long size){
+		nextCtrlSum.set(ctrlSum);
+		add(nextCtrlSum, amount, amountCents);
+		if (limits.allows(nbOfTxs + 1, nextCtrlSum, bytes + size)) {
+			return true;
+		}
+		if (nbOfTxs == 0) {
+			throw new IllegalArgumentException("Transaction exceeds the file limits " + limits);
+		}
+		return false;
+	}
+
+	void addTransaction(BigDecimal amount, long amountCents, long size){
+		nbOfTxs++;
+		add(ctrlSum, amount, amountCents);
+		bytes += size;
+	}
+
+	/**
+	 * Adds an amount given either as a BigDecimal or, if null, in cents.
+	 */
+	static void add(ControlSum sum, BigDecimal amount, long amountCents){
+		if (amount != null) {
+			sum.add(amount);
+		} else {
+			sum.add(amountCents);
+		}
+	}
+
+	/**
+	 * Accounts for headers written in the current file.
+	 */
+	void addBytes(long size){
+		bytes += size;
+	}
+
+	/**
+	 * Moves on to the next file.
+	 */
+	void nextPart(){
+		part++;
+		nbOfTxs = 0;
+		ctrlSum.clear();
+		bytes = 0;
+	}
+
+	int getPart(){
+		return part;
+	}
+
+	/**
+	 * Scratch buffer, read without an extra array copy.
+	 */
+	private static final class Scratch extends ByteArrayOutputStream {
+		Scratch(){
+			super(SCRATCH_BUFFER_SIZE);
+		}
+
+		byte[] buffer(){
+			return buf;
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package pt.sibace.sepa;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * Streaming variant of {@link CreditTransfer}, for files too large to be kept in memory as a JAXB tree.
+ * 
+ * Transactions are encoded as soon as they are added to a {@link StreamingCreditTransferPaymentGroup} and are
+ * spooled to a scratch file, so memory depends on the number of payment groups and not on the number of
+ * transactions. The document is assembled when {@link #close()} is called, once the group header and payment
+ * group totals (NbOfTxs, CtrlSum) are known. The output is the same as {@link CreditTransfer#write(String)}
+ * produces for the same data.
+ * 
+ * Documents created with {@link SplitLimits} are written as several files when needed: a file is completed and
+ * written as soon as the next transaction would exceed a limit, and the following transactions go to a new file.
+ * Each file has its own group header totals and a MsgId derived with {@link SepaUtils#splitMsgId(String, int)};
+ * payment groups spanning several files are repeated in each of them with the totals of their transactions in
+ * that file, and groups without transactions are left out. A document that fits in a single file keeps its MsgId.
+ * 
+ * Usage:
+ * <pre>
+ * StreamingCreditTransfer ct = new StreamingCreditTransfer("message id", "company name", "/full/path/filename.sepa.xml");
+ * StreamingCreditTransferPaymentGroup pg = ct.addPaymentGroup("payment group id", executionDate, 
+ *                                                             "debtor Name", "debtor Iban", "debtor Bic");
+ * pg.addTransaction("end to end id", amount, "creditor name", "creditor iban", "creditor bic");
+ * ct.close();
+ * </pre>
+ * 
+ * Split into files of at most 10000 transactions:
+ * <pre>
+ * StreamingCreditTransfer ct = new StreamingCreditTransfer("message id", "company name",
+ *                                                          new FileSplitOutput("/full/path/ct-%03d.xml"),
+ *                                                          SplitLimits.none().maxTransactions(10000), null);
+ * </pre>
+ *
+ */
+public class StreamingCreditTransfer implements Closeable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final String msgId;
+	private final String companyName;
+	private final XMLGregorianCalendar creationDate;
+	private final OutputStream out;
+	private final boolean ownsOutput;
+	private final SplitOutput output;
+	private final SplitState split;
+	private final File spoolDirectory;
+	private TransactionSpool spool;
+	// Payment groups of the current file
+	private final List<StreamingCreditTransferPaymentGroup> groups = new ArrayList<StreamingCreditTransferPaymentGroup>();
+	private boolean closed;
+
+	// Document totals, in all files
+	private int nbOfTxs;
+	private final ControlSum ctrlSum = new ControlSum();
+
+	/**
+	 * Initialize a streaming SEPA Credit Transfer document, written to the given file when closed.
+	 * The scratch file is created in the system temporary directory.
+	 * 
+	 * @param msgId
+	 * @param companyName
+	 * @param fileName System dependent file name
+	 * @throws IOException
+	 */
+	public StreamingCreditTransfer(String msgId, String companyName, String fileName) throws IOException{
+		this(msgId, companyName, fileName, null);
+	}
+
+	/**
+	 * Initialize a streaming SEPA Credit Transfer document, written to the given file when closed.
+	 * 
+	 * @param msgId
+	 * @param companyName
+	 * @param fileName System dependent file name
+	 * @param spoolDirectory directory for the scratch file, or null for the system temporary directory
+	 * @throws IOException
+	 */
+	public StreamingCreditTransfer(String msgId, String companyName, String fileName, File spoolDirectory) throws IOException{
+		this(msgId, companyName, new FileOutputStream(fileName), true, spoolDirectory);
+	}
+
+	/**
+	 * Initialize a streaming SEPA Credit Transfer document, written to the given stream (UTF-8) when closed.
+	 * The stream is flushed but not closed.
+	 * 
+	 * @param msgId
+	 * @param companyName
+	 * @param out destination
+	 * @param spoolDirectory directory for the scratch file, or null for the system temporary directory
+	 * @throws IOException
+	 */
+	public StreamingCreditTransfer(String msgId, String companyName,
+								OutputStream out, File spoolDirectory) throws IOException{
+		this(msgId, companyName, out, false, spoolDirectory);
+	}
+
+	/**
+	 * Initialize a streaming SEPA Credit Transfer document, written to the given channel (UTF-8) when closed.
+	 * The channel is not closed.
+	 * 
+	 * @param msgId
+	 * @param companyName
+	 * @param channel destination
+	 * @param spoolDirectory directory for the scratch file, or null for the system temporary directory
+	 * @throws IOException
+	 */
+	public StreamingCreditTransfer(String msgId, String companyName,
+								WritableByteChannel channel, File spoolDirectory) throws IOException{
+		this(msgId, companyName, Channels.newOutputStream(channel), false, spoolDirectory);
+	}
+
+	/**
+	 * Initialize a streaming SEPA Credit Transfer document, written as one or more files so that each file is
+	 * within the given limits. Each file is written as soon as it is complete.
+	 * 
+	 * @param msgId
+	 * @param companyName
+	 * @param output destination of the files
+	 * @param limits file limits
+	 * @param spoolDirectory directory for the scratch file, or null for the system temporary directory
+	 * @throws IOException
+	 */
+	public StreamingCreditTransfer(String msgId, String companyName,
+								SplitOutput output, SplitLimits limits, File spoolDirectory) throws IOException{
+		this(msgId, companyName, null, false, output, limits, spoolDirectory);
+	}
+
+	private StreamingCreditTransfer(String msgId, String companyName,
+								OutputStream out, boolean ownsOutput, File spoolDirectory) throws IOException{
+		this(msgId, companyName, out, ownsOutput, null, SplitLimits.none(), spoolDirectory);
+	}
+
+	private StreamingCreditTransfer(String msgId, String companyName, OutputStream out, boolean ownsOutput,
+								SplitOutput output, SplitLimits limits, File spoolDirectory) throws IOException{
+		this.msgId = msgId;
+		this.companyName = companyName;
+		this.creationDate = SepaUtils.ISODateTime(new Date());
+		this.out = out;
+		this.ownsOutput = ownsOutput;
+		this.output = output;
+		this.split = new SplitState(limits);
+		this.spoolDirectory = spoolDirectory;
+		try {
+			this.spool = new TransactionSpool(spoolDirectory, CreditTransferXml.TRANSACTION_DEPTH);
+		} catch (IOException e) {
+			if (ownsOutput) {
+				out.close();
+			}
+			throw e;
+		}
+		if (split.measuresBytes()) {
+			split.addBytes(headerSize());
+		}
+	}
+
+	/**
+	 * Add a new payment group to the document. Transactions added to the returned group are written out
+	 * immediately. Groups appear in the document in the order they were added.
+	 * 
+	 * @param pmtInfId
+	 * @param reqDate requested execution date
+	 * @param debtorName
+	 * @param debtorIBAN
+	 * @param debtorBIC
+	 * @return the new payment group
+	 */
+	public StreamingCreditTransferPaymentGroup addPaymentGroup(String pmtInfId, Date reqDate,
+															   String debtorName, String debtorIBAN, String debtorBIC){
+		checkOpen();
+		StreamingCreditTransferPaymentGroup group = new StreamingCreditTransferPaymentGroup(this, pmtInfId, reqDate,
+																							  debtorName, debtorIBAN, debtorBIC);
+		if (output == null) {
+			// Single file: groups keep the order they were added in, with or without transactions
+			group.setPart(split.getPart());
+			groups.add(group);
+		}
+		return group;
+	}
+
+	/**
+	 * @return number of transactions added so far, in all payment groups and files
+	 */
+	public int getNbOfTxs(){
+		return nbOfTxs;
+	}
+
+	/**
+	 * @return sum of all transaction amounts added so far, in all files
+	 */
+	public BigDecimal getCtrlSum(){
+		return ctrlSum.toBigDecimal();
+	}
+
+	/**
+	 * @return number of files written, once the document is closed; before that, number of the file being filled
+	 */
+	public int getFileCount(){
+		return split.getPart();
+	}
+
+	/**
+	 * Writes the complete document to its destination and deletes the scratch file.
+	 * No transactions can be added afterwards.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException{
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			writeFile(split.getPart() == 1 ? msgId : SepaUtils.splitMsgId(msgId, split.getPart()));
+		} finally {
+			spool.delete();
+			if (ownsOutput) {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Deletes the scratch file without writing the current file, after a failure.
+	 */
+	void discard() throws IOException{
+		if (closed) {
+			return;
+		}
+		closed = true;
+		spool.delete();
+		if (ownsOutput) {
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns the spool a transaction of the given group is to be appended to, first completing the current file
+	 * if the transaction does not fit in it.
+	 * 
+	 * @param group group of the transaction
+	 * @param amount transaction amount, or null if given in cents
+	 * @param amountCents transaction amount in cents, if amount is null
+	 * @param size encoded size of the transaction, if the file size is limited
+	 */
+	TransactionSpool beginTransaction(StreamingCreditTransferPaymentGroup group, BigDecimal amount, long amountCents,
+									  long size) throws IOException{
+		checkOpen();
+		if (!split.fits(amount, amountCents, size + joinSize(group))) {
+			nextFile();
+			split.fits(amount, amountCents, size + joinSize(group));
+		}
+		if (group.getPart() != split.getPart()) {
+			join(group);
+		}
+		split.addTransaction(amount, amountCents, size);
+		nbOfTxs++;
+		SplitState.add(ctrlSum, amount, amountCents);
+		return spool;
+	}
+
+	SplitState getSplit(){
+		return split;
+	}
+
+	/**
+	 * @return size the group header adds to the current file if the group is not in it yet
+	 */
+	private long joinSize(StreamingCreditTransferPaymentGroup group) throws IOException{
+		if (group.getPart() == split.getPart() || !split.measuresBytes()) {
+			return 0;
+		}
+		return group.headerSize(split);
+	}
+
+	/**
+	 * Adds a group to the current file.
+	 */
+	private void join(StreamingCreditTransferPaymentGroup group) throws IOException{
+		group.setPart(split.getPart());
+		groups.add(group);
+		if (split.measuresBytes()) {
+			split.addBytes(group.headerSize(split));
+		}
+	}
+
+	/**
+	 * Writes the current file and starts the next one.
+	 */
+	private void nextFile() throws IOException{
+		writeFile(SepaUtils.splitMsgId(msgId, split.getPart()));
+		spool.delete();
+		spool = new TransactionSpool(spoolDirectory, CreditTransferXml.TRANSACTION_DEPTH);
+
+		for (StreamingCreditTransferPaymentGroup group : groups) {
+			group.nextPart();
+		}
+		groups.clear();
+		split.nextPart();
+		if (split.measuresBytes()) {
+			split.addBytes(headerSize());
+		}
+	}
+
+	/**
+	 * Writes the current file.
+	 * 
+	 * @param fileMsgId MsgId of the file
+	 */
+	private void writeFile(String fileMsgId) throws IOException{
+		int fileNbOfTxs = 0;
+		ControlSum fileCtrlSum = new ControlSum();
+		for (StreamingCreditTransferPaymentGroup group : groups) {
+			fileNbOfTxs += group.getPartNbOfTxs();
+			fileCtrlSum.add(group.getPartCtrlSum());
+		}
+
+		spool.finish();
+		OutputStream target = output == null ? out : output.open(split.getPart(), fileMsgId);
+		try {
+			XmlByteWriter w = new XmlByteWriter(target, BUFFER_SIZE);
+			CreditTransferXml.startDocument(w, fileMsgId, creationDate, Integer.toString(fileNbOfTxs), fileCtrlSum.toBigDecimal(), companyName);
+			for (StreamingCreditTransferPaymentGroup group : groups) {
+				group.write(w, spool);
+			}
+			CreditTransferXml.endDocument(w);
+			w.flush();
+		} finally {
+			if (output != null) {
+				target.close();
+			}
+		}
+	}
+
+	/**
+	 * @return upper bound of the size of a file without its payment groups
+	 */
+	private long headerSize() throws IOException{
+		long size = 0;
+		String[] ids = { msgId, SepaUtils.splitMsgId(msgId, split.getPart()) };
+		for (String id : ids) {
+			XmlByteWriter w = split.measure(0);
+			CreditTransferXml.startDocument(w, id, creationDate, SplitState.WIDEST_NB_OF_TXS, SplitState.WIDEST_CTRL_SUM,
+											companyName);
+			CreditTransferXml.endDocument(w);
+			size = Math.max(size, split.measuredSize());
+		}
+		return size;
+	}
+
+	private void checkOpen(){
+		if (closed) {
+			throw new IllegalStateException("Credit transfer document already closed");
+		}
+	}
+}
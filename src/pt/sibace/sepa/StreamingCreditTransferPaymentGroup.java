@@ -0,0 +1,181 @@
+package pt.sibace.sepa;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Date;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * Credit Transfer payment group of a {@link StreamingCreditTransfer}. Unlike {@link CreditTransferPaymentGroup},
+ * transactions are not kept in memory: each one is encoded and spooled as soon as it is added, and only the
+ * group counters are retained.
+ *
+ */
+public class StreamingCreditTransferPaymentGroup {
+
+	private final StreamingCreditTransfer document;
+	private final TransactionSpool.Segments segments = new TransactionSpool.Segments();
+
+	private final String pmtInfId;
+	private final XMLGregorianCalendar reqdExctnDt;
+	private final String debtorName;
+	private final String debtorIBAN;
+	private final String debtorBIC;
+
+	// Group counters
+	private int nbOfTxs;
+	private final ControlSum ctrlSum = new ControlSum();
+
+	// File the group is in, and group counters in that file
+	private int part;
+	private int partNbOfTxs;
+	private final ControlSum partCtrlSum = new ControlSum();
+	private long headerSize = -1;
+
+	StreamingCreditTransferPaymentGroup(StreamingCreditTransfer document, String pmtInfId, Date reqDate,
+										String debtorName, String debtorIBAN, String debtorBIC)
+	{
+		this.document = document;
+		this.pmtInfId = pmtInfId;
+		this.reqdExctnDt = SepaUtils.sharedISODate(reqDate);
+		this.debtorName = debtorName;
+		this.debtorIBAN = debtorIBAN;
+		this.debtorBIC = debtorBIC;
+	}
+
+	/**
+	 * Adds a transaction to the group and writes it out.
+	 * 
+	 * @param endToEndIdentification
+	 * @param amount
+	 * @param creditorName
+	 * @param creditorIBAN
+	 * @param creditorBIC
+	 * @throws IOException
+	 */
+	public void addTransaction(String endToEndIdentification, BigDecimal amount,
+							   String creditorName, String creditorIBAN, String creditorBIC) throws IOException
+	{
+		if (amount == null) {
+			throw new NullPointerException("amount");
+		}
+		add(endToEndIdentification, amount, 0, creditorName, creditorIBAN, creditorBIC);
+	}
+
+	/**
+	 * Adds a transaction to the group and writes it out, with the amount in cents.
+	 * 
+	 * @param endToEndIdentification
+	 * @param amountCents amount in euro cents (1050 for 10.50)
+	 * @param creditorName
+	 * @param creditorIBAN
+	 * @param creditorBIC
+	 * @throws IOException
+	 */
+	public void addTransaction(String endToEndIdentification, long amountCents,
+							   String creditorName, String creditorIBAN, String creditorBIC) throws IOException
+	{
+		add(endToEndIdentification, null, amountCents, creditorName, creditorIBAN, creditorBIC);
+	}
+
+	private void add(String endToEndIdentification, BigDecimal amount, long amountCents,
+					 String creditorName, String creditorIBAN, String creditorBIC) throws IOException
+	{
+		SplitState split = document.getSplit();
+		if (split.measuresBytes()) {
+			// Encode first, the size decides which file the transaction goes to
+			encode(split.scratch(CreditTransferXml.TRANSACTION_DEPTH), endToEndIdentification, amount, amountCents,
+				   creditorName, creditorIBAN, creditorBIC);
+			TransactionSpool spool = document.beginTransaction(this, amount, amountCents, split.scratchSize());
+			split.copyScratch(spool.begin(segments));
+			spool.end(segments);
+		} else {
+			TransactionSpool spool = document.beginTransaction(this, amount, amountCents, 0);
+			encode(spool.begin(segments), endToEndIdentification, amount, amountCents,
+				   creditorName, creditorIBAN, creditorBIC);
+			spool.end(segments);
+		}
+
+		// Update counters
+		nbOfTxs++;
+		SplitState.add(ctrlSum, amount, amountCents);
+		partNbOfTxs++;
+		SplitState.add(partCtrlSum, amount, amountCents);
+	}
+
+	private static void encode(XmlByteWriter w, String endToEndIdentification, BigDecimal amount, long amountCents,
+							   String creditorName, String creditorIBAN, String creditorBIC) throws IOException
+	{
+		if (amount != null) {
+			CreditTransferXml.transaction(w, endToEndIdentification, amount, creditorName, creditorIBAN, creditorBIC);
+		} else {
+			CreditTransferXml.transaction(w, endToEndIdentification, amountCents, creditorName, creditorIBAN, creditorBIC);
+		}
+	}
+
+	public String getPmtInfId(){
+		return pmtInfId;
+	}
+
+	/**
+	 * @return number of transactions added so far, in all files
+	 */
+	public int getNbOfTxs(){
+		return nbOfTxs;
+	}
+
+	/**
+	 * @return sum of the transaction amounts added so far, in all files
+	 */
+	public BigDecimal getCtrlSum(){
+		return ctrlSum.toBigDecimal();
+	}
+
+	int getPart(){
+		return part;
+	}
+
+	void setPart(int part){
+		this.part = part;
+	}
+
+	int getPartNbOfTxs(){
+		return partNbOfTxs;
+	}
+
+	ControlSum getPartCtrlSum(){
+		return partCtrlSum;
+	}
+
+	/**
+	 * Clears the file counters once the group is written to a file.
+	 */
+	void nextPart(){
+		part = 0;
+		partNbOfTxs = 0;
+		partCtrlSum.clear();
+		segments.clear();
+	}
+
+	/**
+	 * @return upper bound of the size of the group without its transactions
+	 */
+	long headerSize(SplitState split) throws IOException{
+		if (headerSize < 0) {
+			XmlByteWriter w = split.measure(CreditTransferXml.PAYMENT_GROUP_DEPTH);
+			CreditTransferXml.startPaymentGroup(w, pmtInfId, SplitState.WIDEST_NB_OF_TXS, SplitState.WIDEST_CTRL_SUM,
+												 reqdExctnDt, debtorName, debtorIBAN, debtorBIC);
+			CreditTransferXml.endPaymentGroup(w);
+			headerSize = split.measuredSize();
+		}
+		return headerSize;
+	}
+
+	void write(XmlByteWriter w, TransactionSpool spool) throws IOException{
+		CreditTransferXml.startPaymentGroup(w, pmtInfId, Integer.toString(partNbOfTxs), partCtrlSum.toBigDecimal(), reqdExctnDt,
+											 debtorName, debtorIBAN, debtorBIC);
+		spool.copy(segments, w);
+		CreditTransferXml.endPaymentGroup(w);
+	}
+}
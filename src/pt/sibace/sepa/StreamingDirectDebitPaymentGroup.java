@@ -0,0 +1,247 @@
+package pt.sibace.sepa;
+
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.SequenceType1Code;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Date;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * Direct Debit payment group of a {@link StreamingDirectDebit}. Unlike {@link DirectDebitPaymentGroup},
+ * transactions are not kept in memory: each one is encoded and spooled as soon as it is added, and only the
+ * group counters are retained.
+ *
+ */
+public class StreamingDirectDebitPaymentGroup {
+
+	private final StreamingDirectDebit document;
+	private final TransactionSpool.Segments segments = new TransactionSpool.Segments();
+
+	private final String pmtInfId;
+	private final XMLGregorianCalendar reqdColltnDt;
+	private final String creditorName;
+	private final String creditorId;
+	private final String creditorIBAN;
+	private final String creditorBIC;
+	private final String seqTp;
+
+	// Group counters
+	private int nbOfTxs;
+	private final ControlSum ctrlSum = new ControlSum();
+
+	// File the group is in, and group counters in that file
+	private int part;
+	private int partNbOfTxs;
+	private final ControlSum partCtrlSum = new ControlSum();
+	private long headerSize = -1;
+
+	StreamingDirectDebitPaymentGroup(StreamingDirectDebit document, String pmtInfId, Date reqDate,
+									 String creditorName, String creditorId,
+									 String creditorIBAN, String creditorBIC,
+									 String groupType)
+	{
+		this.document = document;
+		this.pmtInfId = pmtInfId;
+		this.reqdColltnDt = SepaUtils.sharedISODate(reqDate);
+		this.creditorName = creditorName;
+		this.creditorId = creditorId;
+		this.creditorIBAN = creditorIBAN;
+		this.creditorBIC = creditorBIC;
+		this.seqTp = SequenceType1Code.fromValue(groupType).value();
+	}
+
+	public void addTransactionWithoutAmendment(String endToEndIdentification, BigDecimal amount,
+											   String mandateId, Date mandateDate,
+											   String debtorName, String debtorIBAN, String debtorBIC) throws IOException{
+		addTransaction(endToEndIdentification, amount, mandateId, mandateDate, debtorName, debtorIBAN, debtorBIC, false, false, "");
+	}
+
+	public void addTransactionWithAmendedDebtorBank(String endToEndIdentification, BigDecimal amount,
+													String mandateId, Date mandateDate,
+													String debtorName, String debtorIBAN, String debtorBIC) throws IOException{
+		addTransaction(endToEndIdentification, amount, mandateId, mandateDate, debtorName, debtorIBAN, debtorBIC, true, false, "");
+	}
+
+	public void addTransactionWithAmendedDebtorAccount(String endToEndIdentification, BigDecimal amount,
+													   String mandateId, Date mandateDate,
+													   String debtorName, String debtorIBAN, String debtorBIC,
+													   String originalIBAN) throws IOException{
+		addTransaction(endToEndIdentification, amount, mandateId, mandateDate, debtorName, debtorIBAN, debtorBIC, false, true, originalIBAN);
+	}
+
+	/**
+	 * Same as {@link #addTransactionWithoutAmendment(String, BigDecimal, String, Date, String, String, String)},
+	 * with the amount in euro cents (1050 for 10.50).
+	 */
+	public void addTransactionWithoutAmendment(String endToEndIdentification, long amountCents,
+											   String mandateId, Date mandateDate,
+											   String debtorName, String debtorIBAN, String debtorBIC) throws IOException{
+		addTransaction(endToEndIdentification, amountCents, mandateId, mandateDate, debtorName, debtorIBAN, debtorBIC, false, false, "");
+	}
+
+	/**
+	 * Same as {@link #addTransactionWithAmendedDebtorBank(String, BigDecimal, String, Date, String, String, String)},
+	 * with the amount in euro cents (1050 for 10.50).
+	 */
+	public void addTransactionWithAmendedDebtorBank(String endToEndIdentification, long amountCents,
+													String mandateId, Date mandateDate,
+													String debtorName, String debtorIBAN, String debtorBIC) throws IOException{
+		addTransaction(endToEndIdentification, amountCents, mandateId, mandateDate, debtorName, debtorIBAN, debtorBIC, true, false, "");
+	}
+
+	/**
+	 * Same as {@link #addTransactionWithAmendedDebtorAccount(String, BigDecimal, String, Date, String, String, String, String)},
+	 * with the amount in euro cents (1050 for 10.50).
+	 */
+	public void addTransactionWithAmendedDebtorAccount(String endToEndIdentification, long amountCents,
+													   String mandateId, Date mandateDate,
+													   String debtorName, String debtorIBAN, String debtorBIC,
+													   String originalIBAN) throws IOException{
+		addTransaction(endToEndIdentification, amountCents, mandateId, mandateDate, debtorName, debtorIBAN, debtorBIC, false, true, originalIBAN);
+	}
+
+	/**
+	 * Adds a transaction to the group and writes it out.
+	 * 
+	 * @throws IOException
+	 */
+	public void addTransaction(String endToEndIdentification, BigDecimal amount,
+							   String mandateId, Date mandateDate,
+							   String debtorName, String debtorIBAN, String debtorBIC,
+							   boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN) throws IOException
+	{
+		if (amount == null) {
+			throw new NullPointerException("amount");
+		}
+		add(endToEndIdentification, amount, 0, mandateId, mandateDate, debtorName, debtorIBAN, debtorBIC,
+			debtorBankChanged, debtorAccountChanged, originalIBAN);
+	}
+
+	/**
+	 * Adds a transaction to the group and writes it out, with the amount in euro cents (1050 for 10.50).
+	 * 
+	 * @throws IOException
+	 */
+	public void addTransaction(String endToEndIdentification, long amountCents,
+							   String mandateId, Date mandateDate,
+							   String debtorName, String debtorIBAN, String debtorBIC,
+							   boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN) throws IOException
+	{
+		add(endToEndIdentification, null, amountCents, mandateId, mandateDate, debtorName, debtorIBAN, debtorBIC,
+			debtorBankChanged, debtorAccountChanged, originalIBAN);
+	}
+
+	private void add(String endToEndIdentification, BigDecimal amount, long amountCents,
+					 String mandateId, Date mandateDate,
+					 String debtorName, String debtorIBAN, String debtorBIC,
+					 boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN) throws IOException
+	{
+		XMLGregorianCalendar dtOfSgntr = SepaUtils.sharedISODate(mandateDate);
+
+		SplitState split = document.getSplit();
+		if (split.measuresBytes()) {
+			// Encode first, the size decides which file the transaction goes to
+			encode(split.scratch(DirectDebitXml.TRANSACTION_DEPTH), endToEndIdentification, amount, amountCents,
+				   mandateId, dtOfSgntr, debtorName, debtorIBAN, debtorBIC,
+				   debtorBankChanged, debtorAccountChanged, originalIBAN);
+			TransactionSpool spool = document.beginTransaction(this, amount, amountCents, split.scratchSize());
+			split.copyScratch(spool.begin(segments));
+			spool.end(segments);
+		} else {
+			TransactionSpool spool = document.beginTransaction(this, amount, amountCents, 0);
+			encode(spool.begin(segments), endToEndIdentification, amount, amountCents,
+				   mandateId, dtOfSgntr, debtorName, debtorIBAN, debtorBIC,
+				   debtorBankChanged, debtorAccountChanged, originalIBAN);
+			spool.end(segments);
+		}
+
+		// Update counters
+		nbOfTxs++;
+		SplitState.add(ctrlSum, amount, amountCents);
+		partNbOfTxs++;
+		SplitState.add(partCtrlSum, amount, amountCents);
+	}
+
+	private static void encode(XmlByteWriter w, String endToEndIdentification, BigDecimal amount, long amountCents,
+							   String mandateId, XMLGregorianCalendar dtOfSgntr,
+							   String debtorName, String debtorIBAN, String debtorBIC,
+							   boolean debtorBankChanged, boolean debtorAccountChanged, String originalIBAN) throws IOException
+	{
+		if (amount != null) {
+			DirectDebitXml.transaction(w, endToEndIdentification, amount, mandateId, dtOfSgntr,
+									   debtorName, debtorIBAN, debtorBIC,
+									   debtorBankChanged, debtorAccountChanged, originalIBAN);
+		} else {
+			DirectDebitXml.transaction(w, endToEndIdentification, amountCents, mandateId, dtOfSgntr,
+									   debtorName, debtorIBAN, debtorBIC,
+									   debtorBankChanged, debtorAccountChanged, originalIBAN);
+		}
+	}
+
+	public String getPmtInfId(){
+		return pmtInfId;
+	}
+
+	/**
+	 * @return number of transactions added so far, in all files
+	 */
+	public int getNbOfTxs(){
+		return nbOfTxs;
+	}
+
+	/**
+	 * @return sum of the transaction amounts added so far, in all files
+	 */
+	public BigDecimal getCtrlSum(){
+		return ctrlSum.toBigDecimal();
+	}
+
+	int getPart(){
+		return part;
+	}
+
+	void setPart(int part){
+		this.part = part;
+	}
+
+	int getPartNbOfTxs(){
+		return partNbOfTxs;
+	}
+
+	ControlSum getPartCtrlSum(){
+		return partCtrlSum;
+	}
+
+	/**
+	 * Clears the file counters once the group is written to a file.
+	 */
+	void nextPart(){
+		part = 0;
+		partNbOfTxs = 0;
+		partCtrlSum.clear();
+		segments.clear();
+	}
+
+	/**
+	 * @return upper bound of the size of the group without its transactions
+	 */
+	long headerSize(SplitState split) throws IOException{
+		if (headerSize < 0) {
+			XmlByteWriter w = split.measure(DirectDebitXml.PAYMENT_GROUP_DEPTH);
+			DirectDebitXml.startPaymentGroup(w, pmtInfId, SplitState.WIDEST_NB_OF_TXS, SplitState.WIDEST_CTRL_SUM, seqTp,
+											 reqdColltnDt, creditorName, creditorIBAN, creditorBIC, creditorId);
+			DirectDebitXml.endPaymentGroup(w);
+			headerSize = split.measuredSize();
+		}
+		return headerSize;
+	}
+
+	void write(XmlByteWriter w, TransactionSpool spool) throws IOException{
+		DirectDebitXml.startPaymentGroup(w, pmtInfId, Integer.toString(partNbOfTxs), partCtrlSum.toBigDecimal(), seqTp, reqdColltnDt,
+										 creditorName, creditorIBAN, creditorBIC, creditorId);
+		spool.copy(segments, w);
+		DirectDebitXml.endPaymentGroup(w);
+	}
+}
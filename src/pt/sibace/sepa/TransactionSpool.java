@@ -0,0 +1,139 @@
+package pt.sibace.sepa;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Scratch file holding the encoded transactions of a streaming document until its totals are known.
+ *
+ * Transactions are encoded as they are added and appended to a single file. Each payment group keeps only the
+ * byte ranges ({@link Segments}) its transactions occupy, so memory depends on the number of groups and not
+ * on the number of transactions. When the document is closed, the ranges are copied behind each group header.
+ *
+ */
+final class TransactionSpool {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File file;
+	private final FileOutputStream output;
+	private final XmlByteWriter writer;
+	private final int depth;
+	private RandomAccessFile input;
+	private Segments owner;
+
+	/**
+	 * @param directory directory for the scratch file, or null for the system temporary directory
+	 * @param depth element depth of the spooled transactions inside the final document
+	 * @throws IOException
+	 */
+	TransactionSpool(File directory, int depth) throws IOException{
+		this.file = File.createTempFile("sepa", ".spool", directory);
+		this.output = new FileOutputStream(file);
+		this.writer = new XmlByteWriter(output, BUFFER_SIZE);
+		this.depth = depth;
+	}
+
+	/**
+	 * Returns the writer positioned to append a transaction for the given group. Must be followed by
+	 * {@link #end(Segments)} once the transaction is written.
+	 */
+	XmlByteWriter begin(Segments segments){
+		if (input != null) {
+			throw new IllegalStateException("Document already closed");
+		}
+		if (owner != segments) {
+			segments.open(writer.size());
+			owner = segments;
+		}
+		writer.setDepth(depth);
+		return writer;
+	}
+
+	void end(Segments segments){
+		segments.extend(writer.size());
+	}
+
+	/**
+	 * Stops appending and prepares the spooled content to be copied.
+	 */
+	void finish() throws IOException{
+		writer.flush();
+		output.close();
+		input = new RandomAccessFile(file, "r");
+	}
+
+	/**
+	 * Copies all transactions of a group into the final document.
+	 */
+	void copy(Segments segments, XmlByteWriter target) throws IOException{
+		FileChannel channel = input.getChannel();
+		for (int i = 0; i < segments.count; i++) {
+			long start = segments.bounds[2 * i];
+			target.copy(channel, start, segments.bounds[2 * i + 1] - start);
+		}
+		if (segments.count > 0) {
+			target.markChildren();
+		}
+	}
+
+	/**
+	 * @return bytes spooled so far
+	 */
+	long size(){
+		return writer.size();
+	}
+
+	/**
+	 * Releases and deletes the scratch file. Safe to call more than once.
+	 */
+	void delete(){
+		try {
+			output.close();
+		} catch (IOException e) {
+			// Nothing to recover, the file is deleted below
+		}
+		if (input != null) {
+			try {
+				input.close();
+			} catch (IOException e) {
+				// Nothing to recover, the file is deleted below
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Byte ranges of the spool owned by one payment group. Consecutive transactions of the same group share a
+	 * range, so a group that is filled in one go uses a single range.
+	 */
+	static final class Segments {
+		private long[] bounds = new long[2];
+		private int count;
+
+		void open(long position){
+			if (2 * count == bounds.length) {
+				long[] grown = new long[bounds.length * 2];
+				System.arraycopy(bounds, 0, grown, 0, bounds.length);
+				bounds = grown;
+			}
+			bounds[2 * count] = position;
+			bounds[2 * count + 1] = position;
+			count++;
+		}
+
+		void extend(long position){
+			bounds[2 * count - 1] = position;
+		}
+
+		/**
+		 * Forgets all ranges, once they were copied.
+		 */
+		void clear(){
+			count = 0;
+		}
+	}
+}
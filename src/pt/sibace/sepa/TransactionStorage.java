@@ -0,0 +1,30 @@
+package pt.sibace.sepa;
+
+/**
+ * How a payment group built in memory keeps its transactions until the document is written.
+ *
+ */
+public enum TransactionStorage {
+
+	/**
+	 * JAXB objects, created as transactions are added (about a dozen objects per transaction).
+	 */
+	JAXB,
+
+	/**
+	 * Compact columns: amounts as numbers and strings as indexes into pools of UTF-8 bytes, with repeated names,
+	 * IBANs and BICs stored once. The {@link XmlEngine#DIRECT} and {@link XmlEngine#PARALLEL} engines write
+	 * straight from the columns; JAXB objects are only created by {@code getInformation()} or when the document
+	 * is written with the {@link XmlEngine#JAXB} engine. Repeated ids are not looked for unless asked, as that keeps
+	 * a hash per id on the heap (see {@code setDuplicateChecks}).
+	 */
+	COMPACT,
+
+	/**
+	 * Binary records appended to a scratch file and read back when the document is written, so the heap used does
+	 * not grow with the number of transactions. Written like {@link #COMPACT}; the scratch file is deleted when
+	 * the payment group is closed. Repeated ids are not looked for unless asked, as that would make the heap grow
+	 * again (see {@code setDuplicateChecks}).
+	 */
+	OFF_HEAP
+}
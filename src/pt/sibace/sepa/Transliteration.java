@@ -0,0 +1,128 @@
+package pt.sibace.sepa;
+
+/**
+ * Replaces the characters outside the SEPA set (a-z A-Z 0-9 / - ? : ( ) . , ' + space) in names and references:
+ * accented letters by their base letter (c cedilla by c, a tilde by a), sharp s and the ae and oe ligatures by two
+ * letters, quotes, dashes and brackets by the closest SEPA character; combining accents are dropped and anything
+ * else becomes '.'.
+ *
+ * The replacement of every char is looked up in a table of 64K entries built once. Values already in the SEPA set
+ * and within the length limit are returned as they are, after a single pass and without allocating.
+ *
+ */
+public final class Transliteration {
+
+	// Table entries of characters replaced by two letters, and of characters dropped
+	private static final char EXPAND = '\uFFFF';
+	private static final char DROP = '\u0000';
+
+	// Replacement of each char
+	private static final char[] TABLE = new char[65536];
+
+	// Base letters of U+00C0 to U+00FF and of Latin Extended-A, U+0100 to U+017F
+	private static final String LATIN_1 =
+			"AAAAAAA" + "CEEEEIIIIDNOOOOOxOUUUUYTs" + "aaaaaaa" + "ceeeeiiiidnooooo/ouuuuyty";
+	private static final String LATIN_EXTENDED_A =
+			"AaAaAaCcCcCcCcDd" + "DdEeEeEeEeEeGgGg" + "GgGgHhHhIiIiIiIi" + "IiIiJjKkkLlLlLlL"
+			+ "lLlNnNnNnnNnOoOo" + "OoOoRrRrRrSsSsSs" + "SsTtTtTtUuUuUuUu" + "UuUuWwYyYZzZzZzs";
+
+	// Characters replaced by two letters, and their replacements
+	private static final String EXPANDED = "\u00C6\u00E6\u00DF\u0132\u0133\u0152\u0153";
+	private static final String[] EXPANSIONS = {"AE", "ae", "ss", "IJ", "ij", "OE", "oe"};
+
+	static {
+		for (int c = 0; c < TABLE.length; c++) {
+			TABLE[c] = FieldRules.isSepa((char) c) ? (char) c : '.';
+		}
+		// ASCII outside the set
+		replace("&_\"`;[]{}<>\\|\t\r\n", "+-'',()()()//   ");
+		// Latin-1 symbols (no-break space, ordinals, guillemets, degree, acute, middle dot) and the euro sign
+		replace("\u00A0\u00AA\u00AB\u00B0\u00B4\u00B7\u00BA\u00BB\u20AC", " a'o'.o'E");
+		// Latin-1 and Latin Extended-A letters
+		for (int i = 0; i < LATIN_1.length(); i++) {
+			TABLE[0xC0 + i] = LATIN_1.charAt(i);
+		}
+		for (int i = 0; i < LATIN_EXTENDED_A.length(); i++) {
+			TABLE[0x100 + i] = LATIN_EXTENDED_A.charAt(i);
+		}
+		// Quotes, dashes, ellipsis and spaces of the General Punctuation block
+		replace("\u2018\u2019\u201A\u201B\u201C\u201D\u201E\u201F\u2010\u2011\u2012\u2013\u2014\u2015\u2026",
+				"''''''''------.");
+		for (int c = 0x2000; c <= 0x200A; c++) {
+			TABLE[c] = ' ';
+		}
+		// Combining accents, from decomposed text, and the second half of surrogate pairs
+		for (int c = 0x300; c <= 0x36F; c++) {
+			TABLE[c] = DROP;
+		}
+		for (int c = 0xDC00; c <= 0xDFFF; c++) {
+			TABLE[c] = DROP;
+		}
+		for (int i = 0; i < EXPANDED.length(); i++) {
+			TABLE[EXPANDED.charAt(i)] = EXPAND;
+		}
+	}
+
+	private Transliteration(){
+	}
+
+	/**
+	 * @return value with only SEPA characters, null for null
+	 */
+	public static String toSepa(String value){
+		return toSepa(value, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param value
+	 * @param maxLength most characters of the result; longer values are cut, also when two letters replace one
+	 * character
+	 * @return value with only SEPA characters and at most maxLength long, null for null
+	 */
+	public static String toSepa(String value, int maxLength){
+		if (value == null) {
+			return null;
+		}
+		int length = value.length();
+		int i = 0;
+		while (i < length && TABLE[value.charAt(i)] == value.charAt(i)) {
+			i++;
+		}
+		if (i == length && length <= maxLength) {
+			return value;
+		}
+
+		// Characters already in the set, then the rest replaced
+		char[] result = new char[(int) Math.min(maxLength, 2L * length)];
+		int count = Math.min(i, result.length);
+		value.getChars(0, count, result, 0);
+		for (; i < length && count < result.length; i++) {
+			char c = value.charAt(i);
+			char replacement = TABLE[c];
+			if (replacement == EXPAND) {
+				String expansion = EXPANSIONS[EXPANDED.indexOf(c)];
+				result[count++] = expansion.charAt(0);
+				if (count < result.length) {
+					result[count++] = expansion.charAt(1);
+				}
+			} else if (replacement != DROP) {
+				result[count++] = replacement;
+			}
+		}
+		return new String(result, 0, count);
+	}
+
+	/**
+	 * @return value with only SEPA characters; names are cut to the length limit of the field, ids are never cut, so
+	 * that distinct ids are not made equal and too long ones are reported by the field checks
+	 */
+	static String toSepa(String value, FieldRules.Field field){
+		return toSepa(value, field == FieldRules.Field.NAME ? FieldRules.maxLength(field) : Integer.MAX_VALUE);
+	}
+
+	private static void replace(String characters, String replacements){
+		for (int i = 0; i < characters.length(); i++) {
+			TABLE[characters.charAt(i)] = replacements.charAt(i);
+		}
+	}
+}
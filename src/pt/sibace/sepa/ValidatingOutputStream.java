@@ -0,0 +1,360 @@
+package pt.sibace.sepa;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.validation.Schema;
+import javax.xml.validation.ValidatorHandler;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Stream writing a document to another stream and validating it against a schema in the same pass: the bytes are
+ * handed in chunks to a thread that parses them into a {@link ValidatorHandler}. Problems are kept with the
+ * EndToEndId of the transaction they were found in, and thrown by {@link #finish()}.
+ *
+ */
+final class ValidatingOutputStream extends OutputStream {
+
+	private static final int CHUNK = 64 * 1024;
+
+	// Chunks handed over but not yet parsed
+	private static final int CHUNKS = 4;
+
+	// Problems kept, past this only counted
+	private static final int MAX_PROBLEMS = 100;
+
+	private static final byte[] END = new byte[0];
+
+	private static final SAXParserFactory PARSERS = SAXParserFactory.newInstance();
+
+	static {
+		PARSERS.setNamespaceAware(true);
+	}
+
+	private final OutputStream out;
+	private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(CHUNKS);
+	private byte[] chunk = new byte[CHUNK];
+	private int count;
+	private boolean ended;
+
+	private final Validation validation;
+	private final Thread validator;
+
+	ValidatingOutputStream(OutputStream out, Schema schema){
+		this.out = out;
+		validation = new Validation(schema.newValidatorHandler(), new ChunkInputStream());
+		validator = new Thread(validation, "sepa-schema-validation");
+		validator.setDaemon(true);
+		validator.start();
+	}
+
+	@Override
+	public void write(int b) throws IOException{
+		out.write(b);
+		if (count == CHUNK) {
+			handOver();
+		}
+		chunk[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException{
+		out.write(b, off, len);
+		while (len > 0) {
+			if (count == CHUNK) {
+				handOver();
+			}
+			int n = Math.min(len, CHUNK - count);
+			System.arraycopy(b, off, chunk, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException{
+		out.flush();
+	}
+
+	/**
+	 * Waits for the validation of everything written to complete.
+	 *
+	 * @throws SchemaValidationException if the document is not valid
+	 * @throws IOException if it could not be validated
+	 */
+	void finish() throws IOException{
+		end();
+		if (validation.failure != null) {
+			throw new IOException("Schema validation failed", validation.failure);
+		}
+		if (validation.count > 0) {
+			throw new SchemaValidationException(validation.problems, validation.count);
+		}
+	}
+
+	/**
+	 * Stops the validation, if {@link #finish()} was not called. The stream written to is not closed.
+	 */
+	@Override
+	public void close() throws IOException{
+		end();
+	}
+
+	private void end() throws IOException{
+		if (ended) {
+			return;
+		}
+		ended = true;
+		if (count > 0) {
+			put(Arrays.copyOf(chunk, count));
+		}
+		put(END);
+		try {
+			validator.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for the schema validation");
+		}
+	}
+
+	private void handOver() throws IOException{
+		put(chunk);
+		chunk = new byte[CHUNK];
+		count = 0;
+	}
+
+	private void put(byte[] bytes) throws IOException{
+		try {
+			chunks.put(bytes);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted handing bytes to the schema validation");
+		}
+	}
+
+	/**
+	 * Bytes handed over, read by the parser.
+	 */
+	private final class ChunkInputStream extends InputStream {
+		private byte[] current = new byte[0];
+		private int position;
+
+		@Override
+		public int read() throws IOException{
+			if (!hasBytes()) {
+				return -1;
+			}
+			return current[position++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException{
+			if (len == 0) {
+				return 0;
+			}
+			if (!hasBytes()) {
+				return -1;
+			}
+			int n = Math.min(len, current.length - position);
+			System.arraycopy(current, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		/**
+		 * Reads the rest without parsing it, so the writer is never blocked.
+		 */
+		void drain() throws IOException{
+			while (hasBytes()) {
+				position = current.length;
+			}
+		}
+
+		/**
+		 * @return false at the end of the document
+		 */
+		private boolean hasBytes() throws IOException{
+			while (current != END && position == current.length) {
+				try {
+					current = chunks.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				position = 0;
+			}
+			return current != END;
+		}
+	}
+
+	/**
+	 * Parses the bytes handed over into the validator, following the transaction being parsed and its EndToEndId.
+	 */
+	private static final class Validation extends DefaultHandler implements Runnable {
+		private final ValidatorHandler handler;
+		private final ChunkInputStream input;
+
+		// Results, read once the thread has ended
+		private final List<SchemaValidationException.Problem> problems = new ArrayList<SchemaValidationException.Problem>();
+		private int count;
+		private Exception failure;
+
+		// Transaction being parsed, its EndToEndId once read, and its problems found before
+		private boolean inTransaction;
+		private String endToEndIdentification;
+		private int pending;
+		private StringBuilder text;
+
+		Validation(ValidatorHandler handler, ChunkInputStream input){
+			this.handler = handler;
+			this.input = input;
+			handler.setErrorHandler(this);
+		}
+
+		public void run(){
+			try {
+				XMLReader reader;
+				synchronized (PARSERS) {
+					reader = PARSERS.newSAXParser().getXMLReader();
+				}
+				reader.setContentHandler(this);
+				reader.setErrorHandler(this);
+				reader.parse(new InputSource(input));
+			} catch (SAXParseException e) {
+				// Not well formed: already recorded by fatalError
+			} catch (SAXException e) {
+				failure = e;
+			} catch (ParserConfigurationException e) {
+				failure = e;
+			} catch (IOException e) {
+				failure = e;
+			} catch (RuntimeException e) {
+				failure = e;
+			} finally {
+				try {
+					input.drain();
+				} catch (IOException e) {
+					if (failure == null) {
+						failure = e;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void error(SAXParseException e){
+			problem(e);
+		}
+
+		@Override
+		public void fatalError(SAXParseException e) throws SAXException{
+			problem(e);
+			throw e;
+		}
+
+		private void problem(SAXParseException e){
+			count++;
+			if (problems.size() < MAX_PROBLEMS) {
+				problems.add(new SchemaValidationException.Problem(inTransaction ? endToEndIdentification : null,
+																	e.getLineNumber(), e.getColumnNumber(), e.getMessage()));
+			}
+		}
+
+		@Override
+		public void setDocumentLocator(Locator locator){
+			handler.setDocumentLocator(locator);
+		}
+
+		@Override
+		public void startDocument() throws SAXException{
+			handler.startDocument();
+		}
+
+		@Override
+		public void endDocument() throws SAXException{
+			handler.endDocument();
+		}
+
+		@Override
+		public void startPrefixMapping(String prefix, String uri) throws SAXException{
+			handler.startPrefixMapping(prefix, uri);
+		}
+
+		@Override
+		public void endPrefixMapping(String prefix) throws SAXException{
+			handler.endPrefixMapping(prefix);
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException{
+			if (isTransaction(localName)) {
+				inTransaction = true;
+				endToEndIdentification = null;
+				pending = problems.size();
+			} else if (inTransaction && endToEndIdentification == null && "EndToEndId".equals(localName)) {
+				text = new StringBuilder();
+			}
+			handler.startElement(uri, localName, qName, attributes);
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException{
+			if (text != null && "EndToEndId".equals(localName)) {
+				// Problems of the transaction found before its EndToEndId
+				endToEndIdentification = text.toString();
+				text = null;
+				for (int i = pending; i < problems.size(); i++) {
+					problems.set(i, problems.get(i).withEndToEndIdentification(endToEndIdentification));
+				}
+			}
+			handler.endElement(uri, localName, qName);
+			if (isTransaction(localName)) {
+				inTransaction = false;
+			}
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) throws SAXException{
+			if (text != null) {
+				text.append(ch, start, length);
+			}
+			handler.characters(ch, start, length);
+		}
+
+		@Override
+		public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException{
+			handler.ignorableWhitespace(ch, start, length);
+		}
+
+		@Override
+		public void processingInstruction(String target, String data) throws SAXException{
+			handler.processingInstruction(target, data);
+		}
+
+		@Override
+		public void skippedEntity(String name) throws SAXException{
+			handler.skippedEntity(name);
+		}
+
+		private static boolean isTransaction(String localName){
+			return "CdtTrfTxInf".equals(localName) || "DrctDbtTxInf".equals(localName);
+		}
+	}
+}
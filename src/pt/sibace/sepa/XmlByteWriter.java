@@ -0,0 +1,441 @@
+package pt.sibace.sepa;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * Minimal XML writer that encodes UTF-8 straight into a reusable byte buffer.
+ *
+ * Output layout follows the JAXB formatted output used by the builders (four space indentation, empty elements
+ * collapsed to <code>&lt;Tag/&gt;</code>, same character escaping), so documents written here are byte for byte
+ * the same as the ones written by the marshaller.
+ *
+ * Element names are passed as pre-encoded byte arrays (see {@link #tag(String)}) so no per element allocation
+ * takes place. Not thread safe.
+ *
+ */
+final class XmlByteWriter {
+
+	private static final byte[] DECLARATION = tag("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>");
+	private static final byte[] AMP = tag("&amp;");
+	private static final byte[] LT = tag("&lt;");
+	private static final byte[] GT = tag("&gt;");
+	private static final byte[] QUOT = tag("&quot;");
+	private static final byte[] CR = tag("&#13;");
+	private static final int INDENT = 4;
+	private static final int MAX_DEPTH = 64;
+	private static final int REUSABLE_BUFFER_SIZE = 64 * 1024;
+
+	// One writer, with its buffer, kept per thread for documents written in one go
+	private static final ThreadLocal<XmlByteWriter> REUSABLE = new ThreadLocal<XmlByteWriter>();
+
+	private OutputStream out;
+	private boolean inUse;
+	private final byte[] buffer;
+	private int count;
+	private long flushed;
+
+	// Current element depth, and whether each open element already has child elements
+	private int depth;
+	private final boolean[] hasChildren = new boolean[MAX_DEPTH];
+	// Start tag written but not yet closed with '>' (it may still become an empty element)
+	private boolean pending;
+
+	XmlByteWriter(OutputStream out, int bufferSize){
+		this.out = out;
+		this.buffer = new byte[Math.max(bufferSize, 256)];
+	}
+
+	/**
+	 * Returns this thread's reusable writer, set to write to the given stream. Must be given back with
+	 * {@link #release()} once the document is flushed.
+	 */
+	static XmlByteWriter acquire(OutputStream out){
+		XmlByteWriter w = REUSABLE.get();
+		if (w == null) {
+			w = new XmlByteWriter(out, REUSABLE_BUFFER_SIZE);
+			REUSABLE.set(w);
+		} else if (w.inUse) {
+			// Already writing another document on this thread
+			return new XmlByteWriter(out, REUSABLE_BUFFER_SIZE);
+		}
+		w.out = out;
+		w.count = 0;
+		w.flushed = 0;
+		w.depth = 0;
+		w.pending = false;
+		w.inUse = true;
+		return w;
+	}
+
+	/**
+	 * Detaches a writer obtained with {@link #acquire(OutputStream)} from its stream. Buffered content not
+	 * flushed is discarded.
+	 */
+	void release(){
+		out = null;
+		count = 0;
+		inUse = false;
+	}
+
+	/**
+	 * Encodes an ASCII element name or markup constant.
+	 */
+	static byte[] tag(String ascii){
+		byte[] bytes = new byte[ascii.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) ascii.charAt(i);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Writes the XML declaration. The root element follows on the next line.
+	 */
+	void declaration() throws IOException{
+		raw(DECLARATION, 0, DECLARATION.length);
+	}
+
+	/**
+	 * Sets the depth of the next element, used when writing fragments that will be placed inside an
+	 * already written parent.
+	 */
+	void setDepth(int depth){
+		this.depth = depth;
+		this.pending = false;
+		this.hasChildren[depth] = false;
+	}
+
+	int getDepth(){
+		return depth;
+	}
+
+	void start(byte[] tag) throws IOException{
+		closePending();
+		if (depth > 0) {
+			hasChildren[depth - 1] = true;
+		}
+		newLine(depth);
+		put((byte) '<');
+		raw(tag, 0, tag.length);
+		hasChildren[depth] = false;
+		depth++;
+		pending = true;
+	}
+
+	/**
+	 * Writes an attribute of the element just started.
+	 */
+	void attribute(byte[] name, String value) throws IOException{
+		put((byte) ' ');
+		raw(name, 0, name.length);
+		put((byte) '=');
+		put((byte) '"');
+		escape(value, true);
+		put((byte) '"');
+	}
+
+	/**
+	 * Writes character content of the current element.
+	 */
+	void text(String value) throws IOException{
+		closePending();
+		escape(value, false);
+	}
+
+	/**
+	 * Writes character content already encoded in UTF-8.
+	 */
+	void text(byte[] utf8, int offset, int length) throws IOException{
+		closePending();
+		int end = offset + length;
+		int run = offset;
+		for (int i = offset; i < end; i++) {
+			byte b = utf8[i];
+			// Multi-byte sequences never contain ASCII bytes, only these four need escaping
+			if (b == '&' || b == '<' || b == '>' || b == '\r') {
+				raw(utf8, run, i - run);
+				switch (b) {
+				case '&':
+					raw(AMP, 0, AMP.length);
+					break;
+				case '<':
+					raw(LT, 0, LT.length);
+					break;
+				case '>':
+					raw(GT, 0, GT.length);
+					break;
+				default:
+					raw(CR, 0, CR.length);
+				}
+				run = i + 1;
+			}
+		}
+		raw(utf8, run, end - run);
+	}
+
+	/**
+	 * Writes an ISO date (yyyy-MM-dd) given as a yyyyMMdd number as character content.
+	 */
+	void date(int yyyymmdd) throws IOException{
+		closePending();
+		if (buffer.length - count < 10) {
+			flushBuffer();
+		}
+		int year = yyyymmdd / 10000;
+		int month = yyyymmdd / 100 % 100;
+		int day = yyyymmdd % 100;
+		buffer[count++] = (byte) ('0' + year / 1000 % 10);
+		buffer[count++] = (byte) ('0' + year / 100 % 10);
+		buffer[count++] = (byte) ('0' + year / 10 % 10);
+		buffer[count++] = (byte) ('0' + year % 10);
+		buffer[count++] = '-';
+		buffer[count++] = (byte) ('0' + month / 10);
+		buffer[count++] = (byte) ('0' + month % 10);
+		buffer[count++] = '-';
+		buffer[count++] = (byte) ('0' + day / 10);
+		buffer[count++] = (byte) ('0' + day % 10);
+	}
+
+	/**
+	 * Writes a decimal number as character content, formatted as {@link BigDecimal#toPlainString()} would
+	 * (1050 with scale 2 is written as 10.50), without creating the BigDecimal.
+	 */
+	void text(long unscaled, int scale) throws IOException{
+		closePending();
+		if (unscaled == Long.MIN_VALUE) {
+			text(BigDecimal.valueOf(unscaled, scale).toPlainString());
+			return;
+		}
+		if (buffer.length - count < 21 + scale) {
+			flushBuffer();
+		}
+		if (unscaled < 0) {
+			buffer[count++] = '-';
+			unscaled = -unscaled;
+		}
+		int digits = 1;
+		for (long v = unscaled / 10; v != 0; v /= 10) {
+			digits++;
+		}
+		int end = count + Math.max(digits - scale, 1) + (scale > 0 ? scale + 1 : 0);
+		int position = end;
+		for (int i = 0; i < scale; i++) {
+			buffer[--position] = (byte) ('0' + unscaled % 10);
+			unscaled /= 10;
+		}
+		if (scale > 0) {
+			buffer[--position] = '.';
+		}
+		do {
+			buffer[--position] = (byte) ('0' + unscaled % 10);
+			unscaled /= 10;
+		} while (unscaled != 0);
+		count = end;
+	}
+
+	void end(byte[] tag) throws IOException{
+		depth--;
+		if (pending) {
+			pending = false;
+			put((byte) '/');
+			put((byte) '>');
+			return;
+		}
+		if (hasChildren[depth]) {
+			newLine(depth);
+		}
+		put((byte) '<');
+		put((byte) '/');
+		raw(tag, 0, tag.length);
+		put((byte) '>');
+	}
+
+	/**
+	 * Writes a simple element with text content. Null values are omitted, the same way the marshaller does.
+	 */
+	void element(byte[] tag, String value) throws IOException{
+		if (value == null) {
+			return;
+		}
+		start(tag);
+		text(value);
+		end(tag);
+	}
+
+	void element(byte[] tag, BigDecimal value) throws IOException{
+		if (value == null) {
+			return;
+		}
+		element(tag, value.toPlainString());
+	}
+
+	void element(byte[] tag, XMLGregorianCalendar value) throws IOException{
+		if (value == null) {
+			return;
+		}
+		element(tag, value.toXMLFormat());
+	}
+
+	/**
+	 * Marks the current element as having child elements, after they were copied in with
+	 * {@link #write(byte[], int, int)} or {@link #copy(FileChannel, long, long)}.
+	 */
+	void markChildren() throws IOException{
+		closePending();
+		hasChildren[depth - 1] = true;
+	}
+
+	/**
+	 * Ends the document with the trailing line break written by the marshaller.
+	 */
+	void endDocument() throws IOException{
+		put((byte) '\n');
+	}
+
+	/**
+	 * Copies already encoded content. The current element must be marked with {@link #markChildren()} once
+	 * all content is copied.
+	 */
+	void write(byte[] bytes, int offset, int length) throws IOException{
+		closePending();
+		raw(bytes, offset, length);
+	}
+
+	/**
+	 * Copies already encoded content from a channel.
+	 */
+	void copy(FileChannel channel, long position, long length) throws IOException{
+		closePending();
+		while (length > 0) {
+			if (count == buffer.length) {
+				flushBuffer();
+			}
+			int chunk = (int) Math.min(length, buffer.length - count);
+			ByteBuffer target = ByteBuffer.wrap(buffer, count, chunk);
+			int read = channel.read(target, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of spooled content");
+			}
+			count += read;
+			position += read;
+			length -= read;
+		}
+	}
+
+	/**
+	 * @return number of bytes written so far, including buffered ones
+	 */
+	long size(){
+		return flushed + count;
+	}
+
+	void flush() throws IOException{
+		flushBuffer();
+		out.flush();
+	}
+
+	private void closePending() throws IOException{
+		if (pending) {
+			pending = false;
+			put((byte) '>');
+		}
+	}
+
+	private void newLine(int level) throws IOException{
+		int needed = 1 + level * INDENT;
+		if (buffer.length - count < needed) {
+			flushBuffer();
+		}
+		buffer[count++] = '\n';
+		for (int i = level * INDENT; i > 0; i--) {
+			buffer[count++] = ' ';
+		}
+	}
+
+	private void escape(String value, boolean attribute) throws IOException{
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				switch (c) {
+				case '&':
+					raw(AMP, 0, AMP.length);
+					break;
+				case '<':
+					raw(LT, 0, LT.length);
+					break;
+				case '>':
+					raw(GT, 0, GT.length);
+					break;
+				case '\r':
+					raw(CR, 0, CR.length);
+					break;
+				case '"':
+					if (attribute) {
+						raw(QUOT, 0, QUOT.length);
+					} else {
+						put((byte) c);
+					}
+					break;
+				default:
+					put((byte) c);
+				}
+			} else {
+				if (buffer.length - count < 4) {
+					flushBuffer();
+				}
+				if (c < 0x800) {
+					buffer[count++] = (byte) (0xC0 | (c >> 6));
+					buffer[count++] = (byte) (0x80 | (c & 0x3F));
+				} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, value.charAt(++i));
+					buffer[count++] = (byte) (0xF0 | (cp >> 18));
+					buffer[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					buffer[count++] = (byte) (0x80 | (cp & 0x3F));
+				} else if (Character.isSurrogate(c)) {
+					// Unpaired surrogate, not representable in UTF-8
+					buffer[count++] = '?';
+				} else {
+					buffer[count++] = (byte) (0xE0 | (c >> 12));
+					buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+					buffer[count++] = (byte) (0x80 | (c & 0x3F));
+				}
+			}
+		}
+	}
+
+	private void put(byte b) throws IOException{
+		if (count == buffer.length) {
+			flushBuffer();
+		}
+		buffer[count++] = b;
+	}
+
+	private void raw(byte[] bytes, int offset, int length) throws IOException{
+		if (length > buffer.length - count) {
+			flushBuffer();
+			if (length > buffer.length) {
+				out.write(bytes, offset, length);
+				flushed += length;
+				return;
+			}
+		}
+		System.arraycopy(bytes, offset, buffer, count, length);
+		count += length;
+	}
+
+	private void flushBuffer() throws IOException{
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			flushed += count;
+			count = 0;
+		}
+	}
+}
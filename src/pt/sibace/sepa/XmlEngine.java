@@ -0,0 +1,26 @@
+package pt.sibace.sepa;
+
+/**
+ * Serializer used to write a document built in memory.
+ *
+ */
+public enum XmlEngine {
+
+	/**
+	 * JAXB marshaller, through the shared {@link MarshallerEngine}. Writes every element of the schema.
+	 */
+	JAXB,
+
+	/**
+	 * Reflection free writer that encodes UTF-8 straight into a reusable buffer. Writes the elements set by the
+	 * builders, with the same output as {@link #JAXB}, several times faster on large documents.
+	 */
+	DIRECT,
+
+	/**
+	 * Same writer as {@link #DIRECT}, but each payment group is encoded as an independent fragment on the
+	 * common fork-join pool. Fragments are joined in order behind the group header, so the output is the same
+	 * as {@link #DIRECT}. Useful for documents with many large payment groups.
+	 */
+	PARALLEL
+}
@@ -0,0 +1,75 @@
+package pt.sibace.sepa;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Times the {@link AsciiScan} checks, SWAR against scalar, and {@link Iban#check(byte[], int, int)} in the mode
+ * chosen by <code>pt.sibace.sepa.scan</code>. Not a test: run its main method, once as is and once with
+ * <code>-Dpt.sibace.sepa.scan=scalar</code> to compare the IBAN check.
+ *
+ * Prints nanoseconds per call, the best of five rounds after a warm up.
+ *
+ */
+public final class AsciiScanBenchmark {
+
+	private static final int CALLS = 20000000;
+	private static final int ROUNDS = 5;
+
+	private static final byte[] DIGITS = "000201231234567890154000".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] IBAN = "PT50000201231234567890154".getBytes(StandardCharsets.US_ASCII);
+
+	// Results summed into a field so the JIT keeps every call
+	private static long sink;
+
+	public static void main(String[] args){
+		System.out.println("pt.sibace.sepa.scan: " + (AsciiScan.SWAR ? "swar" : "scalar"));
+		for (int warmUp = 0; warmUp < 2; warmUp++) {
+			for (int kind = 0; kind < 7; kind++) {
+				run(kind, CALLS / 10);
+			}
+		}
+		String[] names = {"isAscii, 24 bytes, swar", "isAscii, 24 bytes, scalar", "isDigits, 24 bytes, swar",
+			"isDigits, 24 bytes, scalar", "digits, swar", "digits, scalar", "Iban.check(byte[])"};
+		for (int kind = 0; kind < names.length; kind++) {
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < ROUNDS; round++) {
+				best = Math.min(best, run(kind, CALLS));
+			}
+			System.out.printf("%-28s %6.1f ns%n", names[kind], (double) best / CALLS);
+		}
+	}
+
+	/**
+	 * @return nanoseconds taken by the calls
+	 */
+	private static long run(int kind, int calls){
+		long start = System.nanoTime();
+		long sum = 0;
+		for (int i = 0; i < calls; i++) {
+			switch (kind) {
+			case 0:
+				sum += AsciiScan.isAscii(DIGITS, 0, DIGITS.length, true) ? 1 : 0;
+				break;
+			case 1:
+				sum += AsciiScan.isAscii(DIGITS, 0, DIGITS.length, false) ? 1 : 0;
+				break;
+			case 2:
+				sum += AsciiScan.isDigits(DIGITS, 0, DIGITS.length, true) ? 1 : 0;
+				break;
+			case 3:
+				sum += AsciiScan.isDigits(DIGITS, 0, DIGITS.length, false) ? 1 : 0;
+				break;
+			case 4:
+				sum += AsciiScan.digits(DIGITS, i & 15, true);
+				break;
+			case 5:
+				sum += AsciiScan.digits(DIGITS, i & 15, false);
+				break;
+			default:
+				sum += Iban.check(IBAN, 0, IBAN.length);
+			}
+		}
+		sink += sum;
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,82 @@
+package pt.sibace.sepa;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * {@link AsciiScan}: the SWAR checks give the same answers as the scalar checks (<code>pt.sibace.sepa.scan=scalar</code>)
+ * for every byte value in every position of a word, and in the tail bytes after the last word.
+ *
+ */
+public class AsciiScanTest {
+
+	@Test
+	public void everyByteInEveryPosition(){
+		byte[] bytes = new byte[24];
+		for (int offset = 0; offset < 8; offset++) {
+			for (int length = 0; length <= 16; length++) {
+				for (int position = 0; position < length; position++) {
+					for (int b = 0; b < 256; b++) {
+						Arrays.fill(bytes, (byte) '5');
+						bytes[offset + position] = (byte) b;
+						assertSame(bytes, offset, length);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void rangeLimits(){
+		byte[] bytes = "00000000".getBytes();
+		for (byte b : new byte[] {'/', '0', '9', ':', (byte) 0x80, (byte) 0xB0, (byte) 0xFF, 0, 0x7F}) {
+			for (int position = 0; position < 8; position++) {
+				Arrays.fill(bytes, (byte) '0');
+				bytes[position] = b;
+				boolean digit = b >= '0' && b <= '9';
+				assertEquals(digit, AsciiScan.isDigits(bytes, 0, 8, true));
+				assertEquals(b >= 0, AsciiScan.isAscii(bytes, 0, 8, true));
+			}
+		}
+	}
+
+	@Test
+	public void randomBytes(){
+		Random random = new Random(21);
+		byte[] bytes = new byte[64];
+		for (int n = 0; n < 200000; n++) {
+			for (int i = 0; i < bytes.length; i++) {
+				// Mostly digits, so that whole words of digits are common
+				int kind = random.nextInt(100);
+				bytes[i] = (byte) (kind < 97 ? '0' + random.nextInt(10) : kind < 99 ? random.nextInt(128) : random.nextInt(256));
+			}
+			int offset = random.nextInt(16);
+			assertSame(bytes, offset, random.nextInt(bytes.length - offset + 1));
+		}
+	}
+
+	@Test
+	public void eightDigitValues(){
+		Random random = new Random(8);
+		byte[] bytes = new byte[20];
+		for (int n = 0; n < 100000; n++) {
+			int value = n < 10 ? new int[] {0, 1, 9, 10, 99999999, 10000000, 12345678, 87654321, 9999999, 90000009}[n]
+					: random.nextInt(100000000);
+			int offset = random.nextInt(13);
+			byte[] digits = String.format("%08d", value).getBytes();
+			System.arraycopy(digits, 0, bytes, offset, 8);
+			assertEquals(value, AsciiScan.digits(bytes, offset, false));
+			assertEquals(value, AsciiScan.digits(bytes, offset, true));
+		}
+	}
+
+	private static void assertSame(byte[] bytes, int offset, int length){
+		String at = "offset " + offset + ", length " + length + ": " + Arrays.toString(Arrays.copyOfRange(bytes, offset, offset + length));
+		assertEquals(at, AsciiScan.isAscii(bytes, offset, length, false), AsciiScan.isAscii(bytes, offset, length, true));
+		assertEquals(at, AsciiScan.isDigits(bytes, offset, length, false), AsciiScan.isDigits(bytes, offset, length, true));
+	}
+}
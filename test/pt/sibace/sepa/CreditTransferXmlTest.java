@@ -0,0 +1,84 @@
+package pt.sibace.sepa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * The direct writers of credit transfers against the JAXB marshaller: same bytes for every storage.
+ *
+ */
+public class CreditTransferXmlTest {
+
+	private static final String DEBTOR_IBAN = "PT50000201231234567890154";
+	private static final Date REQUESTED = new Date(1425211200000L);
+
+	@Test
+	public void jaxbStorage(){
+		assertSameBytes(TransactionStorage.JAXB);
+	}
+
+	@Test
+	public void compactStorage(){
+		assertSameBytes(TransactionStorage.COMPACT);
+	}
+
+	@Test
+	public void offHeapStorage(){
+		assertSameBytes(TransactionStorage.OFF_HEAP);
+	}
+
+	@Test
+	public void nonAsciiNamesAreWrittenAsUtf8() throws Exception{
+		CreditTransfer ct = document(TransactionStorage.JAXB, new ArrayList<CreditTransferPaymentGroup>());
+		String xml = new String(write(ct, XmlEngine.DIRECT), "UTF-8");
+		assertTrue(xml, xml.contains("<Nm>Concei\u00E7\u00E3o &amp; Irm\u00E3os</Nm>"));
+		assertTrue(xml, xml.contains("<Nm>M\u00FCller &lt;Stra\u00DFe&gt; \"S\u00F8n\"</Nm>"));
+	}
+
+	private static void assertSameBytes(TransactionStorage storage){
+		List<CreditTransferPaymentGroup> groups = new ArrayList<CreditTransferPaymentGroup>();
+		CreditTransfer ct = document(storage, groups);
+		try {
+			byte[] direct = write(ct, XmlEngine.DIRECT);
+			assertArrayEquals(storage + " DIRECT", write(ct, XmlEngine.JAXB), direct);
+			assertArrayEquals(storage + " PARALLEL", direct, write(ct, XmlEngine.PARALLEL));
+		} catch (Exception e) {
+			throw new AssertionError(e);
+		} finally {
+			for (CreditTransferPaymentGroup pg : groups) {
+				pg.close();
+			}
+		}
+	}
+
+	private static CreditTransfer document(TransactionStorage storage, List<CreditTransferPaymentGroup> groups){
+		CreditTransfer ct = new CreditTransfer("MSG-0001", "Gon\u00E7alves & Filhos, Lda");
+		for (int g = 0; g < 2; g++) {
+			CreditTransferPaymentGroup pg = new CreditTransferPaymentGroup("PG-" + g, REQUESTED, "D\u00E9bito A\u00E7\u00E3o",
+																		   DEBTOR_IBAN, "BGALPTPL", storage);
+			groups.add(pg);
+			pg.addTransaction("E-" + g + "-1", new BigDecimal("1.5"), "Concei\u00E7\u00E3o & Irm\u00E3os", "PT50000201231234567890154", "BESCPTPL");
+			pg.addTransaction("E-" + g + "-2", new BigDecimal("1234567.89"), "M\u00FCller <Stra\u00DFe> \"S\u00F8n\"", "DE89370400440532013000", "COBADEFFXXX");
+			pg.addTransaction("E-" + g + "-3", 7L, "O'Neill", "PT50000201231234567890154", "BESCPTPL");
+			for (int i = 0; i < 50; i++) {
+				pg.addTransaction("E-" + g + "-T" + i, 100L * i + 1, "Nome " + (i % 7), DEBTOR_IBAN, "BGALPTPL");
+			}
+			ct.addPaymentGroup(pg);
+		}
+		return ct;
+	}
+
+	private static byte[] write(CreditTransfer ct, XmlEngine engine) throws Exception{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ct.write(out, engine);
+		return out.toByteArray();
+	}
+}
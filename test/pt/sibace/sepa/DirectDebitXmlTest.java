@@ -0,0 +1,96 @@
+package pt.sibace.sepa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * The direct writers of direct debits against the JAXB marshaller: same bytes for every storage, amendments
+ * included.
+ *
+ */
+public class DirectDebitXmlTest {
+
+	private static final String CREDITOR_IBAN = "PT50000201231234567890154";
+	private static final Date REQUESTED = new Date(1425211200000L);
+	private static final Date SIGNED = new Date(1262347200000L);
+
+	@Test
+	public void jaxbStorage(){
+		assertSameBytes(TransactionStorage.JAXB);
+	}
+
+	@Test
+	public void compactStorage(){
+		assertSameBytes(TransactionStorage.COMPACT);
+	}
+
+	@Test
+	public void offHeapStorage(){
+		assertSameBytes(TransactionStorage.OFF_HEAP);
+	}
+
+	@Test
+	public void amendmentsAreWritten() throws Exception{
+		DirectDebit dd = document(TransactionStorage.JAXB, new ArrayList<DirectDebitPaymentGroup>());
+		String xml = new String(write(dd, XmlEngine.DIRECT), "UTF-8");
+		assertTrue(xml, xml.contains("<AmdmntInd>true</AmdmntInd>"));
+		assertTrue(xml, xml.contains("<OrgnlDbtrAgt>"));
+		assertTrue(xml, xml.contains("<IBAN>DE89370400440532013000</IBAN>"));
+		assertTrue(xml, xml.contains("<Nm>Jo\u00E3o &amp; Concei\u00E7\u00E3o</Nm>"));
+	}
+
+	private static void assertSameBytes(TransactionStorage storage){
+		List<DirectDebitPaymentGroup> groups = new ArrayList<DirectDebitPaymentGroup>();
+		DirectDebit dd = document(storage, groups);
+		try {
+			byte[] direct = write(dd, XmlEngine.DIRECT);
+			assertArrayEquals(storage + " DIRECT", write(dd, XmlEngine.JAXB), direct);
+			assertArrayEquals(storage + " PARALLEL", direct, write(dd, XmlEngine.PARALLEL));
+		} catch (Exception e) {
+			throw new AssertionError(e);
+		} finally {
+			for (DirectDebitPaymentGroup pg : groups) {
+				pg.close();
+			}
+		}
+	}
+
+	private static DirectDebit document(TransactionStorage storage, List<DirectDebitPaymentGroup> groups){
+		DirectDebit dd = new DirectDebit("MSG-0001", "Gon\u00E7alves & Filhos, Lda", "PT00ZZZ123456");
+		String[] types = {"FRST", "RCUR"};
+		for (int g = 0; g < types.length; g++) {
+			DirectDebitPaymentGroup pg = new DirectDebitPaymentGroup("PG-" + g, REQUESTED, "Cr\u00E9dito <A\u00E7\u00E3o>",
+																	 "PT00ZZZ123456", CREDITOR_IBAN, "BGALPTPL", types[g], storage);
+			groups.add(pg);
+			// Plain, debtor bank changed, debtor account changed (with the original IBAN), both
+			pg.addTransaction("E-" + g + "-1", new BigDecimal("1.5"), "M-1", SIGNED, "Jo\u00E3o & Concei\u00E7\u00E3o",
+							  "PT50000201231234567890154", "BESCPTPL", false, false, null);
+			pg.addTransaction("E-" + g + "-2", new BigDecimal("1234567.89"), "M-2", SIGNED, "M\u00FCller \"Stra\u00DFe\"",
+							  "PT50000201231234567890154", "BESCPTPL", true, false, null);
+			pg.addTransaction("E-" + g + "-3", 7L, "M-3", REQUESTED, "O'Neill",
+							  "PT50000201231234567890154", "BESCPTPL", false, true, "DE89370400440532013000");
+			pg.addTransaction("E-" + g + "-4", 250L, "M-4", REQUESTED, "S\u00F8ren",
+							  "PT50000201231234567890154", "BGALPTPL", true, true, "PT50000201231234567890154");
+			for (int i = 0; i < 50; i++) {
+				pg.addTransaction("E-" + g + "-T" + i, 100L * i + 1, "M-T" + i, SIGNED, "Nome " + (i % 7),
+								  CREDITOR_IBAN, "BGALPTPL", false, false, null);
+			}
+			dd.addPaymentGroup(pg);
+		}
+		return dd;
+	}
+
+	private static byte[] write(DirectDebit dd, XmlEngine engine) throws Exception{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		dd.write(out, engine);
+		return out.toByteArray();
+	}
+}
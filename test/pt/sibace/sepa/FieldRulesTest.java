@@ -0,0 +1,116 @@
+package pt.sibace.sepa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+import org.junit.Test;
+
+/**
+ * {@link FieldRules} lengths, characters and formats, and the violations recorded by the payment groups.
+ *
+ */
+public class FieldRulesTest {
+
+	private static final String IBAN = "PT50000201231234567890154";
+
+	@Test
+	public void validValues(){
+		assertEquals(FieldRules.VALID, FieldRules.check(FieldRules.Field.END_TO_END_ID, "E2E-2015/03-0001"));
+		assertEquals(FieldRules.VALID, FieldRules.check(FieldRules.Field.NAME, "O'Neill (Lisboa), Lda. + Filhos"));
+		assertEquals(FieldRules.VALID, FieldRules.check(FieldRules.Field.IBAN, IBAN));
+		assertEquals(FieldRules.VALID, FieldRules.check(FieldRules.Field.BIC, "BESCPTPL"));
+		assertEquals(FieldRules.VALID, FieldRules.check(FieldRules.Field.BIC, "COBADEFFXXX"));
+	}
+
+	@Test
+	public void lengthLimitsAreInclusive(){
+		assertEquals(FieldRules.VALID, FieldRules.check(FieldRules.Field.END_TO_END_ID, repeat('A', 35)));
+		assertProblem(FieldRules.TOO_LONG, FieldRules.Field.END_TO_END_ID, repeat('A', 36));
+		assertEquals(FieldRules.VALID, FieldRules.check(FieldRules.Field.NAME, repeat('a', 70)));
+		assertProblem(FieldRules.TOO_LONG, FieldRules.Field.NAME, repeat('a', 71));
+		assertEquals(70, FieldRules.maxLength(FieldRules.Field.NAME));
+	}
+
+	@Test
+	public void missingValues(){
+		assertProblem(FieldRules.MISSING, FieldRules.Field.MANDATE_ID, null);
+		assertProblem(FieldRules.MISSING, FieldRules.Field.NAME, "");
+	}
+
+	@Test
+	public void charactersOutsideTheSepaSet(){
+		String allowed = "abcxyzABCXYZ0189/-?:().,'+ ";
+		for (char c = 0; c < 256; c++) {
+			int expected = allowed.indexOf(c) >= 0 || Character.isLetterOrDigit(c) && c < 128 ? FieldRules.VALID
+					: FieldRules.code(FieldRules.Field.NAME, FieldRules.BAD_CHARACTER);
+			assertEquals("char " + (int) c, expected, FieldRules.check(FieldRules.Field.NAME, "A" + c + "B"));
+		}
+		assertProblem(FieldRules.BAD_CHARACTER, FieldRules.Field.IBAN, "PT50 0002 0123");
+		assertProblem(FieldRules.BAD_CHARACTER, FieldRules.Field.END_TO_END_ID, "E&1");
+	}
+
+	@Test
+	public void identifierSlashes(){
+		assertProblem(FieldRules.BAD_FORMAT, FieldRules.Field.END_TO_END_ID, "/E1");
+		assertProblem(FieldRules.BAD_FORMAT, FieldRules.Field.PAYMENT_INFORMATION_ID, "PG1/");
+		assertProblem(FieldRules.BAD_FORMAT, FieldRules.Field.MANDATE_ID, "M//1");
+		assertEquals(FieldRules.VALID, FieldRules.check(FieldRules.Field.NAME, "/a//b/"));
+	}
+
+	@Test
+	public void ibanAndBicFormats(){
+		assertProblem(FieldRules.BAD_FORMAT, FieldRules.Field.IBAN, "pt50000201231234567890154");
+		assertProblem(FieldRules.BAD_FORMAT, FieldRules.Field.IBAN, "PTX0000201231234567890154");
+		assertProblem(FieldRules.BAD_FORMAT, FieldRules.Field.BIC, "BESCPTP");
+		assertProblem(FieldRules.BAD_FORMAT, FieldRules.Field.BIC, "BESC1TPL");
+		assertProblem(FieldRules.BAD_FORMAT, FieldRules.Field.BIC, "BESCPT1L");
+		assertProblem(FieldRules.BAD_FORMAT, FieldRules.Field.BIC, "BESCPTPO");
+		assertProblem(FieldRules.BAD_FORMAT, FieldRules.Field.BIC, "besCPTPL");
+	}
+
+	@Test
+	public void codesCarryFieldAndProblem(){
+		int code = FieldRules.check(FieldRules.Field.MANDATE_ID, repeat('M', 40));
+		assertEquals(FieldRules.Field.MANDATE_ID, FieldRules.field(code));
+		assertEquals(FieldRules.TOO_LONG, FieldRules.problem(code));
+		assertEquals("MANDATE_ID too long", FieldRules.message(code));
+		assertEquals("valid", FieldRules.message(FieldRules.VALID));
+	}
+
+	@Test
+	public void groupsRecordViolationsByTransaction(){
+		CreditTransferPaymentGroup pg = new CreditTransferPaymentGroup("PG/", new Date(0), "Debtor", IBAN, "BESCPTPL");
+		pg.addTransaction("E1", BigDecimal.ONE, "Creditor", IBAN, "BESCPTPL");
+		pg.addTransaction("E2", BigDecimal.ONE, "Credit\u00F3r", IBAN, "BESC");
+		RuleViolations violations = pg.getRuleViolations();
+		assertEquals(3, violations.size());
+		assertEquals(RuleViolations.PAYMENT_GROUP, violations.getTransaction(0));
+		assertEquals(FieldRules.code(FieldRules.Field.PAYMENT_INFORMATION_ID, FieldRules.BAD_FORMAT), violations.getCode(0));
+		assertEquals(1, violations.getTransaction(1));
+		assertEquals(FieldRules.code(FieldRules.Field.NAME, FieldRules.BAD_CHARACTER), violations.getCode(1));
+		assertEquals(FieldRules.code(FieldRules.Field.BIC, FieldRules.BAD_FORMAT), violations.getCode(2));
+	}
+
+	@Test
+	public void fieldChecksCanBeTurnedOff(){
+		CreditTransferPaymentGroup pg = new CreditTransferPaymentGroup("PG", new Date(0), "Debtor", IBAN, "BESCPTPL");
+		pg.setFieldChecks(false);
+		pg.addTransaction("E&1", BigDecimal.ONE, "Credit\u00F3r", IBAN, "BESC");
+		assertTrue(pg.getRuleViolations().isEmpty());
+	}
+
+	private static void assertProblem(int problem, FieldRules.Field field, String value){
+		assertEquals(field + " " + value, FieldRules.code(field, problem), FieldRules.check(field, value));
+	}
+
+	private static String repeat(char c, int count){
+		StringBuilder text = new StringBuilder(count);
+		for (int i = 0; i < count; i++) {
+			text.append(c);
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,111 @@
+package pt.sibace.sepa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import iso.std.iso._20022.tech.xsd.pain_001_001_03.CreditTransferTransactionInformation10;
+import iso.std.iso._20022.tech.xsd.pain_008_001_02.DirectDebitTransactionInformation9;
+
+/**
+ * Subtrees shared by {@link FlyweightCache} stay within their payment group.
+ *
+ */
+public class FlyweightCacheTest {
+
+	private static final String IBAN = "PT50000201231234567890154";
+
+	@Test
+	public void sharedWithinTheGroup(){
+		CreditTransferPaymentGroup group = group(TransactionStorage.JAXB);
+		add(group, 2);
+		List<CreditTransferTransactionInformation10> transactions = group.getInformation().getCdtTrfTxInf();
+		assertSame(transactions.get(0).getCdtr(), transactions.get(1).getCdtr());
+		assertSame(transactions.get(0).getCdtrAcct(), transactions.get(1).getCdtrAcct());
+		assertSame(transactions.get(0).getCdtrAgt(), transactions.get(1).getCdtrAgt());
+		// The debtor agent is created with the group, both transactions share it
+		assertEquals(2, group.getFlyweightReport().getSharedAgents());
+	}
+
+	@Test
+	public void neverSharedBetweenGroups(){
+		CreditTransferPaymentGroup first = group(TransactionStorage.JAXB);
+		CreditTransferPaymentGroup second = group(TransactionStorage.COMPACT);
+		add(first, 1);
+		add(second, 1);
+		CreditTransferTransactionInformation10 a = first.getInformation().getCdtTrfTxInf().get(0);
+		CreditTransferTransactionInformation10 b = second.getInformation().getCdtTrfTxInf().get(0);
+		assertNotSame(a.getCdtr(), b.getCdtr());
+		assertNotSame(a.getCdtrAcct(), b.getCdtrAcct());
+		assertNotSame(first.getInformation().getDbtrAgt(), second.getInformation().getDbtrAgt());
+
+		// A change made through one group does not show in the other
+		a.getCdtr().setNm("Changed");
+		assertEquals("Creditor", b.getCdtr().getNm());
+	}
+
+	@Test
+	public void sharingTurnedOff(){
+		CreditTransferPaymentGroup group = group(TransactionStorage.JAXB);
+		group.setSharedSubtrees(false);
+		add(group, 2);
+		List<CreditTransferTransactionInformation10> transactions = group.getInformation().getCdtTrfTxInf();
+		assertNotSame(transactions.get(0).getCdtr(), transactions.get(1).getCdtr());
+		assertNotSame(transactions.get(0).getCdtrAcct(), transactions.get(1).getCdtrAcct());
+		assertEquals(0, group.getFlyweightReport().getObjectsSaved());
+	}
+
+	@Test
+	public void mandateDatesSharedWithinTheGroup(){
+		Date signed = new Date(1425168000000L);
+		for (TransactionStorage storage : TransactionStorage.values()) {
+			DirectDebitPaymentGroup group = new DirectDebitPaymentGroup("PG1", new Date(), "Creditor", "PT00ZZZ000000000000",
+					IBAN, "BESCPTPL", "RCUR", storage);
+			group.addTransactionWithoutAmendment("E2E-1", 100, "M1", signed, "Debtor", IBAN, "BESCPTPL");
+			group.addTransactionWithoutAmendment("E2E-2", 100, "M2", signed, "Debtor", IBAN, "BESCPTPL");
+			List<DirectDebitTransactionInformation9> transactions = group.getInformation().getDrctDbtTxInf();
+			assertSame(storage.name(), date(transactions.get(0)), date(transactions.get(1)));
+			// A copy, never the instance cached by SepaUtils
+			assertNotSame(storage.name(), SepaUtils.sharedISODate(signed), date(transactions.get(0)));
+			assertEquals(storage.name(), 1, group.getFlyweightReport().getSharedDates());
+			group.close();
+		}
+	}
+
+	@Test
+	public void leastRecentlyUsedEvicted(){
+		FlyweightCache<String, Object> cache = new FlyweightCache<String, Object>(FlyweightReport.Subtree.PARTY, 2) {
+			Object create(String key){
+				return new Object();
+			}
+		};
+		FlyweightReport report = new FlyweightReport();
+		Object a = cache.get("a", report);
+		cache.get("b", report);
+		assertSame(a, cache.get("a", report));
+		cache.get("c", report);
+		assertSame(a, cache.get("a", report));
+		cache.get("b", report);
+		assertEquals(2, report.getSharedParties());
+	}
+
+	private static Object date(DirectDebitTransactionInformation9 transaction){
+		return transaction.getDrctDbtTx().getMndtRltdInf().getDtOfSgntr();
+	}
+
+	private static CreditTransferPaymentGroup group(TransactionStorage storage){
+		return new CreditTransferPaymentGroup("PG1", new Date(), "Debtor", IBAN, "BESCPTPL", storage);
+	}
+
+	private static void add(CreditTransferPaymentGroup group, int count){
+		for (int i = 0; i < count; i++) {
+			group.addTransaction("E2E-" + i, new BigDecimal("1.00"), "Creditor", IBAN, "BESCPTPL");
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package pt.sibace.sepa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * {@link Iban} checks: check digits against a BigInteger mod 97, formats, and the byte and parallel forms.
+ *
+ */
+public class IbanTest {
+
+	private static final String[] VALID = {
+		"PT50000201231234567890154", "DE89370400440532013000", "GB29NWBK60161331926819", "FR1420041010050500013M02606",
+		"NO9386011117947", "BE68539007547034", "IT60X0542811101000000123456", "NL91ABNA0417164300",
+		"ES9121000418450200051332", "AT611904300234573201", "MT84MALT011000012345MTLCAST001S",
+		"AL47212110090000000235698741", "MD24AG000225100013104168", "ME25505000012345678951", "MK07250120000058984"
+	};
+
+	@Test
+	public void registryExamplesAreValid(){
+		for (String iban : VALID) {
+			assertEquals(iban, Iban.VALID, Iban.check(iban));
+			assertEquals(iban, Iban.VALID, checkBytes(iban));
+		}
+	}
+
+	@Test
+	public void onlyTheRightCheckDigitsAreValid(){
+		Random random = new Random(20);
+		for (int n = 0; n < 200; n++) {
+			StringBuilder bban = new StringBuilder();
+			for (int i = 0; i < 21; i++) {
+				bban.append((char) ('0' + random.nextInt(10)));
+			}
+			int expected = checkDigits("PT", bban.toString());
+			for (int digits = 0; digits < 100; digits++) {
+				String iban = "PT" + (digits < 10 ? "0" : "") + digits + bban;
+				int result = digits == expected ? Iban.VALID : Iban.WRONG_CHECKSUM;
+				assertEquals(iban, result, Iban.check(iban));
+				assertEquals(iban, result, checkBytes(iban));
+			}
+		}
+	}
+
+	@Test
+	public void lettersEnterTheChecksumAsTwoDigits(){
+		Random random = new Random(21);
+		String alphabet = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+		for (int n = 0; n < 1000; n++) {
+			// France: 5n 5n 11c 2n
+			StringBuilder bban = new StringBuilder();
+			for (int i = 0; i < 23; i++) {
+				bban.append(i >= 10 && i < 21 ? alphabet.charAt(random.nextInt(36)) : (char) ('0' + random.nextInt(10)));
+			}
+			int digits = checkDigits("FR", bban.toString());
+			String iban = "FR" + (digits < 10 ? "0" : "") + digits + bban;
+			assertEquals(iban, Iban.VALID, Iban.check(iban));
+			assertEquals(iban, Iban.VALID, checkBytes(iban));
+		}
+	}
+
+	@Test
+	public void adjacentDigitsSwappedAreFound(){
+		String iban = "PT50000201231234567890154";
+		for (int i = 4; i < iban.length() - 1; i++) {
+			if (iban.charAt(i) != iban.charAt(i + 1)) {
+				String swapped = iban.substring(0, i) + iban.charAt(i + 1) + iban.charAt(i) + iban.substring(i + 2);
+				assertEquals(swapped, Iban.WRONG_CHECKSUM, Iban.check(swapped));
+				assertEquals(swapped, Iban.WRONG_CHECKSUM, checkBytes(swapped));
+			}
+		}
+	}
+
+	@Test
+	public void problemsAreTold(){
+		assertEquals(Iban.MISSING, Iban.check(null));
+		assertEquals(Iban.MISSING, Iban.check(""));
+		assertEquals(Iban.WRONG_LENGTH, Iban.check("PT5"));
+		assertEquals(Iban.WRONG_LENGTH, Iban.check("PT5000020123123456789015"));
+		assertEquals(Iban.UNKNOWN_COUNTRY, Iban.check("US50000201231234567890154"));
+		assertEquals(Iban.UNKNOWN_COUNTRY, Iban.check("pt50000201231234567890154"));
+		assertEquals(Iban.WRONG_FORMAT, Iban.check("PTX0000201231234567890154"));
+		assertEquals(Iban.WRONG_FORMAT, Iban.check("PT5000020123123456789015A"));
+		assertEquals(Iban.WRONG_FORMAT, Iban.check("GB29NWB160161331926819"));
+		assertEquals("Wrong check digits", Iban.message(Iban.WRONG_CHECKSUM));
+	}
+
+	@Test
+	public void bytesAndCharactersAgree(){
+		Random random = new Random(22);
+		String alphabet = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ a";
+		for (int n = 0; n < 100000; n++) {
+			char[] iban = VALID[random.nextInt(VALID.length)].toCharArray();
+			for (int changes = random.nextInt(3); changes > 0; changes--) {
+				iban[random.nextInt(iban.length)] = alphabet.charAt(random.nextInt(alphabet.length()));
+			}
+			String value = new String(iban);
+			assertEquals(value, Iban.check(value), checkBytes(value));
+		}
+	}
+
+	@Test
+	public void parallelCheckMatchesOneByOne(){
+		String[] ibans = new String[3 * Iban.CHUNK + 5];
+		for (int i = 0; i < ibans.length; i++) {
+			ibans[i] = i % 7 == 0 ? null : i % 3 == 0 ? "PT50000201231234567890155" : VALID[i % VALID.length];
+		}
+		byte[] results = Iban.check(ibans, ForkJoinPool.commonPool());
+		for (int i = 0; i < ibans.length; i++) {
+			assertEquals(ibans[i], Iban.check(ibans[i]), results[i]);
+		}
+		assertTrue(results[7] == Iban.MISSING && results[3] == Iban.WRONG_CHECKSUM);
+	}
+
+	private static int checkBytes(String iban){
+		byte[] bytes = ("xx" + iban).getBytes(StandardCharsets.US_ASCII);
+		return Iban.check(bytes, 2, iban.length());
+	}
+
+	/**
+	 * @return check digits of a BBAN, computed over the whole number: 98 - (BBAN, country, 00) mod 97
+	 */
+	private static int checkDigits(String country, String bban){
+		StringBuilder number = new StringBuilder();
+		for (char c : (bban + country + "00").toCharArray()) {
+			number.append(Character.digit(c, 36));
+		}
+		return 98 - new BigInteger(number.toString()).mod(BigInteger.valueOf(97)).intValue();
+	}
+}
@@ -0,0 +1,114 @@
+package pt.sibace.sepa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Date;
+
+import org.junit.Test;
+
+/**
+ * {@link IdBloomFilter} sizing, false positive rate, and saving.
+ *
+ */
+public class IdBloomFilterTest {
+
+	@Test
+	public void sizedForTheRateAsked(){
+		// m = -n ln p / (ln 2)^2, k = m / n ln 2: 14.4 bits and 10 hashes per id for 1 in 1000
+		IdBloomFilter filter = new IdBloomFilter(1000000, 0.001);
+		assertEquals(14.4, filter.getBitCount() / 1000000.0, 0.05);
+		assertEquals(10, filter.getHashCount());
+		IdBloomFilter millionth = new IdBloomFilter(1000000, 0.000001);
+		assertEquals(28.8, millionth.getBitCount() / 1000000.0, 0.05);
+		assertEquals(20, millionth.getHashCount());
+		assertEquals(0, new IdBloomFilter(1, 0.5).getBitCount() % 64);
+	}
+
+	@Test
+	public void idsPutAreNeverMissed(){
+		IdBloomFilter filter = new IdBloomFilter(100000, 0.01);
+		assertFalse(filter.put("E2E-0"));
+		assertTrue(filter.put("E2E-0"));
+		for (int i = 1; i < 100000; i++) {
+			filter.put("E2E-" + i);
+		}
+		for (int i = 0; i < 100000; i++) {
+			assertTrue(filter.mightContain("E2E-" + i));
+			assertTrue(filter.mightContainHash(IdHashSet.hash("E2E-" + i)));
+		}
+	}
+
+	@Test
+	public void falsePositivesStayNearTheRate(){
+		IdBloomFilter filter = new IdBloomFilter(200000, 0.001);
+		for (int i = 0; i < 200000; i++) {
+			filter.put("E2E-" + i);
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 1000000; i++) {
+			if (filter.mightContain("OTHER-" + i)) {
+				falsePositives++;
+			}
+		}
+		// 1000 expected
+		assertTrue(Integer.toString(falsePositives), falsePositives > 700 && falsePositives < 1400);
+	}
+
+	@Test
+	public void readBackAsWritten() throws IOException{
+		IdBloomFilter filter = new IdBloomFilter(1000, 0.001);
+		for (int i = 0; i < 1000; i++) {
+			filter.put("E2E-" + i);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		filter.writeTo(out);
+		IdBloomFilter read = IdBloomFilter.readFrom(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(filter.getBitCount(), read.getBitCount());
+		assertEquals(filter.getHashCount(), read.getHashCount());
+		for (int i = 0; i < 2000; i++) {
+			assertEquals(filter.mightContain("E2E-" + i), read.mightContain("E2E-" + i));
+		}
+	}
+
+	@Test
+	public void documentIdsArePutOnlyWhenAsked() throws Exception{
+		String iban = "PT50000201231234567890154";
+		IdBloomFilter usedIds = new IdBloomFilter(1000, 0.0001);
+		CreditTransfer ct = new CreditTransfer("MSG", "Company");
+		CreditTransferPaymentGroup first = new CreditTransferPaymentGroup("PG1", new Date(0), "Debtor", iban, "BESCPTPL");
+		CreditTransferPaymentGroup second = new CreditTransferPaymentGroup("PG2", new Date(0), "Debtor", iban, "BESCPTPL");
+		first.setUsedIds(usedIds);
+		second.setUsedIds(usedIds);
+		first.addTransaction("E1", BigDecimal.ONE, "Creditor", iban, "BESCPTPL");
+		second.addTransaction("E1", BigDecimal.ONE, "Creditor", iban, "BESCPTPL");
+		ct.addPaymentGroup(first);
+		ct.addPaymentGroup(second);
+		// Repeated in the document, not seen before
+		assertTrue(first.getRuleViolations().isEmpty());
+		assertEquals(1, second.getRuleViolations().size());
+		assertEquals(FieldRules.code(FieldRules.Field.END_TO_END_ID, FieldRules.DUPLICATE), second.getRuleViolations().getCode(0));
+		assertFalse(usedIds.mightContain("E1"));
+
+		ct.putIds(usedIds);
+		CreditTransferPaymentGroup next = new CreditTransferPaymentGroup("PG3", new Date(0), "Debtor", iban, "BESCPTPL");
+		next.setUsedIds(usedIds);
+		next.addTransaction("E1", BigDecimal.ONE, "Creditor", iban, "BESCPTPL");
+		assertEquals(FieldRules.code(FieldRules.Field.END_TO_END_ID, FieldRules.SEEN_BEFORE), next.getRuleViolations().getCode(0));
+	}
+
+	@Test(expected = IOException.class)
+	public void otherDataIsRejected() throws IOException{
+		IdBloomFilter.readFrom(new ByteArrayInputStream(new byte[64]));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rateMustBeAFraction(){
+		new IdBloomFilter(1000, 1);
+	}
+}
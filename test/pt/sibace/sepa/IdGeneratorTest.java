@@ -0,0 +1,98 @@
+package pt.sibace.sepa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+/**
+ * Ids of {@link IdGenerator}: shape, order and uniqueness across threads and nodes.
+ *
+ */
+public class IdGeneratorTest {
+
+	@Test
+	public void idIsPrefixValueAndNode(){
+		String id = new IdGenerator(IdGenerator.MAX_NODE).next("E2E-");
+		assertEquals(4 + 15, id.length());
+		assertTrue(id, id.startsWith("E2E-"));
+		assertTrue(id, id.endsWith("ZZ"));
+		for (int i = 4; i < id.length(); i++) {
+			char c = id.charAt(i);
+			assertTrue(id, c >= '0' && c <= '9' || c >= 'A' && c <= 'Z');
+		}
+	}
+
+	@Test
+	public void longestPrefixFitsAnEndToEndId(){
+		StringBuilder prefix = new StringBuilder();
+		while (prefix.length() < IdGenerator.MAX_PREFIX_LENGTH) {
+			prefix.append('P');
+		}
+		assertEquals(35, new IdGenerator(0).next(prefix.toString()).length());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void prefixTooLong(){
+		new IdGenerator(0).next("123456789012345678901");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nodeOutOfRange(){
+		new IdGenerator(IdGenerator.MAX_NODE + 1);
+	}
+
+	@Test
+	public void idsIncreaseInStringOrder(){
+		IdGenerator ids = new IdGenerator(7);
+		String previous = ids.next("X");
+		// More than the million ids a millisecond holds, so the value moves on to the next one
+		for (int i = 0; i < 1500000; i++) {
+			String id = ids.next("X");
+			assertTrue(previous + " " + id, id.compareTo(previous) > 0);
+			previous = id;
+		}
+	}
+
+	@Test
+	public void threadsAndNodesNeverCollide() throws InterruptedException{
+		final Set<String> seen = ConcurrentHashMap.newKeySet();
+		final IdGenerator shared = new IdGenerator(1);
+		final IdGenerator other = new IdGenerator(2);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final IdGenerator ids = t % 2 == 0 ? shared : other;
+			threads[t] = new Thread() {
+				@Override
+				public void run(){
+					for (int i = 0; i < 50000; i++) {
+						seen.add(ids.next());
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(threads.length * 50000, seen.size());
+	}
+
+	@Test
+	public void base36KeepsLeadingZeros(){
+		char[] digits = new char[5];
+		IdGenerator.base36(36 * 36 + 35, digits, 0, 5);
+		assertEquals("0010Z", new String(digits));
+		Set<String> values = new HashSet<String>();
+		for (long value = 0; value < 36 * 36; value++) {
+			char[] two = new char[2];
+			IdGenerator.base36(value, two, 0, 2);
+			values.add(new String(two));
+		}
+		assertEquals(36 * 36, values.size());
+	}
+}
@@ -0,0 +1,84 @@
+package pt.sibace.sepa;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * {@link IdHashSet} against a HashMap: probing around collisions and the zero hash, growing, and merging.
+ *
+ */
+public class IdHashSetTest {
+
+	@Test
+	public void sameAnswersAsAHashMapWhileGrowing(){
+		IdHashSet set = new IdHashSet();
+		Map<String, Integer> first = new HashMap<String, Integer>();
+		Random random = new Random(25);
+		for (int tx = 0; tx < 200000; tx++) {
+			String id = "E2E-" + random.nextInt(150000);
+			Integer previous = first.get(id);
+			if (previous == null) {
+				first.put(id, tx);
+			}
+			assertEquals(id, previous == null ? -1 : previous.intValue(), set.add(IdHashSet.hash(id), tx));
+		}
+		assertEquals(first.size(), set.size());
+	}
+
+	@Test
+	public void collidingSlotsAreProbed(){
+		// Hashes equal in their low bits land in the same slot of any table size
+		IdHashSet set = new IdHashSet(4);
+		for (int i = 1; i <= 1000; i++) {
+			assertEquals(-1, set.add((long) i << 40, i));
+		}
+		for (int i = 1; i <= 1000; i++) {
+			assertEquals(i, set.add((long) i << 40, -i));
+		}
+		assertEquals(1000, set.size());
+	}
+
+	@Test
+	public void zeroHashIsKept(){
+		IdHashSet set = new IdHashSet();
+		assertEquals(-1, set.add(0, 3));
+		assertEquals(3, set.add(0, 4));
+		assertEquals(1, set.size());
+	}
+
+	@Test
+	public void addAllReportsTheOtherSetsDuplicatesInOrder(){
+		IdHashSet document = new IdHashSet();
+		IdHashSet group = new IdHashSet();
+		for (int tx = 0; tx < 100; tx++) {
+			document.add(IdHashSet.hash("A" + tx), tx);
+		}
+		for (int tx = 0; tx < 100; tx++) {
+			// Every third id of the group was used by the document
+			group.add(IdHashSet.hash(tx % 3 == 0 ? "A" + tx : "B" + tx), tx);
+		}
+		int[] duplicates = new int[group.size()];
+		int count = document.addAll(group, duplicates);
+		assertEquals(34, count);
+		for (int i = 0; i < count; i++) {
+			assertEquals(i * 3, duplicates[i]);
+		}
+		assertEquals(100 + 66, document.size());
+	}
+
+	@Test
+	public void hashTellsCharactersApart(){
+		assertEquals(IdHashSet.hash("E2E-1"), IdHashSet.hash(new StringBuilder("E2E-").append(1)));
+		IdHashSet set = new IdHashSet();
+		// Permutations and one character changes, which weak hashes map together
+		String[] ids = {"AB", "BA", "Aa", "BB", "E2E-12", "E2E-21", "E2E-1", "E2E-10", ""};
+		for (int i = 0; i < ids.length; i++) {
+			assertEquals(ids[i], -1, set.add(IdHashSet.hash(ids[i]), i));
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package pt.sibace.sepa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Leases of {@link LeasedIdAllocator} from a counter file, and its recovery from a write cut short.
+ *
+ */
+public class LeasedIdAllocatorTest {
+
+	// Slot: generation, counter, check value; generation n is written in slot n & 1
+	private static final int SLOT_SIZE = 24;
+
+	private File counterFile;
+
+	@Before
+	public void createCounterFile() throws IOException{
+		counterFile = File.createTempFile("sepa-ids", ".counter");
+		counterFile.delete();
+	}
+
+	@After
+	public void deleteCounterFile(){
+		counterFile.delete();
+	}
+
+	@Test
+	public void allocatorsTakeDistinctBlocks() throws IOException{
+		LeasedIdAllocator first = new LeasedIdAllocator(counterFile, 10);
+		LeasedIdAllocator second = new LeasedIdAllocator(counterFile, 10);
+		assertEquals(0, first.nextValue());
+		assertEquals(10, second.nextValue());
+		for (int i = 1; i < 10; i++) {
+			assertEquals(i, first.nextValue());
+		}
+		// First block used up, the next one follows the second allocator's
+		assertEquals(20, first.nextValue());
+		first.close();
+		second.close();
+	}
+
+	@Test
+	public void closeGivesBackTheRestOfTheLastBlock() throws IOException{
+		LeasedIdAllocator first = new LeasedIdAllocator(counterFile, 10);
+		first.nextValue();
+		first.nextValue();
+		first.close();
+		assertEquals(8, first.getStats().getReturnedIds());
+		LeasedIdAllocator second = new LeasedIdAllocator(counterFile, 10);
+		assertEquals(2, second.nextValue());
+		second.close();
+	}
+
+	@Test
+	public void tornSlotFallsBackToThePreviousCounter() throws IOException{
+		LeasedIdAllocator first = new LeasedIdAllocator(counterFile, 10);
+		// Generation 1 (slot 1) leases 0 to 9, generation 2 (slot 0) leases 10 to 19
+		for (int i = 0; i < 11; i++) {
+			first.nextValue();
+		}
+		// A crash while generation 2 was written: half of its counter overwritten, no id of 10 to 19 handed out
+		RandomAccessFile file = new RandomAccessFile(counterFile, "rw");
+		try {
+			file.seek(8);
+			file.writeInt(0x7F00FF00);
+		} finally {
+			file.close();
+		}
+		LeasedIdAllocator second = new LeasedIdAllocator(counterFile, 10);
+		assertEquals(10, second.nextValue());
+		// The new counter went in place of the torn one, the next lease reads it
+		LeasedIdAllocator third = new LeasedIdAllocator(counterFile, 10);
+		assertEquals(20, third.nextValue());
+	}
+
+	@Test
+	public void fileCutShortKeepsTheCounterOfTheWholeSlot() throws IOException{
+		LeasedIdAllocator first = new LeasedIdAllocator(counterFile, 10);
+		// Generation 2, in slot 0, at 20; generation 1, in slot 1, at 10
+		for (int i = 0; i < 11; i++) {
+			first.nextValue();
+		}
+		RandomAccessFile file = new RandomAccessFile(counterFile, "rw");
+		try {
+			file.setLength(SLOT_SIZE + SLOT_SIZE / 2);
+		} finally {
+			file.close();
+		}
+		LeasedIdAllocator second = new LeasedIdAllocator(counterFile, 10);
+		assertEquals(20, second.nextValue());
+	}
+
+	@Test
+	public void unreadableCounterIsReportedNotRestarted() throws IOException{
+		LeasedIdAllocator first = new LeasedIdAllocator(counterFile, 10);
+		first.nextValue();
+		RandomAccessFile file = new RandomAccessFile(counterFile, "rw");
+		try {
+			file.seek(0);
+			file.write(new byte[2 * SLOT_SIZE]);
+		} finally {
+			file.close();
+		}
+		try {
+			new LeasedIdAllocator(counterFile, 10).nextValue();
+			fail("Counter restarted from a corrupt file");
+		} catch (UncheckedIOException e) {
+			assertTrue(e.getMessage(), e.getCause().getMessage().contains("corrupt"));
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void closedAllocatorHandsOutNothing() throws IOException{
+		LeasedIdAllocator ids = new LeasedIdAllocator(counterFile, 10);
+		ids.close();
+		ids.nextValue();
+	}
+}